@@ -0,0 +1,52 @@
+package cluster.sharding;
+
+import akka.cluster.sharding.ShardRegion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shard id extraction that the shard region runs for every message. Commands and queries
+ * carry the shard id that the sender computed, and only StartEntity messages hash the entity id.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageExtractorBenchmark {
+    private final ShardIds shardIds = new ShardIds(15);
+    private final ShardRegion.MessageExtractor messageExtractor = EntityMessage.messageExtractor(shardIds);
+    private final Object command = new EntityMessage.Command(new Entity("42", "entityCommand-17"), shardIds.shardId("42"), 1);
+    private final Object query = new EntityMessage.Query(new Entity.Id("42"), shardIds.shardId("42"), 1);
+    private final Object startEntity = new ShardRegion.StartEntity("42");
+
+    @Benchmark
+    public String extractShardIdFromCommand() {
+        return EntityMessage.extractShardIdFromCommands(command);
+    }
+
+    @Benchmark
+    public String extractShardIdFromQuery() {
+        return EntityMessage.extractShardIdFromCommands(query);
+    }
+
+    @Benchmark
+    public String shardIdOfStartEntity() {
+        return messageExtractor.shardId(startEntity);
+    }
+
+    @Benchmark
+    public String entityIdOfCommand() {
+        return messageExtractor.entityId(command);
+    }
+}
@@ -0,0 +1,125 @@
+package cluster.sharding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.NotSerializableException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and deserializing every message class that is bound to the {@link MessageSerializer},
+ * with messages of the sizes the cluster sends: batches, digests and repairs of one member with a
+ * few shards and entities.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private static final String member = "akka.tcp://akka-cluster-kubernetes@10.0.0.1:2552";
+
+    @Param({"Command", "CommandAck", "Query", "QueryAck", "QueryAckNotFound", "Action", "ActionBatch",
+            "SingletonAction", "StopNode", "TreeDigest", "TreeRepairRequest", "TreeRepair", "HotEntities",
+            "Entity", "Event", "ShardRates", "Rebalanced", "ShardOwner"})
+    public String message;
+
+    private final MessageSerializer serializer = new MessageSerializer();
+    private Object value;
+    private byte[] bytes;
+    private String manifest;
+
+    @Setup(Level.Trial)
+    public void setup() throws NotSerializableException {
+        value = message(message);
+        bytes = serializer.toBinary(value);
+        manifest = serializer.manifest(value);
+    }
+
+    @Benchmark
+    public byte[] toBinary() {
+        return serializer.toBinary(value);
+    }
+
+    @Benchmark
+    public Object fromBinary() throws NotSerializableException {
+        return serializer.fromBinary(bytes, manifest);
+    }
+
+    private static Object message(String name) {
+        Entity entity = new Entity("42", "entityCommand-17");
+        switch (name) {
+            case "Command":
+                return new EntityMessage.Command(entity, "7", 12);
+            case "CommandAck":
+                return new EntityMessage.CommandAck("update", entity, 12);
+            case "Query":
+                return new EntityMessage.Query(new Entity.Id("42"), "7", 12);
+            case "QueryAck":
+                return new EntityMessage.QueryAck(entity, 12);
+            case "QueryAckNotFound":
+                return new EntityMessage.QueryAckNotFound(new Entity.Id("42"), 12);
+            case "Action":
+                return new EntityMessage.Action(member, "7", "42", "start", true);
+            case "ActionBatch":
+                return new EntityMessage.ActionBatch(member, strings(100, 15), strings(100, 1000), new boolean[100]);
+            case "SingletonAction":
+                return new ClusterSingletonActor.Action(member, "start", true);
+            case "StopNode":
+                return new HttpServerActor.StopNode(member);
+            case "TreeDigest":
+                Map<String, Long> shardDigests = new HashMap<>();
+                for (String shardId : strings(15, 15)) {
+                    shardDigests.put(shardId, (long) shardId.hashCode() * 0x9E3779B97F4A7C15L);
+                }
+                return new HttpServerActor.TreeDigest(member, 42, shardDigests);
+            case "TreeRepairRequest":
+                return new HttpServerActor.TreeRepairRequest(member, Arrays.asList(strings(5, 15)));
+            case "TreeRepair":
+                Map<String, Set<String>> entityIdsByShard = new HashMap<>();
+                for (String shardId : strings(5, 15)) {
+                    entityIdsByShard.put(shardId, new HashSet<>(Arrays.asList(strings(20, 1000))));
+                }
+                return new HttpServerActor.TreeRepair(member, entityIdsByShard);
+            case "HotEntities":
+                return new HttpServerActor.HotEntities(member, strings(150, 15), strings(150, 1000), new long[150], new long[150]);
+            case "Entity":
+                return entity;
+            case "Event":
+                return new PersistentEntityActor.Event(entity, 7);
+            case "ShardRates":
+                return new ClusterLoad.ShardRates(strings(15, 15), new double[15], new boolean[15]);
+            case "Rebalanced":
+                return new LoadAwareAllocationStrategy.Rebalanced("7", member, "akka.tcp://akka-cluster-kubernetes@10.0.0.2:2552", true, true);
+            case "ShardOwner":
+                return new ShardOwnership.Owner(3, member);
+            default:
+                throw new IllegalArgumentException("Unknown message " + name);
+        }
+    }
+
+    // count ids from 0 to modulo - 1, in order and wrapping around.
+    private static String[] strings(int count, int modulo) {
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = String.valueOf(i % modulo);
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,41 @@
+package cluster.sharding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding a sample to the statistics ring of the HTTP server actor, and adding a sample followed
+ * by the JSON for the /statistics page, which the ring has to render again after every sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatisticsBenchmark {
+    private final HttpServerActor.Statistics statistics = new HttpServerActor.Statistics(121, 1000);
+    private long time = System.currentTimeMillis();
+
+    @Benchmark
+    public HttpServerActor.Statistics add() {
+        time += 1000;
+        statistics.add(time, (int) time & 0xfff, (int) time & 0xffff);
+        return statistics;
+    }
+
+    @Benchmark
+    public String addAndToJson() {
+        add();
+        return statistics.toJson();
+    }
+}
@@ -0,0 +1,96 @@
+package cluster.sharding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The monitor tree operations of the HTTP server actor on a tree of three members with the
+ * entities spread over their shards. The tree keeps its size: add moves an existing entity to the
+ * end of its shard, and the remove benchmarks add the entity back, so their cost is the remove
+ * plus the add. toJson changes one entity before each call, because an unchanged tree returns the
+ * cached JSON.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class TreeBenchmark {
+    private static final int members = 3;
+
+    @Param({"1000", "100000", "1000000"})
+    public int entities;
+
+    private HttpServerActor.Tree tree;
+    private String[] entityIds;
+    private String[] shardIds;
+    private String[] memberIds;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ShardIds shards = new ShardIds(15);
+        tree = HttpServerActor.Tree.create("cluster", "cluster");
+        entityIds = new String[entities];
+        shardIds = new String[entities];
+        memberIds = new String[entities];
+        for (int i = 0; i < entities; i++) {
+            entityIds[i] = String.valueOf(i);
+            shardIds[i] = shards.shardId(entityIds[i]);
+            memberIds[i] = String.format("akka.tcp://akka-cluster-kubernetes@10.0.0.%d:2552", Integer.parseInt(shardIds[i]) % members + 1);
+            tree.add(memberIds[i], shardIds[i], entityIds[i]);
+        }
+    }
+
+    @Benchmark
+    public HttpServerActor.Tree add() {
+        int i = next();
+        tree.add(memberIds[i], shardIds[i], entityIds[i]);
+        return tree;
+    }
+
+    @Benchmark
+    public HttpServerActor.Tree removeAndAdd() {
+        int i = next();
+        tree.remove(memberIds[i], shardIds[i], entityIds[i]);
+        tree.add(memberIds[i], shardIds[i], entityIds[i]);
+        return tree;
+    }
+
+    @Benchmark
+    public HttpServerActor.Tree removeEntityAndAdd() {
+        int i = next();
+        tree.removeEntity(entityIds[i]);
+        tree.add(memberIds[i], shardIds[i], entityIds[i]);
+        return tree;
+    }
+
+    @Benchmark
+    public HttpServerActor.Tree find() {
+        return tree.find(entityIds[next()], "entity");
+    }
+
+    @Benchmark
+    public String toJson() {
+        int i = next();
+        tree.incrementEvents(memberIds[i], shardIds[i], entityIds[i]);
+        return tree.toJson();
+    }
+
+    private int next() {
+        return ThreadLocalRandom.current().nextInt(entities);
+    }
+}
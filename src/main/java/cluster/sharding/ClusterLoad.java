@@ -0,0 +1,142 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The latest known load of the cluster members, by member address: the CPU and heap usage that
+ * the cluster metrics extension reports, and the message rates of the shards that each member
+ * reports through the shard load actors. The load-aware shard allocation strategy reads it from
+ * the shard coordinator, so everything here can be read from any thread without waiting.
+ */
+class ClusterLoad implements Extension {
+    private final ConcurrentMap<String, NodeMetrics> nodeMetrics = new ConcurrentHashMap<>();
+    private volatile Map<String, ShardRates> shardRates = Collections.emptyMap();
+
+    /** Metrics that are not collected yet, NaN or negative, count as 0. */
+    void updateMetrics(String address, double cpu, double heap) {
+        nodeMetrics.put(address, new NodeMetrics(known(cpu), known(heap)));
+    }
+
+    private static double known(double usage) {
+        return usage > 0 ? usage : 0;
+    }
+
+    void updateShardRates(Map<String, ShardRates> shardRatesByAddress) {
+        shardRates = Collections.unmodifiableMap(shardRatesByAddress);
+    }
+
+    void remove(String address) {
+        nodeMetrics.remove(address);
+    }
+
+    /** The CPU usage of the member between 0 and 1, or 0 when unknown. */
+    double cpu(String address) {
+        NodeMetrics metrics = nodeMetrics.get(address);
+        return metrics == null ? 0 : metrics.cpu;
+    }
+
+    /** The heap usage of the member between 0 and 1, or 0 when unknown. */
+    double heap(String address) {
+        NodeMetrics metrics = nodeMetrics.get(address);
+        return metrics == null ? 0 : metrics.heap;
+    }
+
+    /**
+     * The messages per second of a shard, summed over the members that report it. A shard is
+     * normally reported by one member, and for a short while by two after it moved.
+     */
+    double shardRate(String shardId) {
+        double rate = 0;
+        for (ShardRates rates : shardRates.values()) {
+            rate += rates.rate(shardId);
+        }
+        return rate;
+    }
+
+    /** Whether a member reports the shard as hot. */
+    boolean isHot(String shardId) {
+        for (ShardRates rates : shardRates.values()) {
+            if (rates.isHot(shardId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The shard rates reported by each member, by member address. */
+    Map<String, ShardRates> shardRates() {
+        return shardRates;
+    }
+
+    static ClusterLoad get(ActorSystem actorSystem) {
+        return Id.instance.get(actorSystem);
+    }
+
+    static class Id extends AbstractExtensionId<ClusterLoad> {
+        static final Id instance = new Id();
+
+        @Override
+        public ClusterLoad createExtension(ExtendedActorSystem system) {
+            return new ClusterLoad();
+        }
+    }
+
+    private static class NodeMetrics {
+        final double cpu;
+        final double heap;
+
+        NodeMetrics(double cpu, double heap) {
+            this.cpu = cpu;
+            this.heap = heap;
+        }
+    }
+
+    /**
+     * The smoothed message rates of the shards of one member, and whether each shard is hot,
+     * replicated with distributed data.
+     */
+    public static class ShardRates implements Serializable {
+        final String[] shardIds;
+        final double[] rates;
+        final boolean[] hot;
+
+        ShardRates(String[] shardIds, double[] rates, boolean[] hot) {
+            this.shardIds = shardIds;
+            this.rates = rates;
+            this.hot = hot;
+        }
+
+        double rate(String shardId) {
+            int index = indexOf(shardId);
+            return index < 0 ? 0 : rates[index];
+        }
+
+        boolean isHot(String shardId) {
+            int index = indexOf(shardId);
+            return index >= 0 && hot[index];
+        }
+
+        private int indexOf(String shardId) {
+            for (int i = 0; i < shardIds.length; i++) {
+                if (shardIds[i].equals(shardId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d shards]", getClass().getSimpleName(), shardIds.length);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cluster.sharding;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+
+/**
+ * Puts each group of actors on its own dispatcher from cluster-demo.dispatchers, so that a busy
+ * group cannot take the threads of the others: the entities, the HTTP server with the monitor
+ * tree, the load generators, and the cluster bookkeeping actors. With the layout disabled all of
+ * them stay on the default dispatcher.
+ */
+class DispatcherLayout {
+    static final String entity = "cluster-demo.dispatchers.entity";
+    static final String entityAffinity = "cluster-demo.dispatchers.entity-affinity-pool";
+    static final String http = "cluster-demo.dispatchers.http";
+    static final String load = "cluster-demo.dispatchers.load";
+    static final String cluster = "cluster-demo.dispatchers.cluster";
+
+    private final boolean enabled;
+    private final boolean affinity;
+
+    DispatcherLayout(Config config) {
+        enabled = config.getBoolean("enabled");
+        affinity = config.getBoolean("entity-affinity");
+    }
+
+    static DispatcherLayout get(ActorSystem actorSystem) {
+        return new DispatcherLayout(actorSystem.settings().config().getConfig("cluster-demo.dispatchers"));
+    }
+
+    Props entity(Props props) {
+        return on(props, affinity ? entityAffinity : entity);
+    }
+
+    Props http(Props props) {
+        return on(props, http);
+    }
+
+    Props load(Props props) {
+        return on(props, load);
+    }
+
+    Props cluster(Props props) {
+        return on(props, cluster);
+    }
+
+    private Props on(Props props, String dispatcher) {
+        return enabled ? props.withDispatcher(dispatcher) : props;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, entity affinity %b]", getClass().getSimpleName(), enabled, affinity);
+    }
+}
@@ -1,11 +1,19 @@
 package cluster.sharding;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
+/**
+ * An immutable entity id and value. A node can hold millions of entities, so both are kept small:
+ * a numeric id is stored as a long instead of a string, and long, double, byte array and string
+ * values are stored unboxed, strings as their UTF-8 bytes. With compressed oops an entity with a
+ * numeric id and a long value takes three 24 byte objects.
+ */
 class Entity implements Serializable {
     final Id id;
-    Value value;
+    final Value value;
 
     Entity(Id id, Value value) {
         this.id = id;
@@ -13,7 +21,11 @@ class Entity implements Serializable {
     }
 
     Entity(String id, Object value) {
-        this(new Id(id), new Value(value));
+        this(new Id(id), Value.of(value));
+    }
+
+    Entity withValue(Value value) {
+        return new Entity(id, value);
     }
 
     @Override
@@ -21,14 +33,12 @@ class Entity implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Entity entity = (Entity) o;
-        return Objects.equals(id, entity.id) &&
-                Objects.equals(value, entity.value);
+        return id.equals(entity.id) && value.equals(entity.value);
     }
 
     @Override
     public int hashCode() {
-
-        return Objects.hash(id, value);
+        return 31 * id.hashCode() + value.hashCode();
     }
 
     @Override
@@ -36,29 +46,244 @@ class Entity implements Serializable {
         return String.format("%s[%s -> %s]", getClass().getSimpleName(), id, value);
     }
 
+    /**
+     * An entity id. Ids that are the decimal form of a non-negative long without leading zeros,
+     * like the ids of the load actors, are stored as that long.
+     */
     static class Id implements Serializable {
-        final String id;
+        private final long number;
+        private final String string;
+
+        Id(long number) {
+            if (number < 0) {
+                throw new IllegalArgumentException(String.format("Numeric entity id must not be negative, was %d", number));
+            }
+            this.number = number;
+            this.string = null;
+        }
 
         Id(String id) {
-            this.id = id;
+            long parsed = parseNumber(id);
+            this.number = parsed;
+            this.string = parsed < 0 ? id : null;
+        }
+
+        /** The id as a string, which allocates a new string on every call for a numeric id. */
+        String id() {
+            return string == null ? Long.toString(number) : string;
+        }
+
+        boolean isNumeric() {
+            return string == null;
+        }
+
+        /** The number of a numeric id, or -1. */
+        long number() {
+            return string == null ? number : -1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Id id = (Id) o;
+            return number == id.number && Objects.equals(string, id.string);
+        }
+
+        @Override
+        public int hashCode() {
+            return string == null ? Long.hashCode(number) : string.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), id());
+        }
+
+        // Returns the number, or -1 when the id is not the canonical decimal form of one.
+        private static long parseNumber(String id) {
+            int length = id.length();
+            if (length == 0 || length > 19 || (id.charAt(0) == '0' && length > 1)) {
+                return -1;
+            }
+            long number = 0;
+            for (int i = 0; i < length; i++) {
+                char c = id.charAt(i);
+                if (c < '0' || c > '9' || number > (Long.MAX_VALUE - (c - '0')) / 10) {
+                    return -1;
+                }
+                number = number * 10 + (c - '0');
+            }
+            return number;
+        }
+    }
+
+    /**
+     * An entity value. Longs, doubles, byte arrays and strings have their own compact subclasses,
+     * anything else is kept as an object.
+     */
+    abstract static class Value implements Serializable {
+        static final Value empty = new ObjectValue(null);
+
+        private Value() {
+        }
+
+        /** The value as an object, boxed or decoded on every call. */
+        abstract Object value();
+
+        static Value of(long value) {
+            return new LongValue(value);
+        }
+
+        static Value of(double value) {
+            return new DoubleValue(value);
+        }
+
+        static Value of(byte[] value) {
+            return new BytesValue(value);
+        }
+
+        static Value of(String value) {
+            return value == null ? empty : new StringValue(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Value of(Object value) {
+            if (value == null) {
+                return empty;
+            } else if (value instanceof Value) {
+                return (Value) value;
+            } else if (value instanceof Long) {
+                return of((long) (Long) value);
+            } else if (value instanceof Double) {
+                return of((double) (Double) value);
+            } else if (value instanceof byte[]) {
+                return of((byte[]) value);
+            } else if (value instanceof String) {
+                return of((String) value);
+            }
+            return new ObjectValue(value);
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), id);
+            Object value = value();
+            return String.format("%s[%s]", getClass().getSimpleName(), value instanceof byte[] ? Arrays.toString((byte[]) value) : value);
+        }
+    }
+
+    static final class LongValue extends Value {
+        final long value;
+
+        LongValue(long value) {
+            this.value = value;
+        }
+
+        @Override
+        Object value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LongValue && ((LongValue) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(value);
+        }
+    }
+
+    static final class DoubleValue extends Value {
+        final double value;
+
+        DoubleValue(double value) {
+            this.value = value;
+        }
+
+        @Override
+        Object value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DoubleValue && Double.compare(((DoubleValue) o).value, value) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(value);
+        }
+    }
+
+    static final class BytesValue extends Value {
+        final byte[] value;
+
+        BytesValue(byte[] value) {
+            this.value = value;
+        }
+
+        @Override
+        Object value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BytesValue && Arrays.equals(((BytesValue) o).value, value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(value);
         }
     }
 
-    static class Value implements Serializable {
+    /** A string, kept as its UTF-8 bytes, which saves the String object and is what is serialized. */
+    static final class StringValue extends Value {
+        final byte[] utf8;
+
+        StringValue(byte[] utf8) {
+            this.utf8 = utf8;
+        }
+
+        @Override
+        Object value() {
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StringValue && Arrays.equals(((StringValue) o).utf8, utf8);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(utf8);
+        }
+    }
+
+    static final class ObjectValue extends Value {
         final Object value;
 
-        Value(Object value) {
+        ObjectValue(Object value) {
             this.value = value;
         }
 
         @Override
-        public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), value);
+        Object value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ObjectValue && Objects.equals(((ObjectValue) o).value, value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(value);
         }
     }
 }
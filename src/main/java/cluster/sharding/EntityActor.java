@@ -10,14 +10,24 @@ import java.util.concurrent.TimeUnit;
 
 class EntityActor extends AbstractLoggingActor {
     private final ActorRef httpServer;
+    private final ActorRef passivationManager;
     private Entity entity;
     private String shardId;
     private String entityId;
+    // Cluster sharding starts the entity actors as children of their shard actor.
+    private final int shardEpoch = context().parent().path().uid();
+    private boolean passivating;
     private final String memberId = Cluster.get(context().system()).selfMember().address().toString();
-    private final FiniteDuration receiveTimeout = Duration.create(15, TimeUnit.SECONDS);
+    private final FiniteDuration receiveTimeout = Duration.create(context().system().settings().config()
+            .getDuration("cluster-demo.passivation.idle-timeout", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final EntityCounters entityCounters = EntityCounters.get(context().system());
+    private final EntityCache entityCache = EntityCache.get(context().system());
+    private EntityCounters.Counter counter;
+    private PassivationManager.Entry passivationEntry;
 
-    EntityActor(ActorRef httpServer) {
+    EntityActor(ActorRef httpServer, ActorRef passivationManager) {
         this.httpServer = httpServer;
+        this.passivationManager = passivationManager;
     }
 
     @Override
@@ -26,40 +36,65 @@ class EntityActor extends AbstractLoggingActor {
                 .match(EntityMessage.Command.class, this::command)
                 .match(EntityMessage.Query.class, this::query)
                 .matchEquals(ReceiveTimeout.getInstance(), t -> passivate())
+                .matchEquals(PassivationManager.passivate, p -> passivate())
                 .build();
     }
 
     private void command(EntityMessage.Command command) {
+        if (shardId == null) {
+            start(command.entityId(), command.shardId);
+        }
         if (entity == null) {
             entity = command.entity;
             log().info("initialize {}", entity);
-
-            sender().tell(new EntityMessage.CommandAck("initialize", command.entity), self());
-            entityId = entity.id.id;
-            shardId = EntityMessage.extractShardIdFromCommands(command);
-            notifyStart();
+            sender().tell(new EntityMessage.CommandAck("initialize", command.entity, command.correlationId), self());
         } else {
             log().info("update {} {} -> {}", entity.id, command.entity.value, entity.value);
-            entity.value = command.entity.value;
-            sender().tell(new EntityMessage.CommandAck("update", command.entity), self());
+            entity = entity.withValue(command.entity.value);
+            sender().tell(new EntityMessage.CommandAck("update", command.entity, command.correlationId), self());
         }
+        counter().command();
+        passivationEntry.touch();
     }
 
     private void query(EntityMessage.Query query) {
+        if (shardId == null) {
+            start(query.entityId(), query.shardId);
+        }
         log().info("query {} -> {}", query, entity == null ? "(not initialized)" : entity);
         if (entity == null) {
-            sender().tell(new EntityMessage.QueryAckNotFound(query.id), self());
-            entityId = query.id.id;
-            shardId = EntityMessage.extractShardIdFromCommands(query);
-            notifyStart();
+            sender().tell(new EntityMessage.QueryAckNotFound(query.id, query.correlationId), self());
         } else {
-            sender().tell(new EntityMessage.QueryAck(entity), self());
+            sender().tell(new EntityMessage.QueryAck(entity, query.correlationId), self());
+        }
+        counter().query();
+        passivationEntry.touch();
+    }
+
+    // Picks up the entity where it was left if it was passivated on this node before, since its
+    // shard was started here.
+    private void start(String entityId, String shardId) {
+        this.entityId = entityId;
+        this.shardId = shardId;
+        entity = entityCache.take(entityId, shardEpoch);
+        if (entity != null) {
+            log().info("restored {}", entity);
         }
+        notifyStart();
+    }
+
+    private EntityCounters.Counter counter() {
+        if (counter == null) {
+            counter = entityCounters.register(shardId, entityId);
+        }
+        return counter;
     }
 
     private void notifyStart() {
         EntityMessage.Action start = new EntityMessage.Action(memberId, shardId, entityId, "start", true);
         httpServer.tell(start, self());
+        passivationEntry = new PassivationManager.Entry(self(), shardId);
+        passivationManager.tell(new PassivationManager.Register(passivationEntry), self());
     }
 
     private void notifyStop() {
@@ -68,6 +103,7 @@ class EntityActor extends AbstractLoggingActor {
     }
 
     private void passivate() {
+        passivating = true;
         context().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), self());
     }
 
@@ -79,11 +115,22 @@ class EntityActor extends AbstractLoggingActor {
 
     @Override
     public void postStop() {
+        // An entity that stops without passivating is handed off to another node, where its value
+        // may change, so only a passivated entity is kept.
+        if (entity != null && passivating) {
+            entityCache.put(entityId, entity, shardEpoch);
+        }
+        if (counter != null) {
+            entityCounters.unregister(counter);
+        }
+        if (passivationEntry != null) {
+            passivationManager.tell(new PassivationManager.Unregister(passivationEntry), self());
+        }
         notifyStop();
         log().info("Stop shard {}, entity {}", shardId, entityId);
     }
 
-    static Props props(ActorRef httpServer) {
-        return Props.create(EntityActor.class, httpServer);
+    static Props props(ActorRef httpServer, ActorRef passivationManager) {
+        return Props.create(EntityActor.class, httpServer, passivationManager);
     }
 }
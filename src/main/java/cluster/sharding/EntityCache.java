@@ -0,0 +1,209 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the entities that were passivated on this node off the heap, so that an entity that is
+ * started again on this node gets its value back. Entity actors put their entity here when they
+ * passivate and take it back out when they start.
+ * <p>
+ * An entity is stored with the epoch of its shard, the uid of the shard actor, which is new every
+ * time the shard is started on this node. After the shard was handed off, the entity may have
+ * changed on another node, so an entity stored in an earlier epoch of its shard is stale and is
+ * not given back.
+ * <p>
+ * The entities are encoded like in messages and appended to a ring buffer in direct memory, which
+ * the garbage collector does not scan. When the buffer is full, the oldest entities are overwritten,
+ * so entities are evicted in the order they were passivated. Only the index from entity id to
+ * position in the buffer is on the heap. A capacity of 0 turns the cache off.
+ */
+class EntityCache implements Extension {
+    private static final ObjectWriter jsonWriter = new ObjectMapper().writer();
+    private static final int padding = -1;
+    private static final int headerSize = 12;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final MessageSerializer serializer;
+    private final Map<String, Long> index = new HashMap<>();
+    // Positions grow forever, the position in the buffer is the position modulo the capacity.
+    private long head;
+    private long tail;
+    private long hits;
+    private long misses;
+    private long stale;
+    private long puts;
+    private long evictions;
+    private long rejections;
+
+    EntityCache(int capacity) {
+        this(capacity, new MessageSerializer());
+    }
+
+    EntityCache(int capacity, MessageSerializer serializer) {
+        this.capacity = capacity;
+        this.serializer = serializer;
+        buffer = capacity > 0 ? ByteBuffer.allocateDirect(capacity) : null;
+    }
+
+    /**
+     * Stores the entity under its entity id, replacing what was stored for the same entity id. The
+     * caller passes the id string it already holds, so a numeric id is not turned into a new one.
+     */
+    void put(String entityId, Entity entity, int shardEpoch) {
+        if (buffer == null) {
+            return;
+        }
+        byte[] id = entityId.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = serializer.entityToBinary(entity);
+        int length = headerSize + id.length + bytes.length;
+        synchronized (this) {
+            index.remove(entityId);
+            if (length > capacity) {
+                rejections++;
+                return;
+            }
+            int offset = offset(tail);
+            if (offset + length > capacity) {
+                makeRoom(capacity - offset);
+                if (capacity - offset >= 4) {
+                    buffer.putInt(offset, padding);
+                }
+                tail += capacity - offset;
+                offset = 0;
+            }
+            makeRoom(length);
+            buffer.putInt(offset, length);
+            buffer.putInt(offset + 4, id.length);
+            buffer.putInt(offset + 8, shardEpoch);
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + headerSize);
+            record.put(id).put(bytes);
+            index.put(entityId, tail);
+            tail += length;
+            puts++;
+        }
+    }
+
+    /**
+     * Removes and returns the stored entity with the entity id, or null when there is none or it was
+     * stored in another epoch of its shard.
+     */
+    Entity take(String entityId, int shardEpoch) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes;
+        synchronized (this) {
+            Long position = index.remove(entityId);
+            if (position == null) {
+                misses++;
+                return null;
+            }
+            int offset = offset(position);
+            if (buffer.getInt(offset + 8) != shardEpoch) {
+                stale++;
+                return null;
+            }
+            hits++;
+            int length = buffer.getInt(offset);
+            int idLength = buffer.getInt(offset + 4);
+            bytes = new byte[length - headerSize - idLength];
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + headerSize + idLength);
+            record.get(bytes);
+        }
+        return serializer.entityFromBinary(bytes);
+    }
+
+    synchronized Stats stats() {
+        return new Stats(capacity, tail - head, index.size(), hits, misses, stale, puts, evictions, rejections);
+    }
+
+    String toJson() {
+        try {
+            return jsonWriter.writeValueAsString(stats());
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    // Moves the head past the oldest records until there are free bytes from the tail on.
+    private void makeRoom(int length) {
+        while (tail + length - head > capacity) {
+            int offset = offset(head);
+            int recordLength = capacity - offset >= 4 ? buffer.getInt(offset) : padding;
+            if (recordLength == padding) {
+                head += capacity - offset;
+            } else {
+                byte[] id = new byte[buffer.getInt(offset + 4)];
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset + headerSize);
+                record.get(id);
+                if (index.remove(new String(id, StandardCharsets.UTF_8), head)) {
+                    evictions++;
+                }
+                head += recordLength;
+            }
+        }
+    }
+
+    private int offset(long position) {
+        return (int) (position % capacity);
+    }
+
+    static EntityCache get(ActorSystem actorSystem) {
+        return Id.instance.get(actorSystem);
+    }
+
+    static class Id extends AbstractExtensionId<EntityCache> {
+        static final Id instance = new Id();
+
+        @Override
+        public EntityCache createExtension(ExtendedActorSystem system) {
+            return new EntityCache((int) Math.min(Integer.MAX_VALUE, system.settings().config().getBytes("cluster-demo.entity-cache.capacity")),
+                    new MessageSerializer(system));
+        }
+    }
+
+    /** The size and usage counts of the cache, for the /entity-cache endpoint. */
+    public static class Stats {
+        public final long capacity;
+        public final long usedBytes;
+        public final int entities;
+        public final long hits;
+        public final long misses;
+        public final long stale;
+        public final long puts;
+        public final long evictions;
+        public final long rejections;
+
+        Stats(long capacity, long usedBytes, int entities, long hits, long misses, long stale, long puts, long evictions, long rejections) {
+            this.capacity = capacity;
+            this.usedBytes = usedBytes;
+            this.entities = entities;
+            this.hits = hits;
+            this.misses = misses;
+            this.stale = stale;
+            this.puts = puts;
+            this.evictions = evictions;
+            this.rejections = rejections;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d entities, %d of %d bytes, hits %d, misses %d, stale %d, puts %d, evictions %d, rejections %d]",
+                    getClass().getSimpleName(), entities, usedBytes, capacity, hits, misses, stale, puts, evictions, rejections);
+        }
+    }
+}
@@ -6,31 +6,77 @@ import akka.actor.Props;
 import akka.actor.Cancellable;
 import akka.cluster.Cluster;
 import akka.cluster.ClusterEvent;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import com.typesafe.config.Config;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends commands to entities picked by the configured key distribution. In the default stop-and-wait mode the next command is only
+ * sent after the previous one was acknowledged or timed out. In pipelined mode commands are sent
+ * open-loop, on a schedule that follows the target rate no matter how fast the acks come back,
+ * with at most in-flight-window commands waiting for an ack.
+ * <p>
+ * The ack latencies are recorded in a histogram that is published and reset every report
+ * interval. To correct for coordinated omission, a pipelined command's latency is measured from
+ * the time the schedule intended to send it, and commands that time out or are skipped because
+ * the window is full are recorded too. In stop-and-wait mode a command stays outstanding over
+ * the ticks until its ack or the command timeout, and the commands that it kept from being sent
+ * are filled in from the tick interval.
+ */
 class EntityCommandActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
     private Cancellable ticker;
-    private int messageNumber;
+    private Cancellable reportTicker;
+    private long messageNumber;
     private final Receive sending;
     private final Receive receiving;
+    private final Receive pipelined;
     private final Cluster cluster = Cluster.get(context().system());
+    private final ShardIds shardIds = ShardIds.get(context().system());
+    private final Config load = context().system().settings().config().getConfig("cluster-demo.load");
+    private final boolean pipelinedMode = load.getString("mode").equals("pipelined");
+    private final int clusterRate = load.getInt("cluster-rate");
+    private final long commandTimeoutNanos = load.getDuration("command-timeout", TimeUnit.NANOSECONDS);
+    private final InFlightWindow inFlight = new InFlightWindow(load.getInt("in-flight-window"));
+    private final KeyDistribution keys = KeyDistribution.create(load.getConfig("keys"));
+    private double ratePerSecond;
+    private long scheduleStart;
+    private long scheduledSinceStart;
+    private long sent;
+    private long acked;
+    private long late;
+    private long timedOut;
+    private long skipped;
+    private long sendTime;
+    private long tickIntervalMicros;
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private final Latencies latencies = Latencies.get(context().system());
 
     {
         sending = receiveBuilder()
                 .matchEquals("tick", t -> tickSending())
                 .match(EntityMessage.CommandAck.class, this::commandAckSending)
+                .matchEquals("report", r -> report())
                 .matchAny(this::adjustMessageRate)
                 .build();
 
         receiving = receiveBuilder()
                 .matchEquals("tick", t -> tickReceiving())
                 .match(EntityMessage.CommandAck.class, this::commandAckReceiving)
+                .matchEquals("report", r -> report())
                 .matchAny(this::adjustMessageRate)
                 .build();
+
+        pipelined = receiveBuilder()
+                .matchEquals("tick", t -> tickPipelined())
+                .match(EntityMessage.CommandAck.class, this::commandAckPipelined)
+                .matchEquals("report", r -> report())
+                .matchAny(this::adjustPipelinedRate)
+                .build();
     }
 
     private EntityCommandActor(ActorRef shardRegion) {
@@ -39,7 +85,7 @@ class EntityCommandActor extends AbstractLoggingActor {
 
     @Override
     public Receive createReceive() {
-        return sending;
+        return pipelinedMode ? pipelined : sending;
     }
 
     private void commandAckSending(EntityMessage.CommandAck commandAck) {
@@ -47,26 +93,89 @@ class EntityCommandActor extends AbstractLoggingActor {
     }
 
     private void tickSending() {
-        shardRegion.tell(command(), self());
+        sendTime = System.nanoTime();
+        sent++;
+        shardRegion.tell(command(++messageNumber), self());
         getContext().become(receiving);
     }
 
     private void commandAckReceiving(EntityMessage.CommandAck commandAck) {
-        log().info("Received {} {}", commandAck, sender());
-        getContext().become(sending);
+        if (commandAck.correlationId == messageNumber) {
+            log().info("Received {} {}", commandAck, sender());
+            latencyHistogram.recordValue((System.nanoTime() - sendTime) / 1000, tickIntervalMicros);
+            acked++;
+            getContext().become(sending);
+        } else {
+            commandAckSending(commandAck);
+        }
     }
 
+    // The ticks that pass while a command is outstanding are the commands it keeps from being
+    // sent, which its latency fills in when the ack arrives. A command that is not acked within
+    // the command timeout is recorded at its age and the next command is sent.
     private void tickReceiving() {
-        log().warning("No response to last command {}", messageNumber);
-        getContext().become(sending);
+        long age = System.nanoTime() - sendTime;
+        if (age >= commandTimeoutNanos) {
+            log().warning("No response to last command {}", messageNumber);
+            latencyHistogram.recordValue(age / 1000, tickIntervalMicros);
+            timedOut++;
+            tickSending();
+        }
     }
 
-    private EntityMessage.Command command() {
-        return new EntityMessage.Command(randomEntity());
+    // Sends the commands that are due by now according to the schedule, including any that are
+    // overdue because this actor was not scheduled in time. A command that does not fit in the
+    // in-flight window is skipped, not delayed, so a slow cluster does not slow down the schedule.
+    private void tickPipelined() {
+        long now = System.nanoTime();
+        timedOut += inFlight.expire(now - commandTimeoutNanos, intendedSendTime -> latencyHistogram.recordValue((now - intendedSendTime) / 1000));
+        long due = (long) ((now - scheduleStart) / 1e9 * ratePerSecond);
+        for (; scheduledSinceStart < due; scheduledSinceStart++) {
+            long correlationId = messageNumber + 1;
+            long intendedSendTime = scheduleStart + (long) (scheduledSinceStart * 1e9 / ratePerSecond);
+            if (inFlight.add(correlationId, intendedSendTime)) {
+                messageNumber = correlationId;
+                shardRegion.tell(command(correlationId), self());
+                sent++;
+            } else {
+                // A skipped command is never answered, so it counts as a command that timed out.
+                latencyHistogram.recordValue(commandTimeoutNanos / 1000);
+                skipped++;
+            }
+        }
     }
 
-    private Entity randomEntity() {
-        return new Entity(Random.entityId(1, 100), new Entity.Value(String.format("%s-%d", self().path().name(), ++messageNumber)));
+    private void commandAckPipelined(EntityMessage.CommandAck commandAck) {
+        long intendedSendTime = inFlight.remove(commandAck.correlationId);
+        if (intendedSendTime < 0) {
+            log().debug("Received (late) {} {}", commandAck, sender());
+            late++;
+        } else {
+            log().debug("Received {} {}", commandAck, sender());
+            latencyHistogram.recordValue((System.nanoTime() - intendedSendTime) / 1000);
+            acked++;
+        }
+    }
+
+    private void report() {
+        LatencyHistogram.Summary summary = latencyHistogram.summary(System.currentTimeMillis());
+        latencyHistogram.reset();
+        latencies.publish("commands", summary);
+        if (pipelinedMode) {
+            log().info(String.format("Commands target %.1f/s, sent %d, acked %d, late %d, timed out %d, skipped %d, in flight %d, %s",
+                    ratePerSecond, sent, acked, late, timedOut, skipped, inFlight.size(), summary));
+        } else {
+            log().info(String.format("Commands sent %d, acked %d, timed out %d, %s", sent, acked, timedOut, summary));
+        }
+    }
+
+    private EntityMessage.Command command(long correlationId) {
+        Entity entity = randomEntity(correlationId);
+        return new EntityMessage.Command(entity, shardIds.shardId(entity.id), correlationId);
+    }
+
+    private Entity randomEntity(long correlationId) {
+        return new Entity(keys.nextEntityId(), Entity.Value.of(String.format("%s-%d", self().path().name(), correlationId)));
     }
 
     private void adjustMessageRate(Object clusterEventMessage) {
@@ -80,6 +189,7 @@ class EntityCommandActor extends AbstractLoggingActor {
         log().info("Message interval {}ms, cluster member count {}, {}", millsPerMessage, memberCount, event);
 
         FiniteDuration tickInterval = Duration.create(millsPerMessage, TimeUnit.MILLISECONDS);
+        tickIntervalMicros = tickInterval.toMicros();
 
         if (ticker != null) {
             ticker.cancel();
@@ -95,12 +205,61 @@ class EntityCommandActor extends AbstractLoggingActor {
         );
     }
 
+    // Every Up member runs a command actor, so each one sends its share of the cluster rate.
+    // The schedule restarts from now when the share changes.
+    private void adjustPipelinedRate(Object event) {
+        int upMemberCount = 0;
+        for (Member member : cluster.state().getMembers()) {
+            if (member.status().equals(MemberStatus.up())) {
+                upMemberCount++;
+            }
+        }
+        double rate = (double) clusterRate / Math.max(1, upMemberCount);
+        if (rate != ratePerSecond) {
+            log().info("Command rate {}/s, cluster rate {}/s, up member count {}, {}",
+                    String.format("%.1f", rate), clusterRate, upMemberCount, event);
+            ratePerSecond = rate;
+            scheduleStart = System.nanoTime();
+            scheduledSinceStart = 0;
+        }
+    }
+
+    private void schedulePipelinedTicker() {
+        FiniteDuration tickInterval = Duration.create(load.getDuration("tick-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        ticker = context().system().scheduler().schedule(
+                tickInterval,
+                tickInterval,
+                self(),
+                "tick",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    private void scheduleReportTicker() {
+        FiniteDuration reportInterval = Duration.create(load.getDuration("report-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        reportTicker = context().system().scheduler().schedule(
+                reportInterval,
+                reportInterval,
+                self(),
+                "report",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
     @Override
     public void preStart() {
         log().info("Start");
         cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
                 ClusterEvent.ClusterDomainEvent.class);
-        scheduleMessageRateTicker("Start");
+        if (pipelinedMode) {
+            adjustPipelinedRate("Start");
+            schedulePipelinedTicker();
+        } else {
+            scheduleMessageRateTicker("Start");
+        }
+        scheduleReportTicker();
     }
 
     @Override
@@ -108,6 +267,7 @@ class EntityCommandActor extends AbstractLoggingActor {
         log().info("Stop");
         cluster.unsubscribe(self());
         ticker.cancel();
+        reportTicker.cancel();
     }
 
     static Props props(ActorRef shardRegion) {
@@ -0,0 +1,78 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the commands and queries handled by each entity of this node. Every entity actor
+ * registers its own counter, and the HTTP server actor takes and resets all of them once per
+ * statistics interval. The messages are also counted per shard, for the shard load actor, which
+ * takes and resets the shard counts once per load interval.
+ */
+class EntityCounters implements Extension {
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> shardMessages = new ConcurrentHashMap<>();
+
+    Counter register(String shardId, String entityId) {
+        Counter counter = new Counter(shardId, entityId, shardMessages.computeIfAbsent(shardId, s -> new LongAdder()));
+        counters.put(entityId, counter);
+        return counter;
+    }
+
+    void unregister(Counter counter) {
+        counters.remove(counter.entityId, counter);
+    }
+
+    Collection<Counter> counters() {
+        return counters.values();
+    }
+
+    Map<String, LongAdder> shardMessages() {
+        return shardMessages;
+    }
+
+    static EntityCounters get(ActorSystem actorSystem) {
+        return Id.instance.get(actorSystem);
+    }
+
+    static class Counter {
+        final String shardId;
+        final String entityId;
+        final LongAdder commands = new LongAdder();
+        final LongAdder queries = new LongAdder();
+        private final LongAdder shardMessages;
+
+        private Counter(String shardId, String entityId, LongAdder shardMessages) {
+            this.shardId = shardId;
+            this.entityId = entityId;
+            this.shardMessages = shardMessages;
+        }
+
+        void command() {
+            commands.increment();
+            shardMessages.increment();
+        }
+
+        void query() {
+            queries.increment();
+            shardMessages.increment();
+        }
+    }
+
+    static class Id extends AbstractExtensionId<EntityCounters> {
+        static final Id instance = new Id();
+
+        @Override
+        public EntityCounters createExtension(ExtendedActorSystem system) {
+            return new EntityCounters();
+        }
+    }
+}
@@ -3,72 +3,105 @@ package cluster.sharding;
 import akka.cluster.sharding.ShardRegion;
 
 import java.io.Serializable;
+import java.util.List;
 
 class EntityMessage {
     static class Command implements Serializable {
         final Entity entity;
+        final String shardId;
+        final long correlationId;
+        private transient String entityId;
 
-        Command(Entity entity) {
+        Command(Entity entity, String shardId, long correlationId) {
             this.entity = entity;
+            this.shardId = shardId;
+            this.correlationId = correlationId;
+        }
+
+        // Cluster sharding asks for the entity id of a message several times on its way to the
+        // entity, so the string of a numeric id is only made once per message.
+        String entityId() {
+            if (entityId == null) {
+                entityId = entity.id.id();
+            }
+            return entityId;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), entity);
+            return String.format("%s[%s, shard %s, %d]", getClass().getSimpleName(), entity, shardId, correlationId);
         }
     }
 
     static class CommandAck implements Serializable {
         final String action;
         final Entity entity;
+        final long correlationId;
 
-        CommandAck(String action, Entity entity) {
+        CommandAck(String action, Entity entity, long correlationId) {
             this.action = action;
             this.entity = entity;
+            this.correlationId = correlationId;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s, %s]", getClass().getSimpleName(), action, entity);
+            return String.format("%s[%s, %s, %d]", getClass().getSimpleName(), action, entity, correlationId);
         }
     }
 
     static class Query implements Serializable {
         final Entity.Id id;
+        final String shardId;
+        final long correlationId;
+        private transient String entityId;
 
-        Query(Entity.Id id) {
+        Query(Entity.Id id, String shardId, long correlationId) {
             this.id = id;
+            this.shardId = shardId;
+            this.correlationId = correlationId;
+        }
+
+        String entityId() {
+            if (entityId == null) {
+                entityId = id.id();
+            }
+            return entityId;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), id);
+            return String.format("%s[%s, shard %s, %d]", getClass().getSimpleName(), id, shardId, correlationId);
         }
     }
 
     static class QueryAck implements Serializable {
         final Entity entity;
+        final long correlationId;
 
-        QueryAck(Entity entity) {
+        QueryAck(Entity entity, long correlationId) {
             this.entity = entity;
+            this.correlationId = correlationId;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), entity);
+            return String.format("%s[%s, %d]", getClass().getSimpleName(), entity, correlationId);
         }
     }
 
     static class QueryAckNotFound implements Serializable {
         final Entity.Id id;
+        final long correlationId;
 
-        QueryAckNotFound(Entity.Id id) {
+        QueryAckNotFound(Entity.Id id, long correlationId) {
             this.id = id;
+            this.correlationId = correlationId;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), id);
+            return String.format("%s[%s, %d]", getClass().getSimpleName(), id, correlationId);
         }
     }
 
@@ -97,10 +130,49 @@ class EntityMessage {
         }
     }
 
-    static ShardRegion.MessageExtractor messageExtractor() {
+    /**
+     * The net entity actions of one member collected over a short window, sent to the other nodes
+     * as one message instead of one message per action.
+     */
+    static class ActionBatch implements Serializable {
+        final String member;
+        final String[] shardIds;
+        final String[] entityIds;
+        final boolean[] starts;
+
+        ActionBatch(String member, String[] shardIds, String[] entityIds, boolean[] starts) {
+            this.member = member;
+            this.shardIds = shardIds;
+            this.entityIds = entityIds;
+            this.starts = starts;
+        }
+
+        static ActionBatch of(String member, List<Action> actions) {
+            String[] shardIds = new String[actions.size()];
+            String[] entityIds = new String[actions.size()];
+            boolean[] starts = new boolean[actions.size()];
+            for (int i = 0; i < actions.size(); i++) {
+                Action action = actions.get(i);
+                shardIds[i] = action.shardId;
+                entityIds[i] = action.entityId;
+                starts[i] = action.action.equals("start");
+            }
+            return new ActionBatch(member, shardIds, entityIds, starts);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d actions]", getClass().getSimpleName(), member, entityIds.length);
+        }
+    }
+
+    static ShardRegion.MessageExtractor messageExtractor(ShardIds shardIds) {
         return new ShardRegion.MessageExtractor() {
             @Override
             public String shardId(Object message) {
+                if (message instanceof ShardRegion.StartEntity) {
+                    return shardIds.shardId(((ShardRegion.StartEntity) message).entityId());
+                }
                 return extractShardIdFromCommands(message);
             }
 
@@ -116,13 +188,12 @@ class EntityMessage {
         };
     }
 
+    // The shard id is computed once by the sender, see ShardIds, and carried in the message.
     static String extractShardIdFromCommands(Object message) {
-        int numberOfShards = 15;
-
         if (message instanceof Command) {
-            return ((Command) message).entity.id.id.hashCode() % numberOfShards + "";
+            return ((Command) message).shardId;
         } else if (message instanceof Query) {
-            return ((Query) message).id.id.hashCode() % numberOfShards + "";
+            return ((Query) message).shardId;
         } else {
             return null;
         }
@@ -130,9 +201,9 @@ class EntityMessage {
 
     static String extractEntityIdFromCommands(Object message) {
         if (message instanceof Command) {
-            return ((Command) message).entity.id.id;
+            return ((Command) message).entityId();
         } else if (message instanceof Query) {
-            return ((Query) message).id.id;
+            return ((Query) message).entityId();
         } else {
             return null;
         }
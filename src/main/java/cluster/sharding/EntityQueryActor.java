@@ -12,8 +12,17 @@ import java.util.concurrent.TimeUnit;
 class EntityQueryActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
     private Cancellable ticker;
+    private Cancellable reportTicker;
     private FiniteDuration tickInterval = Duration.create(2, TimeUnit.SECONDS);
     private Entity.Id lastQueryId;
+    private long queryNumber;
+    private long sendTime;
+    private final long queryTimeoutNanos = context().system().settings().config()
+            .getDuration("cluster-demo.load.command-timeout", TimeUnit.NANOSECONDS);
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private final Latencies latencies = Latencies.get(context().system());
+    private final ShardIds shardIds = ShardIds.get(context().system());
+    private final KeyDistribution keys = KeyDistribution.create(context().system().settings().config().getConfig("cluster-demo.load.keys"));
     private final Receive sending;
     private final Receive receiving;
 
@@ -22,12 +31,14 @@ class EntityQueryActor extends AbstractLoggingActor {
                 .matchEquals("tick", t -> tickSending())
                 .match(EntityMessage.QueryAck.class, this::queryAckSending)
                 .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFoundSending)
+                .matchEquals("report", r -> report())
                 .build();
 
         receiving = receiveBuilder()
                 .matchEquals("tick", t -> tickReceiving())
                 .match(EntityMessage.QueryAck.class, this::queryAckReceiving)
                 .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFoundReceiving)
+                .matchEquals("report", r -> report())
                 .build();
     }
 
@@ -41,8 +52,9 @@ class EntityQueryActor extends AbstractLoggingActor {
     }
 
     private void tickSending() {
-        lastQueryId = Random.entityId(1, 100);
-        shardRegion.tell(new EntityMessage.Query(lastQueryId), self());
+        lastQueryId = keys.nextEntityId();
+        sendTime = System.nanoTime();
+        shardRegion.tell(new EntityMessage.Query(lastQueryId, shardIds.shardId(lastQueryId), ++queryNumber), self());
         getContext().become(receiving);
     }
 
@@ -54,19 +66,48 @@ class EntityQueryActor extends AbstractLoggingActor {
         log().info("Received (late) {} {}", queryAckNotFound, sender());
     }
 
+    // A query stays outstanding over the ticks until its ack arrives or it times out, when it is
+    // recorded at its age and the next query is sent.
     private void tickReceiving() {
-        log().warning("No query response to {}", lastQueryId);
-        getContext().become(sending);
+        long age = System.nanoTime() - sendTime;
+        if (age >= queryTimeoutNanos) {
+            log().warning("No query response to {}", lastQueryId);
+            latencyHistogram.recordValue(age / 1000, tickInterval.toMicros());
+            tickSending();
+        }
     }
 
     private void queryAckReceiving(EntityMessage.QueryAck queryAck) {
-        log().info("Received {} {}", queryAck, sender());
-        getContext().become(sending);
+        if (queryAck.correlationId == queryNumber) {
+            log().info("Received {} {}", queryAck, sender());
+            recordLatency();
+            getContext().become(sending);
+        } else {
+            queryAckSending(queryAck);
+        }
     }
 
     private void queryAckNotFoundReceiving(EntityMessage.QueryAckNotFound queryAckNotFound) {
-        log().info("Received {} {}", queryAckNotFound, sender());
-        getContext().become(sending);
+        if (queryAckNotFound.correlationId == queryNumber) {
+            log().info("Received {} {}", queryAckNotFound, sender());
+            recordLatency();
+            getContext().become(sending);
+        } else {
+            queryAckNotFoundSending(queryAckNotFound);
+        }
+    }
+
+    // A query is sent every tick unless the previous one is still waiting for its ack, so the
+    // queries that a slow ack kept from being sent are filled in from the tick interval.
+    private void recordLatency() {
+        latencyHistogram.recordValue((System.nanoTime() - sendTime) / 1000, tickInterval.toMicros());
+    }
+
+    private void report() {
+        LatencyHistogram.Summary summary = latencyHistogram.summary(System.currentTimeMillis());
+        latencyHistogram.reset();
+        latencies.publish("queries", summary);
+        log().info("Queries {}", summary);
     }
 
     @Override
@@ -80,12 +121,23 @@ class EntityQueryActor extends AbstractLoggingActor {
                 context().system().dispatcher(),
                 null
         );
+        FiniteDuration reportInterval = Duration.create(context().system().settings().config()
+                .getDuration("cluster-demo.load.report-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        reportTicker = context().system().scheduler().schedule(
+                reportInterval,
+                reportInterval,
+                self(),
+                "report",
+                context().system().dispatcher(),
+                null
+        );
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
         ticker.cancel();
+        reportTicker.cancel();
     }
 
     static Props props(ActorRef shardRegion) {
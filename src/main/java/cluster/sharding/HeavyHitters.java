@@ -0,0 +1,149 @@
+package cluster.sharding;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitters sketch. At most capacity keys are counted. A key that is not yet
+ * counted when the sketch is full takes the place of the key with the smallest count and starts
+ * from that count, which is remembered as its error. So a count overestimates the real count of
+ * its key by at most the error, and any key seen more often than the smallest count is counted.
+ * <p>
+ * The counted keys are kept in a min heap over parallel arrays, so an offer is O(log capacity).
+ */
+class HeavyHitters {
+    private final int capacity;
+    private final String[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<String, Integer> positions;
+    private int size;
+
+    HeavyHitters(int capacity) {
+        this.capacity = capacity;
+        keys = new String[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        positions = new HashMap<>(capacity * 2);
+    }
+
+    void offer(String key, long count) {
+        Integer position = positions.get(key);
+        if (position != null) {
+            counts[position] += count;
+            siftDown(position);
+        } else if (size < capacity) {
+            set(size, key, count, 0);
+            siftUp(size++);
+        } else {
+            positions.remove(keys[0]);
+            set(0, key, counts[0] + count, counts[0]);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Halves all counts and errors and drops the keys that are left with a zero count, so the
+     * sketch follows the recent events instead of all events since it was created.
+     */
+    void decay() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (counts[i] > 1) {
+                set(kept++, keys[i], counts[i] / 2, errors[i] / 2);
+            } else {
+                positions.remove(keys[i]);
+            }
+        }
+        for (int i = kept; i < size; i++) {
+            keys[i] = null;
+        }
+        size = kept;
+        // Halving keeps the heap order, but compacting the arrays may not.
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the i-th counted key, in no particular order. */
+    String key(int i) {
+        return keys[i];
+    }
+
+    long count(int i) {
+        return counts[i];
+    }
+
+    long error(int i) {
+        return errors[i];
+    }
+
+    /** Returns the count of the given key, or 0 when the key is not counted. */
+    long count(String key) {
+        Integer position = positions.get(key);
+        return position == null ? 0 : counts[position];
+    }
+
+    long error(String key) {
+        Integer position = positions.get(key);
+        return position == null ? 0 : errors[position];
+    }
+
+    private void set(int position, String key, long count, long error) {
+        keys[position] = key;
+        counts[position] = count;
+        errors[position] = error;
+        positions.put(key, position);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (counts[parent] <= counts[position]) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                break;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = keys[i];
+        long count = counts[i];
+        long error = errors[i];
+        set(i, keys[j], counts[j], errors[j]);
+        set(j, key, count, error);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d/%d]", getClass().getSimpleName(), size, capacity);
+    }
+}
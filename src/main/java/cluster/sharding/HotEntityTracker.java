@@ -0,0 +1,120 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.*;
+
+/**
+ * Tracks the most active entities of the cluster. The events of the entities of this node are
+ * counted in one heavy hitters sketch per shard. The hot entities of every member, this one
+ * included, are kept as last reported by that member and merged into per shard, per member, and
+ * cluster wide top lists.
+ */
+class HotEntityTracker {
+    private static final ObjectWriter jsonWriter = new ObjectMapper().writer();
+    private final int capacity;
+    private final int top;
+    private final Map<String, HeavyHitters> shards = new HashMap<>();
+    private final Map<String, HttpServerActor.HotEntities> members = new HashMap<>();
+
+    HotEntityTracker(int capacity, int top) {
+        this.capacity = capacity;
+        this.top = top;
+    }
+
+    void offer(String shardId, String entityId, long events) {
+        shards.computeIfAbsent(shardId, s -> new HeavyHitters(capacity)).offer(entityId, events);
+    }
+
+    /**
+     * Returns the top entities of each shard of this node, then halves their counts, so entities
+     * that are no longer active fade out.
+     */
+    HttpServerActor.HotEntities report(String memberId) {
+        List<HotEntity> hotEntities = new ArrayList<>();
+        shards.forEach((shardId, heavyHitters) -> {
+            List<HotEntity> shardHotEntities = new ArrayList<>(heavyHitters.size());
+            for (int i = 0; i < heavyHitters.size(); i++) {
+                shardHotEntities.add(new HotEntity(memberId, shardId, heavyHitters.key(i), heavyHitters.count(i), heavyHitters.error(i)));
+            }
+            hotEntities.addAll(top(shardHotEntities));
+        });
+        shards.values().forEach(HeavyHitters::decay);
+        shards.values().removeIf(HeavyHitters::isEmpty);
+        return HttpServerActor.HotEntities.of(memberId, hotEntities);
+    }
+
+    /** Keeps the hot entities reported by a member, returns the ones it reported before or null. */
+    HttpServerActor.HotEntities update(HttpServerActor.HotEntities hotEntities) {
+        return members.put(hotEntities.memberId, hotEntities);
+    }
+
+    void remove(String memberId) {
+        members.remove(memberId);
+    }
+
+    /** Returns the top entities of the given member, most active first. */
+    List<HotEntity> memberTop(String memberId) {
+        HttpServerActor.HotEntities hotEntities = members.get(memberId);
+        return hotEntities == null ? Collections.emptyList() : top(hotEntities.toList());
+    }
+
+    String toJson() {
+        Report report = new Report();
+        List<HotEntity> all = new ArrayList<>();
+        members.values().forEach(m -> all.addAll(m.toList()));
+        report.cluster = top(merge(all));
+        members.keySet().forEach(memberId -> report.members.put(memberId, memberTop(memberId)));
+        Map<String, List<HotEntity>> byShard = new HashMap<>();
+        all.forEach(hotEntity -> byShard.computeIfAbsent(hotEntity.shard, s -> new ArrayList<>()).add(hotEntity));
+        byShard.forEach((shardId, hotEntities) -> report.shards.put(shardId, top(merge(hotEntities))));
+        try {
+            return jsonWriter.writeValueAsString(report);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    // While a shard is handed over the same entity may be reported by two members. Space-Saving
+    // sketches merge by adding the counts and the errors of the same key.
+    private static List<HotEntity> merge(List<HotEntity> hotEntities) {
+        Map<String, HotEntity> merged = new HashMap<>();
+        hotEntities.forEach(hotEntity -> merged.merge(hotEntity.entity, hotEntity, (h1, h2) ->
+                new HotEntity(h1.count >= h2.count ? h1.member : h2.member, h1.shard, h1.entity, h1.count + h2.count, h1.error + h2.error)));
+        return new ArrayList<>(merged.values());
+    }
+
+    private List<HotEntity> top(List<HotEntity> hotEntities) {
+        hotEntities.sort(Comparator.comparingLong((HotEntity h) -> h.count).reversed().thenComparing(h -> h.entity));
+        return hotEntities.size() > top ? new ArrayList<>(hotEntities.subList(0, top)) : hotEntities;
+    }
+
+    public static class HotEntity {
+        public final String member;
+        public final String shard;
+        public final String entity;
+        public final long count;
+        public final long error;
+
+        HotEntity(String member, String shard, String entity, long count, long error) {
+            this.member = member;
+            this.shard = shard;
+            this.entity = entity;
+            this.count = count;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s, %s, %d, %d]", getClass().getSimpleName(), member, shard, entity, count, error);
+        }
+    }
+
+    public static class Report {
+        public List<HotEntity> cluster;
+        public final Map<String, List<HotEntity>> members = new TreeMap<>();
+        public final Map<String, List<HotEntity>> shards = new TreeMap<>();
+    }
+}
@@ -1,13 +1,11 @@
 package cluster.sharding;
 
 import akka.NotUsed;
-import akka.actor.AbstractLoggingActor;
-import akka.actor.ActorSelection;
-import akka.actor.ActorSystem;
-import akka.actor.Props;
+import akka.actor.*;
 import akka.cluster.Cluster;
-import akka.cluster.Member;
+import akka.cluster.ClusterEvent;
 import akka.cluster.MemberStatus;
+import akka.cluster.ddata.*;
 import akka.http.javadsl.ConnectHttp;
 import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
@@ -17,35 +15,97 @@ import akka.http.javadsl.model.ws.TextMessage;
 import akka.http.javadsl.model.ws.WebSocket;
 import akka.japi.JavaPartialFunction;
 import akka.stream.ActorMaterializer;
+import akka.stream.ActorMaterializerSettings;
 import akka.stream.javadsl.Flow;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 public class HttpServerActor extends AbstractLoggingActor {
+    private static final ObjectWriter jsonWriter = new ObjectMapper().writer();
     private ActorSystem actorSystem = context().system();
-    private ActorMaterializer actorMaterializer = ActorMaterializer.create(actorSystem);
+    // The HTTP request handlers run on the dispatcher of this actor, next to the tree they read.
+    private ActorMaterializer actorMaterializer = ActorMaterializer.create(
+            ActorMaterializerSettings.create(actorSystem).withDispatcher(context().props().dispatcher()), actorSystem);
     private final Cluster cluster = Cluster.get(actorSystem);
-    private final Tree tree = new Tree("cluster", "cluster");
+    private final Tree tree = new Tree("cluster", "cluster", actorSystem.settings().config().getInt("cluster-demo.monitor.tree-delta-log-size"));
+    private final FiniteDuration snapshotInterval = Duration.create(
+            actorSystem.settings().config().getDuration("cluster-demo.monitor.tree-snapshot-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final ActorRef httpServer = self();
+    private final FiniteDuration forwardBatchWindow = Duration.create(
+            actorSystem.settings().config().getDuration("cluster-demo.monitor.forward-batch-window", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final PendingActions pendingActions = new PendingActions();
+    private final boolean replicateWithDistributedData = actorSystem.settings().config()
+            .getString("cluster-demo.monitor.replication").equals("distributed-data");
+    private final Key<ORMultiMap<String, String>> treeKey = ORMultiMapKey.create("cluster-tree");
+    private final Map<String, Set<String>> replicatedEntities = new HashMap<>();
+    private final FiniteDuration peerIdentifyRetryInterval = Duration.create(1, TimeUnit.SECONDS);
+    private final FiniteDuration antiEntropyInterval = Duration.create(
+            actorSystem.settings().config().getDuration("cluster-demo.monitor.anti-entropy-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final PeerCache peers = new PeerCache();
+    private volatile Tree.Snapshot treeSnapshot;
+    private final Statistics statistics = new Statistics(
+            actorSystem.settings().config().getInt("cluster-demo.monitor.statistics-count"),
+            (int) actorSystem.settings().config().getDuration("cluster-demo.monitor.statistics-interval", TimeUnit.MILLISECONDS));
+    private final EntityCounters entityCounters = EntityCounters.get(actorSystem);
+    private final ClusterLoad clusterLoad = ClusterLoad.get(actorSystem);
+    private volatile String statisticsJson;
+    private final HotEntityTracker hotEntityTracker = new HotEntityTracker(
+            actorSystem.settings().config().getInt("cluster-demo.monitor.hot-entities-capacity"),
+            actorSystem.settings().config().getInt("cluster-demo.monitor.hot-entities-top"));
+    private volatile String hotEntitiesJson = "{}";
+    private final MailboxMetrics mailboxMetrics = MailboxMetrics.get(actorSystem);
+    private volatile String mailboxesJson = "{}";
+    private Cancellable ticker;
+    private Cancellable statisticsTicker;
+    private Cancellable hotEntitiesTicker;
+    private Cancellable mailboxesTicker;
+    private Cancellable flushTimer;
+    private Cancellable antiEntropyTicker;
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(EntityMessage.Action.class, this::actionEntity)
+                .match(EntityMessage.ActionBatch.class, this::actionEntityBatch)
+                .matchEquals("flushActions", f -> flushActions())
                 .match(ClusterSingletonActor.Action.class, this::actionSingleton)
                 .match(StopNode.class, this::stopNode)
+                .match(BroadcastStopNode.class, this::broadcastStopNode)
+                .matchEquals("tick", t -> publishTreeSnapshot())
+                .matchEquals("sampleStatistics", s -> sampleStatistics())
+                .matchEquals("reportHotEntities", r -> reportHotEntities())
+                .matchEquals("reportMailboxes", r -> mailboxesJson = mailboxMetrics.report())
+                .match(HotEntities.class, this::hotEntities)
+                .match(LoadAwareAllocationStrategy.Rebalanced.class, this::shardRebalanced)
+                .match(Replicator.Changed.class, this::treeChanged)
+                .match(Replicator.UpdateSuccess.class, u -> {})
+                .match(Replicator.UpdateFailure.class, this::treeUpdateFailed)
+                .match(ClusterEvent.MemberUp.class, this::memberUp)
+                .match(ClusterEvent.MemberRemoved.class, this::memberRemoved)
+                .match(IdentifyPeer.class, this::identifyPeer)
+                .match(ActorIdentity.class, this::peerIdentified)
+                .match(Terminated.class, this::peerTerminated)
+                .matchEquals("antiEntropy", a -> antiEntropy())
+                .match(TreeDigest.class, this::treeDigest)
+                .match(TreeRepairRequest.class, this::treeRepairRequest)
+                .match(TreeRepair.class, this::treeRepair)
                 .build();
     }
 
@@ -57,10 +117,214 @@ public class HttpServerActor extends AbstractLoggingActor {
             tree.remove(action.member, action.shardId, action.entityId);
         }
         if (action.forward) {
-            forwardAction(action.asNoForward());
+            batchAction(action);
+        }
+    }
+
+    private void actionEntityBatch(EntityMessage.ActionBatch batch) {
+        log().info("Entity {} <-- {}", batch, sender());
+        for (int i = 0; i < batch.entityIds.length; i++) {
+            if (batch.starts[i]) {
+                tree.add(batch.member, batch.shardIds[i], batch.entityIds[i]);
+            } else {
+                tree.remove(batch.member, batch.shardIds[i], batch.entityIds[i]);
+            }
+        }
+    }
+
+    // Entity actions are forwarded to the other nodes in batches. Only the net effect of the
+    // actions seen for an entity within the batch window is sent, so a start followed by a stop
+    // cancels out.
+    private void batchAction(EntityMessage.Action action) {
+        pendingActions.add(action);
+        if (flushTimer == null) {
+            flushTimer = context().system().scheduler().scheduleOnce(
+                    forwardBatchWindow,
+                    self(),
+                    "flushActions",
+                    context().system().dispatcher(),
+                    null);
+        }
+    }
+
+    private void flushActions() {
+        if (flushTimer != null) {
+            flushTimer.cancel();
+            flushTimer = null;
+        }
+        Map<String, List<EntityMessage.Action>> actionsByMember = pendingActions.drain();
+        if (replicateWithDistributedData) {
+            actionsByMember.forEach(this::replicateActions);
+        } else {
+            actionsByMember.forEach((member, actions) -> forwardAction(EntityMessage.ActionBatch.of(member, actions)));
+        }
+    }
+
+    // With distributed data each node only writes the entities of its own member into a shared
+    // member -> "shardId/entityId" multi map. Replication to the other nodes is done by gossip.
+    private void replicateActions(String memberId, List<EntityMessage.Action> actions) {
+        SelfUniqueAddress node = DistributedData.get(actorSystem).selfUniqueAddress();
+        replicator().tell(new Replicator.Update<>(treeKey, ORMultiMap.emptyWithValueDeltas(), Replicator.writeLocal(), map -> {
+            for (EntityMessage.Action action : actions) {
+                String entityKey = action.shardId + "/" + action.entityId;
+                if (action.action.equals("start")) {
+                    map = map.addBinding(node, memberId, entityKey);
+                } else {
+                    map = map.removeBinding(node, memberId, entityKey);
+                }
+            }
+            return map;
+        }), self());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void treeChanged(Replicator.Changed<?> changed) {
+        Map<String, Set<String>> entries = ((Replicator.Changed<ORMultiMap<String, String>>) changed).get(treeKey).getEntries();
+        String selfMemberId = cluster.selfAddress().toString();
+
+        Set<String> memberIds = new HashSet<>(replicatedEntities.keySet());
+        memberIds.addAll(entries.keySet());
+        memberIds.remove(selfMemberId);
+
+        for (String memberId : memberIds) {
+            Set<String> entityKeys = entries.getOrDefault(memberId, Collections.emptySet());
+            if (!entityKeys.equals(replicatedEntities.get(memberId))) {
+                tree.syncMember(memberId, entityIdsByShard(entityKeys));
+                if (entityKeys.isEmpty()) {
+                    replicatedEntities.remove(memberId);
+                } else {
+                    replicatedEntities.put(memberId, entityKeys);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Set<String>> entityIdsByShard(Set<String> entityKeys) {
+        Map<String, Set<String>> entityIdsByShard = new HashMap<>();
+        entityKeys.forEach(entityKey -> {
+            int separator = entityKey.indexOf('/');
+            entityIdsByShard.computeIfAbsent(entityKey.substring(0, separator), s -> new HashSet<>())
+                    .add(entityKey.substring(separator + 1));
+        });
+        return entityIdsByShard;
+    }
+
+    private void treeUpdateFailed(Replicator.UpdateFailure<?> updateFailure) {
+        log().warning("Tree update failed {}", updateFailure);
+    }
+
+    private void memberUp(ClusterEvent.MemberUp memberUp) {
+        Address address = memberUp.member().address();
+        if (!address.equals(cluster.selfAddress())) {
+            peers.unresolved(address);
+            identifyPeer(new IdentifyPeer(address));
+        }
+    }
+
+    private void memberRemoved(ClusterEvent.MemberRemoved memberRemoved) {
+        Address address = memberRemoved.member().address();
+        hotEntityTracker.remove(address.toString());
+        hotEntitiesJson = hotEntityTracker.toJson();
+        ActorRef peer = peers.remove(address);
+        if (peer != null) {
+            context().unwatch(peer);
+        }
+
+        if (replicateWithDistributedData) {
+            SelfUniqueAddress node = DistributedData.get(actorSystem).selfUniqueAddress();
+            String memberId = address.toString();
+            replicator().tell(new Replicator.Update<>(treeKey, ORMultiMap.emptyWithValueDeltas(), Replicator.writeLocal(),
+                    map -> map.remove(node, memberId)), self());
+        }
+    }
+
+    // The HTTP server actor of each other Up member is resolved once, so forwarding is a plain
+    // tell to each cached ActorRef instead of building an actor selection per message.
+    private void identifyPeer(IdentifyPeer identifyPeer) {
+        if (peers.isUnresolved(identifyPeer.address)) {
+            context().actorSelection(httpServerPath(identifyPeer.address)).tell(new Identify(identifyPeer.address), self());
+        }
+    }
+
+    private void peerIdentified(ActorIdentity actorIdentity) {
+        Address address = (Address) actorIdentity.correlationId();
+        if (peers.isUnresolved(address)) {
+            Optional<ActorRef> peer = actorIdentity.getActorRef();
+            if (peer.isPresent()) {
+                log().info("Peer {} resolved", peer.get());
+                peers.resolved(address, peer.get());
+                context().watch(peer.get());
+            } else {
+                context().system().scheduler().scheduleOnce(
+                        peerIdentifyRetryInterval,
+                        self(),
+                        new IdentifyPeer(address),
+                        context().system().dispatcher(),
+                        self());
+            }
         }
     }
 
+    private void peerTerminated(Terminated terminated) {
+        Address address = terminated.actor().path().address();
+        if (peers.remove(address) != null) {
+            cluster.state().getMembers().forEach(member -> {
+                if (member.address().equals(address) && member.status().equals(MemberStatus.up())) {
+                    peers.unresolved(address);
+                    identifyPeer(new IdentifyPeer(address));
+                }
+            });
+        }
+    }
+
+    // Forwarded actions are fire and forget, so a lost batch would leave the other nodes wrong
+    // until the entities change again. Each node periodically sends a digest of its own entities
+    // per shard, and peers ask for the entities of the shards whose digest differs from theirs.
+    private void antiEntropy() {
+        flushActions();
+        String selfMemberId = cluster.selfAddress().toString();
+        forwardAction(new TreeDigest(selfMemberId, tree.memberDigest(selfMemberId), tree.shardDigests(selfMemberId)));
+
+        Set<String> clusterMemberIds = new HashSet<>();
+        cluster.state().getMembers().forEach(member -> clusterMemberIds.add(member.address().toString()));
+        tree.memberIds().stream()
+                .filter(memberId -> !clusterMemberIds.contains(memberId))
+                .forEach(memberId -> tree.syncMember(memberId, Collections.emptyMap()));
+    }
+
+    private void treeDigest(TreeDigest treeDigest) {
+        if (tree.memberDigest(treeDigest.memberId) != treeDigest.memberDigest) {
+            Map<String, Long> shardDigests = tree.shardDigests(treeDigest.memberId);
+            ArrayList<String> shardIds = new ArrayList<>();
+            treeDigest.shardDigests.forEach((shardId, digest) -> {
+                if (!digest.equals(shardDigests.get(shardId))) {
+                    shardIds.add(shardId);
+                }
+            });
+            shardDigests.keySet().stream()
+                    .filter(shardId -> !treeDigest.shardDigests.containsKey(shardId))
+                    .forEach(shardIds::add);
+            log().info("{} diverged shards {} <-- {}", treeDigest, shardIds, sender());
+            sender().tell(new TreeRepairRequest(treeDigest.memberId, shardIds), self());
+        }
+    }
+
+    private void treeRepairRequest(TreeRepairRequest treeRepairRequest) {
+        if (treeRepairRequest.memberId.equals(cluster.selfAddress().toString())) {
+            Map<String, Set<String>> entityIds = tree.entityIds(treeRepairRequest.memberId, treeRepairRequest.shardIds);
+            sender().tell(new TreeRepair(treeRepairRequest.memberId, entityIds), self());
+        }
+    }
+
+    private void treeRepair(TreeRepair treeRepair) {
+        log().info("{} <-- {}", treeRepair, sender());
+        treeRepair.entityIdsByShard.forEach((shardId, entityIds) -> tree.syncShard(treeRepair.memberId, shardId, entityIds));
+    }
+
+    private ActorRef replicator() {
+        return DistributedData.get(actorSystem).replicator();
+    }
+
     private void actionSingleton(ClusterSingletonActor.Action action) {
         log().info("Singleton {} <-- {}", action, sender());
         if (action.action.equals("start")) {
@@ -81,41 +345,175 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
     }
 
-    private void forwardAction(Object action) {
-        cluster.state().getMembers().forEach(member -> {
-            if (!cluster.selfMember().equals(member) && member.status().equals(MemberStatus.up())) {
-                forwardAction(action, member);
+    private void broadcastStopNode(BroadcastStopNode broadcastStopNode) {
+        StopNode stopNode = new StopNode(broadcastStopNode.memberAddress);
+        self().tell(stopNode, self());
+        forwardAction(stopNode);
+    }
+
+    // The tree is only touched on the actor thread. HTTP requests are handled on stream threads,
+    // so they only read the last immutable snapshot published here.
+    private void publishTreeSnapshot() {
+        tree.setMemberType(cluster.selfAddress().toString(), "httpServer");
+        treeSnapshot = tree.snapshot();
+    }
+
+    // Samples the entities hosted on this node and the commands they handled since the last
+    // sample, and counts the commands and queries of each entity in the hot entity sketches.
+    // The HTTP request handlers read the published JSON, never the ring itself.
+    private void sampleStatistics() {
+        long commandCount = 0;
+        for (EntityCounters.Counter counter : entityCounters.counters()) {
+            long commands = counter.commands.sumThenReset();
+            long events = commands + counter.queries.sumThenReset();
+            if (events > 0) {
+                hotEntityTracker.offer(counter.shardId, counter.entityId, events);
+                commandCount += commands;
             }
+        }
+        statistics.add(System.currentTimeMillis(), tree.entityCount(cluster.selfAddress().toString()), (int) Math.min(Integer.MAX_VALUE, commandCount));
+        statisticsJson = statistics.toJson();
+        markHotShards();
+    }
+
+    private void reportHotEntities() {
+        HotEntities hotEntities = hotEntityTracker.report(cluster.selfAddress().toString());
+        hotEntities(hotEntities);
+        forwardAction(hotEntities);
+    }
+
+    // Only the top entities of each member are shown as tree events, which keeps the number of
+    // tree changes per report small. Entities that dropped out of the top are reset to zero.
+    private void hotEntities(HotEntities hotEntities) {
+        List<HotEntityTracker.HotEntity> previousTop = hotEntityTracker.memberTop(hotEntities.memberId);
+        hotEntityTracker.update(hotEntities);
+        List<HotEntityTracker.HotEntity> top = hotEntityTracker.memberTop(hotEntities.memberId);
+
+        Set<String> topEntityIds = new HashSet<>();
+        top.forEach(hotEntity -> {
+            tree.setEvents(hotEntity.member, hotEntity.shard, hotEntity.entity, (int) Math.min(Integer.MAX_VALUE, hotEntity.count));
+            topEntityIds.add(hotEntity.entity);
         });
+        previousTop.stream()
+                .filter(hotEntity -> !topEntityIds.contains(hotEntity.entity))
+                .forEach(hotEntity -> tree.setEvents(hotEntity.member, hotEntity.shard, hotEntity.entity, 0));
+        hotEntitiesJson = hotEntityTracker.toJson();
     }
 
-    private void forwardAction(Object action, Member member) {
-        String httpServerPath = member.address().toString() + self().path().toStringWithoutAddress();
-        ActorSelection httpServer = context().actorSelection(httpServerPath);
-        log().debug("{} --> {}", action, httpServer);
-        httpServer.tell(action, self());
+    // Hot shards are flagged by the node that hosts them and replicated to every node with the
+    // shard rates, so each node marks them in its own tree without forwarding anything.
+    private void markHotShards() {
+        Map<String, ClusterLoad.ShardRates> shardRates = clusterLoad.shardRates();
+        for (String memberId : tree.memberIds()) {
+            Map<String, Integer> hotShardRates = new HashMap<>();
+            ClusterLoad.ShardRates rates = shardRates.get(memberId);
+            for (int i = 0; rates != null && i < rates.shardIds.length; i++) {
+                if (rates.hot[i]) {
+                    hotShardRates.put(rates.shardIds[i], (int) Math.round(rates.rates[i]));
+                }
+            }
+            tree.setHotShards(memberId, hotShardRates);
+        }
+    }
+
+    // Rebalance decisions are published on the event stream of the node that runs the shard
+    // coordinator, and forwarded from there to the other nodes.
+    private void shardRebalanced(LoadAwareAllocationStrategy.Rebalanced rebalanced) {
+        log().info("{} <-- {}", rebalanced, sender());
+        tree.rebalance(rebalanced.fromMember, rebalanced.shardId, rebalanced.toMember);
+        if (rebalanced.forward) {
+            forwardAction(rebalanced.asNoForward());
+        }
+    }
+
+    private void forwardAction(Object action) {
+        peers.resolved().forEach(peer -> {
+            log().debug("{} --> {}", action, peer);
+            peer.tell(action, self());
+        });
+    }
+
+    private String httpServerPath(Address address) {
+        return address.toString() + self().path().toStringWithoutAddress();
     }
 
     @Override
     public void preStart() {
         log().info("Start");
+        publishTreeSnapshot();
+        statisticsJson = statistics.toJson();
+        cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
+                ClusterEvent.MemberUp.class, ClusterEvent.MemberRemoved.class);
+        actorSystem.eventStream().subscribe(self(), LoadAwareAllocationStrategy.Rebalanced.class);
+        if (replicateWithDistributedData) {
+            replicator().tell(new Replicator.Subscribe<>(treeKey, self()), self());
+        } else {
+            antiEntropyTicker = context().system().scheduler().schedule(
+                    antiEntropyInterval,
+                    antiEntropyInterval,
+                    self(),
+                    "antiEntropy",
+                    context().system().dispatcher(),
+                    null);
+        }
+        ticker = context().system().scheduler().schedule(
+                snapshotInterval,
+                snapshotInterval,
+                self(),
+                "tick",
+                context().system().dispatcher(),
+                null);
+        FiniteDuration statisticsInterval = Duration.create(statistics.intervalTimeMillis, TimeUnit.MILLISECONDS);
+        statisticsTicker = context().system().scheduler().schedule(
+                statisticsInterval,
+                statisticsInterval,
+                self(),
+                "sampleStatistics",
+                context().system().dispatcher(),
+                null);
+        FiniteDuration hotEntitiesInterval = Duration.create(
+                actorSystem.settings().config().getDuration("cluster-demo.monitor.hot-entities-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        hotEntitiesTicker = context().system().scheduler().schedule(
+                hotEntitiesInterval,
+                hotEntitiesInterval,
+                self(),
+                "reportHotEntities",
+                context().system().dispatcher(),
+                null);
+        FiniteDuration mailboxesInterval = Duration.create(
+                actorSystem.settings().config().getDuration("cluster-demo.monitor.mailbox-report-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        mailboxesTicker = context().system().scheduler().schedule(
+                mailboxesInterval,
+                mailboxesInterval,
+                self(),
+                "reportMailboxes",
+                context().system().dispatcher(),
+                null);
         startHttpServer();
     }
 
     private void startHttpServer() {
-        int serverPort = 8080;
+        String serverHostname = actorSystem.settings().config().getString("cluster-demo.http.hostname");
+        int serverPort = actorSystem.settings().config().getInt("cluster-demo.http.port");
 
         try {
+            if (serverHostname.isEmpty()) {
+                serverHostname = InetAddress.getLocalHost().getHostName();
+            }
             CompletionStage<ServerBinding> serverBindingCompletionStage = Http.get(actorSystem)
-                    .bindAndHandleSync(this::handleHttpRequest, ConnectHttp.toHost(InetAddress.getLocalHost().getHostName(), serverPort), actorMaterializer);
+                    .bindAndHandleSync(this::handleHttpRequest, ConnectHttp.toHost(serverHostname, serverPort), actorMaterializer);
 
-            serverBindingCompletionStage.toCompletableFuture().get(15, TimeUnit.SECONDS);
+            // Not waiting for the binding keeps the dispatcher thread free. The callback runs
+            // outside of the actor, so it logs with the actor system logger.
+            serverBindingCompletionStage.whenComplete((serverBinding, e) -> {
+                if (e == null) {
+                    actorSystem.log().info("HTTP server started on {}", serverBinding.localAddress());
+                } else {
+                    actorSystem.log().error(e, "Monitor HTTP server error");
+                }
+            });
         } catch (UnknownHostException e) {
             log().error(e, "Unable to access hostname");
-        } catch (InterruptedException | TimeoutException | ExecutionException e) {
-            log().error(e, "Monitor HTTP server error");
-        } finally {
-            log().info("HTTP server started on port {}", serverPort);
         }
     }
 
@@ -130,6 +528,28 @@ public class HttpServerActor extends AbstractLoggingActor {
                 return htmlFileResponse("monitor2.html");
             case "/monitor3":
                 return htmlFileResponse("monitor3.html");
+            case "/statistics":
+                return htmlFileResponse("statistics.html");
+            case "/hot-entities":
+                return HttpResponse.create()
+                        .withEntity(ContentTypes.APPLICATION_JSON, hotEntitiesJson)
+                        .withStatus(StatusCodes.OK);
+            case "/latency":
+                return HttpResponse.create()
+                        .withEntity(ContentTypes.APPLICATION_JSON, Latencies.get(actorSystem).toJson())
+                        .withStatus(StatusCodes.OK);
+            case "/mailboxes":
+                return HttpResponse.create()
+                        .withEntity(ContentTypes.APPLICATION_JSON, mailboxesJson)
+                        .withStatus(StatusCodes.OK);
+            case "/entity-cache":
+                return HttpResponse.create()
+                        .withEntity(ContentTypes.APPLICATION_JSON, EntityCache.get(actorSystem).toJson())
+                        .withStatus(StatusCodes.OK);
+            case "/statistics.json":
+                return HttpResponse.create()
+                        .withEntity(ContentTypes.APPLICATION_JSON, statisticsJson)
+                        .withStatus(StatusCodes.OK);
             case "/d3/d3.js":
                 return jsFileResponse("d3/d3.js");
             case "/d3/d3.geom.js":
@@ -207,23 +627,41 @@ public class HttpServerActor extends AbstractLoggingActor {
     private Message handleClientMessage(Message message) {
         String messageText = message.asTextMessage().getStrictText();
         if (messageText.startsWith("akka.tcp")) {
-            broadcastStopNode(messageText);
+            httpServer.tell(new BroadcastStopNode(messageText), ActorRef.noSender());
+        } else if (messageText.startsWith("since:")) {
+            return getTreeUpdateAsJson(messageText.substring("since:".length()));
+        } else if (messageText.equals("statistics")) {
+            return TextMessage.create(statisticsJson);
         }
         return getTreeAsJson();
     }
 
-    private void broadcastStopNode(String memberAddress) {
-        cluster.state().getMembers().forEach(member -> forwardAction(new StopNode(memberAddress), member));
+    private Message getTreeAsJson() {
+        return TextMessage.create(treeSnapshot.toJson());
     }
 
-    private Message getTreeAsJson() {
-        tree.setMemberType(cluster.selfAddress().toString(), "httpServer");
-        return TextMessage.create(tree.toJson());
+    private Message getTreeUpdateAsJson(String sinceVersion) {
+        try {
+            return TextMessage.create(treeSnapshot.toJson(Long.parseLong(sinceVersion.trim())));
+        } catch (NumberFormatException e) {
+            return TextMessage.create(treeSnapshot.toJson(-1));
+        }
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
+        cluster.unsubscribe(self());
+        ticker.cancel();
+        statisticsTicker.cancel();
+        hotEntitiesTicker.cancel();
+        mailboxesTicker.cancel();
+        if (flushTimer != null) {
+            flushTimer.cancel();
+        }
+        if (antiEntropyTicker != null) {
+            antiEntropyTicker.cancel();
+        }
     }
 
     static Props props() {
@@ -243,15 +681,223 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
     }
 
+    static class TreeDigest implements Serializable {
+        final String memberId;
+        final long memberDigest;
+        final Map<String, Long> shardDigests;
+
+        TreeDigest(String memberId, long memberDigest, Map<String, Long> shardDigests) {
+            this.memberId = memberId;
+            this.memberDigest = memberDigest;
+            this.shardDigests = shardDigests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %x, %d shards]", getClass().getSimpleName(), memberId, memberDigest, shardDigests.size());
+        }
+    }
+
+    static class HotEntities implements Serializable {
+        final String memberId;
+        final String[] shardIds;
+        final String[] entityIds;
+        final long[] counts;
+        final long[] errors;
+
+        HotEntities(String memberId, String[] shardIds, String[] entityIds, long[] counts, long[] errors) {
+            this.memberId = memberId;
+            this.shardIds = shardIds;
+            this.entityIds = entityIds;
+            this.counts = counts;
+            this.errors = errors;
+        }
+
+        static HotEntities of(String memberId, List<HotEntityTracker.HotEntity> hotEntities) {
+            String[] shardIds = new String[hotEntities.size()];
+            String[] entityIds = new String[hotEntities.size()];
+            long[] counts = new long[hotEntities.size()];
+            long[] errors = new long[hotEntities.size()];
+            for (int i = 0; i < hotEntities.size(); i++) {
+                HotEntityTracker.HotEntity hotEntity = hotEntities.get(i);
+                shardIds[i] = hotEntity.shard;
+                entityIds[i] = hotEntity.entity;
+                counts[i] = hotEntity.count;
+                errors[i] = hotEntity.error;
+            }
+            return new HotEntities(memberId, shardIds, entityIds, counts, errors);
+        }
+
+        List<HotEntityTracker.HotEntity> toList() {
+            List<HotEntityTracker.HotEntity> hotEntities = new ArrayList<>(entityIds.length);
+            for (int i = 0; i < entityIds.length; i++) {
+                hotEntities.add(new HotEntityTracker.HotEntity(memberId, shardIds[i], entityIds[i], counts[i], errors[i]));
+            }
+            return hotEntities;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d entities]", getClass().getSimpleName(), memberId, entityIds.length);
+        }
+    }
+
+    static class TreeRepairRequest implements Serializable {
+        final String memberId;
+        final List<String> shardIds;
+
+        TreeRepairRequest(String memberId, List<String> shardIds) {
+            this.memberId = memberId;
+            this.shardIds = shardIds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), memberId, shardIds);
+        }
+    }
+
+    static class TreeRepair implements Serializable {
+        final String memberId;
+        final Map<String, Set<String>> entityIdsByShard;
+
+        TreeRepair(String memberId, Map<String, Set<String>> entityIdsByShard) {
+            this.memberId = memberId;
+            this.entityIdsByShard = entityIdsByShard;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), memberId, entityIdsByShard.keySet());
+        }
+    }
+
+    // The entity actions seen within one batch window, keyed by entity id in arrival order.
+    static class PendingActions {
+        private final Map<String, PendingAction> pending = new LinkedHashMap<>();
+
+        void add(EntityMessage.Action action) {
+            PendingAction pendingAction = pending.get(action.entityId);
+            if (pendingAction == null) {
+                pending.put(action.entityId, new PendingAction(action));
+            } else {
+                pendingAction.last = action;
+            }
+        }
+
+        // Returns the net action of each entity grouped by member and starts a new batch.
+        Map<String, List<EntityMessage.Action>> drain() {
+            Map<String, List<EntityMessage.Action>> actionsByMember = new HashMap<>();
+            pending.values().forEach(pendingAction -> {
+                if (!pendingAction.cancelsOut()) {
+                    actionsByMember.computeIfAbsent(pendingAction.last.member, m -> new ArrayList<>()).add(pendingAction.last);
+                }
+            });
+            pending.clear();
+            return actionsByMember;
+        }
+    }
+
+    private static class PendingAction {
+        final boolean firstIsStart;
+        EntityMessage.Action last;
+
+        PendingAction(EntityMessage.Action first) {
+            firstIsStart = first.action.equals("start");
+            last = first;
+        }
+
+        // The entity was not running before the first start and is not running after the last stop.
+        boolean cancelsOut() {
+            return firstIsStart && last.action.equals("stop");
+        }
+    }
+
+    // The HTTP server actors of the other Up members, by member address. A member is unresolved
+    // from the time it is Up until its actor answers an Identify, and again after that actor stops.
+    static class PeerCache {
+        private final Map<Address, ActorRef> peers = new HashMap<>();
+        private final Set<Address> unresolved = new HashSet<>();
+
+        void unresolved(Address address) {
+            unresolved.add(address);
+        }
+
+        boolean isUnresolved(Address address) {
+            return unresolved.contains(address);
+        }
+
+        void resolved(Address address, ActorRef peer) {
+            unresolved.remove(address);
+            peers.put(address, peer);
+        }
+
+        Collection<ActorRef> resolved() {
+            return peers.values();
+        }
+
+        // Returns the cached peer of the member, if it was resolved.
+        ActorRef remove(Address address) {
+            unresolved.remove(address);
+            return peers.remove(address);
+        }
+    }
+
+    private static class IdentifyPeer {
+        final Address address;
+
+        IdentifyPeer(Address address) {
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), address);
+        }
+    }
+
+    private static class BroadcastStopNode {
+        final String memberAddress;
+
+        BroadcastStopNode(String memberAddress) {
+            this.memberAddress = memberAddress;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), memberAddress);
+        }
+    }
+
     public static class Tree implements Serializable {
+        // The number of latest rebalance deltas that a whole tree update carries.
+        private static final int recentRebalances = 10;
         public final String name;
         public String type;
         public int events;
         public final List<Tree> children = new ArrayList<>();
+        private Tree parent;
+        private int position;
+        private Map<String, Tree> childIndex;
+        private Map<String, Tree> entityIndex;
+        private long digest;
+        private long version;
+        private int deltaLogSize;
+        private Deque<Delta> deltaLog;
+        private Deque<Delta> rebalances;
+        private long changes;
+        private transient JsonCache jsonCache;
+        private transient Snapshot snapshot;
 
         public Tree(String name, String type) {
+            this(name, type, 1000);
+        }
+
+        public Tree(String name, String type, int deltaLogSize) {
             this.name = name;
             this.type = type;
+            this.deltaLogSize = deltaLogSize;
+            this.digest = type.equals("entity") ? entityDigest(name) : 0;
         }
 
         static Tree create(String name, String type) {
@@ -259,78 +905,200 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
 
         Tree children(Tree... children) {
-            this.children.addAll(Arrays.asList(children));
+            for (Tree child : children) {
+                addChild(child);
+            }
             return this;
         }
 
         void add(String memberId, String shardId, String entityId) {
-            removeEntity(entityId);
-            Tree member = find(memberId, "member");
+            unlinkEntity(entityId);
+            Tree member = child(memberId);
             if (member == null) {
                 member = Tree.create(memberId, "member");
-                children.add(member);
+                addChild(member);
             }
-            Tree shard = member.find(shardId, "shard");
+            Tree shard = member.child(shardId);
             if (shard == null) {
                 shard = Tree.create(shardId, "shard");
-                member.children.add(shard);
-            }
-            Tree entity = shard.find(entityId, "entity");
-            if (entity == null) {
-                entity = Tree.create(entityId, "entity");
-                shard.children.add(entity);
+                member.addChild(shard);
             }
+            shard.addChild(Tree.create(entityId, "entity"));
+            record("add", memberId, shardId, entityId, null);
         }
 
         void remove(String memberId, String shardId, String entityId) {
-            Tree member = find(memberId, "member");
+            Tree member = child(memberId);
             if (member != null) {
-                Tree shard = member.find(shardId, "shard");
+                Tree shard = member.child(shardId);
                 if (shard != null) {
-                    Tree entity = shard.find(entityId, "entity");
-                    shard.children.remove(entity);
+                    Tree entity = shard.child(entityId);
+                    if (entity != null) {
+                        shard.removeChild(entity);
+                    }
 
                     if (shard.children.isEmpty()) {
-                        member.children.remove(shard);
+                        member.removeChild(shard);
                     }
                 }
                 if (member.children.isEmpty()) {
-                    children.remove(member);
+                    removeChild(member);
                 }
+                record("remove", memberId, shardId, entityId, null);
             }
         }
 
         void removeEntity(String entityId) {
-            for (Tree member : children) {
-                for (Tree shard : member.children) {
-                    for (Tree entity : shard.children) {
-                        if (entity.name.equals(entityId)) {
-                            shard.children.remove(entity);
-                            break;
-                        }
+            if (unlinkEntity(entityId)) {
+                record("removeEntity", null, null, entityId, null);
+            }
+        }
+
+        private boolean unlinkEntity(String entityId) {
+            Tree entity = entityIndex().get(entityId);
+            if (entity != null) {
+                entity.parent.removeChild(entity);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Makes the entities of a member match the given shard id to entity ids map, removing
+         * and adding only the entities that differ.
+         */
+        void syncMember(String memberId, Map<String, Set<String>> entityIdsByShard) {
+            Tree member = child(memberId);
+            if (member != null) {
+                for (Tree shard : new ArrayList<>(member.children)) {
+                    if (!entityIdsByShard.containsKey(shard.name)) {
+                        syncShard(memberId, shard.name, Collections.emptySet());
+                    }
+                }
+            }
+            entityIdsByShard.forEach((shardId, entityIds) -> syncShard(memberId, shardId, entityIds));
+        }
+
+        /**
+         * Makes the entities of one shard of a member match the given entity ids.
+         */
+        void syncShard(String memberId, String shardId, Set<String> entityIds) {
+            Tree member = child(memberId);
+            Tree shard = member == null ? null : member.child(shardId);
+            if (shard != null) {
+                for (Tree entity : new ArrayList<>(shard.children)) {
+                    if (!entityIds.contains(entity.name)) {
+                        remove(memberId, shardId, entity.name);
                     }
                 }
             }
+            entityIds.forEach(entityId -> {
+                if (find(memberId, shardId, entityId) == null) {
+                    add(memberId, shardId, entityId);
+                }
+            });
+        }
+
+        /**
+         * Returns an order independent hash of the entities of a member, or 0 when the member has
+         * no entities. It is kept up to date on every add and remove.
+         */
+        long memberDigest(String memberId) {
+            Tree member = child(memberId);
+            return member == null ? 0 : member.digest;
+        }
+
+        Map<String, Long> shardDigests(String memberId) {
+            Map<String, Long> shardDigests = new HashMap<>();
+            Tree member = child(memberId);
+            if (member != null) {
+                member.children.forEach(shard -> shardDigests.put(shard.name, shard.digest));
+            }
+            return shardDigests;
+        }
+
+        Map<String, Set<String>> entityIds(String memberId, Collection<String> shardIds) {
+            Map<String, Set<String>> entityIdsByShard = new HashMap<>();
+            Tree member = child(memberId);
+            for (String shardId : shardIds) {
+                Set<String> entityIds = new HashSet<>();
+                Tree shard = member == null ? null : member.child(shardId);
+                if (shard != null) {
+                    shard.children.forEach(entity -> entityIds.add(entity.name));
+                }
+                entityIdsByShard.put(shardId, entityIds);
+            }
+            return entityIdsByShard;
+        }
+
+        List<String> memberIds() {
+            List<String> memberIds = new ArrayList<>();
+            children.forEach(member -> memberIds.add(member.name));
+            return memberIds;
         }
 
         void incrementEvents(String memberId, String shardId, String entityId) {
             Tree entity = find(memberId, shardId, entityId);
             if (entity != null) {
-                entity.events += 1;
+                setEvents(entity, entity.events + 1);
             }
         }
 
-        private Tree find(String memberId, String shardId, String entityId) {
-            Tree member = find(memberId, "member");
-            if (member != null) {
-                Tree shard = member.find(shardId, "shard");
-                if (shard != null) {
-                    Tree entity = shard.find(entityId, "entity");
-                    if (entity != null) {
-                        return entity;
-                    }
+        void setEvents(String memberId, String shardId, String entityId, int events) {
+            Tree entity = find(memberId, shardId, entityId);
+            if (entity != null && entity.events != events) {
+                setEvents(entity, events);
+            }
+        }
+
+        private void setEvents(Tree entity, int events) {
+            entity.events = events;
+            record("events", entity.parent.parent.name, entity.parent.name, entity.name, null, events);
+        }
+
+        /**
+         * Marks the shards of a member that are in the map as hot, with their messages per second
+         * as their events, and the other shards of the member as not hot.
+         */
+        void setHotShards(String memberId, Map<String, Integer> hotShardRates) {
+            Tree member = child(memberId);
+            if (member == null) {
+                return;
+            }
+            for (Tree shard : member.children) {
+                Integer rate = hotShardRates.get(shard.name);
+                String type = rate == null ? "shard" : "shard hot";
+                if (!shard.type.equals(type)) {
+                    shard.type = type;
+                    record("type", memberId, shard.name, null, type);
+                }
+                int events = rate == null ? 0 : rate;
+                if (shard.events != events) {
+                    shard.events = events;
+                    record("events", memberId, shard.name, null, null, events);
                 }
             }
+        }
+
+        /**
+         * Records that the shard coordinator moves a shard to another member. The entities of the
+         * shard move in the tree when they stop and start, so this only adds a delta. The latest
+         * rebalances are kept apart from the delta log, so that clients that get the whole tree
+         * also see the moves that are still going on.
+         */
+        void rebalance(String memberId, String shardId, String toMemberId) {
+            record("rebalance", memberId, shardId, null, null, null, toMemberId);
+            rebalances().addLast(deltaLog.peekLast());
+            if (rebalances.size() > recentRebalances) {
+                rebalances.removeFirst();
+            }
+        }
+
+        private Tree find(String memberId, String shardId, String entityId) {
+            Tree entity = entityIndex().get(entityId);
+            if (entity != null && entity.parent.name.equals(shardId) && entity.parent.parent.name.equals(memberId)) {
+                return entity;
+            }
             return null;
         }
 
@@ -353,6 +1121,7 @@ public class HttpServerActor extends AbstractLoggingActor {
                 if (child.name.equals(memberId)) {
                     if (!child.type.contains(type)) {
                         child.type = child.type + " " + type;
+                        record("type", child.name, null, null, child.type);
                     }
                 } else if (child.type.contains(type)) {
                     unsetMemberType(child.name, type);
@@ -361,11 +1130,72 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
 
         void unsetMemberType(String memberId, String type) {
-            Tree member = find(memberId, type);
-            if (member != null) {
+            Tree member = child(memberId);
+            if (member != null && member.type.contains(type)) {
                 member.type = member.type.replaceAll(type, "");
                 member.type = member.type.replaceAll(" +", " ");
+                record("type", member.name, null, null, member.type);
+            }
+        }
+
+        long version() {
+            return version;
+        }
+
+        /**
+         * Returns the changes made after the given version, oldest first, or null when some of
+         * them have already been dropped from the bounded delta log.
+         */
+        List<Delta> deltasSince(long sinceVersion) {
+            if (sinceVersion > version || sinceVersion < version - deltaLog().size()) {
+                return null;
+            }
+            List<Delta> deltas = new ArrayList<>((int) (version - sinceVersion));
+            Iterator<Delta> newestFirst = deltaLog().descendingIterator();
+            while (newestFirst.hasNext()) {
+                Delta delta = newestFirst.next();
+                if (delta.version <= sinceVersion) {
+                    break;
+                }
+                deltas.add(delta);
             }
+            Collections.reverse(deltas);
+            return deltas;
+        }
+
+        /**
+         * Returns the JSON sent to a client that has seen the tree up to the given version. This
+         * is either the list of deltas since that version or, when the client is too far behind,
+         * the whole tree.
+         */
+        String toJson(long sinceVersion) {
+            return snapshot().toJson(sinceVersion);
+        }
+
+        /**
+         * Returns an immutable copy of the tree JSON and of the delta log that can be read from any
+         * thread. A new snapshot is only built after the tree has changed.
+         */
+        Snapshot snapshot() {
+            if (snapshot == null || snapshot.changes != changes) {
+                snapshot = new Snapshot(version, changes, toJson(), new ArrayList<>(deltaLog()), new ArrayList<>(rebalances()));
+            }
+            return snapshot;
+        }
+
+        /**
+         * Returns the number of entities of the given member, in time proportional to the number of
+         * its shards.
+         */
+        int entityCount(String memberId) {
+            Tree member = child(memberId);
+            int entityCount = 0;
+            if (member != null) {
+                for (Tree shard : member.children) {
+                    entityCount += shard.children.size();
+                }
+            }
+            return entityCount;
         }
 
         int leafCount() {
@@ -385,11 +1215,148 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
 
         String toJson() {
-            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
-            try {
-                return ow.writeValueAsString(this);
-            } catch (JsonProcessingException e) {
-                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            return jsonCache().string(this, changes);
+        }
+
+        private JsonCache jsonCache() {
+            if (jsonCache == null) {
+                jsonCache = new JsonCache();
+            }
+            return jsonCache;
+        }
+
+        private void record(String action, String memberId, String shardId, String entityId, String type) {
+            record(action, memberId, shardId, entityId, type, null);
+        }
+
+        private void record(String action, String memberId, String shardId, String entityId, String type, Integer events) {
+            record(action, memberId, shardId, entityId, type, events, null);
+        }
+
+        private void record(String action, String memberId, String shardId, String entityId, String type, Integer events, String to) {
+            changes++;
+            deltaLog().addLast(new Delta(++version, action, memberId, shardId, entityId, type, events, to));
+            if (deltaLog.size() > deltaLogSize) {
+                deltaLog.removeFirst();
+            }
+        }
+
+        private Deque<Delta> deltaLog() {
+            if (deltaLog == null) {
+                deltaLog = new ArrayDeque<>();
+            }
+            return deltaLog;
+        }
+
+        private Deque<Delta> rebalances() {
+            if (rebalances == null) {
+                rebalances = new ArrayDeque<>();
+            }
+            return rebalances;
+        }
+
+        private Tree child(String name) {
+            return childIndex == null ? null : childIndex.get(name);
+        }
+
+        // Children are appended at the end and removed by swapping the last child into the freed
+        // position, so both are constant time. The child index and, on the root, the entity index
+        // are kept in step with the children list.
+        private void addChild(Tree child) {
+            if (childIndex == null) {
+                childIndex = new HashMap<>();
+            }
+            Tree replaced = childIndex.get(child.name);
+            if (replaced != null) {
+                removeChild(replaced);
+            }
+            childIndex.put(child.name, child);
+            child.parent = this;
+            child.position = children.size();
+            child.entityIndex = null;
+            children.add(child);
+            Tree root = addDigest(child.digest);
+            root.indexEntities(child);
+            root.changes++;
+        }
+
+        private void removeChild(Tree child) {
+            if (child.parent != this) {
+                return;
+            }
+            childIndex.remove(child.name);
+            removeFromChildren(child);
+            Tree root = addDigest(-child.digest);
+            root.unindexEntities(child);
+            root.changes++;
+        }
+
+        // Adds to the digest of this node and of all its ancestors, returning the root.
+        private Tree addDigest(long delta) {
+            Tree tree = this;
+            while (true) {
+                tree.digest += delta;
+                if (tree.parent == null) {
+                    return tree;
+                }
+                tree = tree.parent;
+            }
+        }
+
+        private static long entityDigest(String entityId) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < entityId.length(); i++) {
+                hash ^= entityId.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+
+        private void removeFromChildren(Tree child) {
+            Tree last = children.remove(children.size() - 1);
+            if (last != child) {
+                children.set(child.position, last);
+                last.position = child.position;
+            }
+            child.parent = null;
+        }
+
+        private Tree root() {
+            Tree root = this;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            return root;
+        }
+
+        private Map<String, Tree> entityIndex() {
+            if (entityIndex == null) {
+                entityIndex = new HashMap<>();
+            }
+            return entityIndex;
+        }
+
+        private void indexEntities(Tree tree) {
+            if (tree.type.equals("entity")) {
+                Tree indexed = entityIndex().put(tree.name, tree);
+                if (indexed != null && indexed != tree && indexed.parent != null) {
+                    indexed.parent.removeChild(indexed);
+                }
+            } else {
+                tree.children.forEach(this::indexEntities);
+            }
+        }
+
+        private void unindexEntities(Tree tree) {
+            if (tree.type.equals("entity")) {
+                entityIndex().remove(tree.name, tree);
+            } else {
+                tree.children.forEach(this::unindexEntities);
             }
         }
 
@@ -397,64 +1364,224 @@ public class HttpServerActor extends AbstractLoggingActor {
         public String toString() {
             return String.format("%s[%s, %s, %d]", getClass().getSimpleName(), name, type, events);
         }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public static class Delta implements Serializable {
+            public final long version;
+            public final String action;
+            public final String member;
+            public final String shard;
+            public final String entity;
+            public final String type;
+            public final Integer events;
+            public final String to;
+
+            Delta(long version, String action, String member, String shard, String entity, String type, Integer events, String to) {
+                this.version = version;
+                this.action = action;
+                this.member = member;
+                this.shard = shard;
+                this.entity = entity;
+                this.type = type;
+                this.events = events;
+                this.to = to;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%s[%d, %s, %s, %s, %s, %s, %s, %s]", getClass().getSimpleName(), version, action, member, shard, entity, type, events, to);
+            }
+        }
+
+        public static class Snapshot {
+            final long version;
+            private final long changes;
+            private final String json;
+            private final List<Delta> deltas;
+            private final List<Delta> rebalances;
+            private volatile UpdateJson lastUpdate;
+
+            private Snapshot(long version, long changes, String json, List<Delta> deltas, List<Delta> rebalances) {
+                this.version = version;
+                this.changes = changes;
+                this.json = json;
+                this.deltas = Collections.unmodifiableList(deltas);
+                this.rebalances = Collections.unmodifiableList(rebalances);
+            }
+
+            String toJson() {
+                return json;
+            }
+
+            /**
+             * Returns the JSON sent to a client that has seen the tree up to the given version.
+             * This is either the list of deltas since that version or, when the client is too far
+             * behind, the whole tree with the latest rebalances.
+             */
+            String toJson(long sinceVersion) {
+                UpdateJson update = lastUpdate;
+                if (update == null || update.sinceVersion != sinceVersion) {
+                    if (sinceVersion > version || sinceVersion < version - deltas.size()) {
+                        update = new UpdateJson(sinceVersion, "{\"version\":" + version + ",\"rebalances\":" + toJsonString(rebalances)
+                                + ",\"tree\":" + json + "}");
+                    } else {
+                        List<Delta> since = deltas.subList(deltas.size() - (int) (version - sinceVersion), deltas.size());
+                        update = new UpdateJson(sinceVersion, toJsonString(new Update(version, null, since)));
+                    }
+                    lastUpdate = update;
+                }
+                return update.json;
+            }
+
+            private static class UpdateJson {
+                final long sinceVersion;
+                final String json;
+
+                UpdateJson(long sinceVersion, String json) {
+                    this.sinceVersion = sinceVersion;
+                    this.json = json;
+                }
+            }
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public static class Update {
+            public final long version;
+            public final Tree tree;
+            public final List<Delta> deltas;
+
+            Update(long version, Tree tree, List<Delta> deltas) {
+                this.version = version;
+                this.tree = tree;
+                this.deltas = deltas;
+            }
+        }
     }
 
-    public static class Statistics {
+    /**
+     * A fixed size window of entity and command counts sampled once per interval. The samples are
+     * kept in a ring of parallel primitive arrays, so recording a sample overwrites the oldest one
+     * in place without allocating. The JSON is written straight from the arrays, oldest first.
+     */
+    public static class Statistics implements JsonSerializable {
         public final int statisticCount;
         public final int intervalTimeMillis;
-        public final List<Statistic> statistics;
+        private final long[] times;
+        private final int[] entityCounts;
+        private final int[] commandCounts;
+        private int oldest;
+        private long changes;
+        private final JsonCache jsonCache = new JsonCache();
 
         public Statistics(int statisticCount, int intervalTimeMillis) {
             this.statisticCount = statisticCount;
             this.intervalTimeMillis = intervalTimeMillis;
 
-            statistics = new ArrayList<>();
+            times = new long[statisticCount];
+            entityCounts = new int[statisticCount];
+            commandCounts = new int[statisticCount];
             initStatistics();
         }
 
-        void add(Statistic statistic) {
-            statistics.add(statistic);
-            if (statistics.size() > statisticCount) {
-                statistics.remove(0);
-            }
+        void add(long time, int entityCount, int commandCount) {
+            times[oldest] = time;
+            entityCounts[oldest] = entityCount;
+            commandCounts[oldest] = commandCount;
+            oldest = oldest + 1 < statisticCount ? oldest + 1 : 0;
+            changes++;
+        }
+
+        int size() {
+            return statisticCount;
+        }
+
+        /** Returns the time of the i-th sample, where sample 0 is the oldest. */
+        long time(int i) {
+            return times[index(i)];
+        }
+
+        int entityCount(int i) {
+            return entityCounts[index(i)];
+        }
+
+        int commandCount(int i) {
+            return commandCounts[index(i)];
+        }
+
+        private int index(int i) {
+            int index = oldest + i;
+            return index < statisticCount ? index : index - statisticCount;
         }
 
         private void initStatistics() {
-            Instant time = Instant.now();
+            long time = System.currentTimeMillis() - (long) intervalTimeMillis * (statisticCount - 1);
             for (int i = 0; i < statisticCount; i++) {
-                add(new Statistic(time, 0, 0));
-                time = time.minusMillis(intervalTimeMillis);
+                add(time, 0, 0);
+                time += intervalTimeMillis;
             }
         }
 
         String toJson() {
-            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
-            try {
-                return ow.writeValueAsString(this);
-            } catch (JsonProcessingException e) {
-                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            return jsonCache.string(this, changes);
+        }
+
+        @Override
+        public void serialize(JsonGenerator json, SerializerProvider serializerProvider) throws IOException {
+            json.writeStartObject();
+            json.writeNumberField("statisticCount", statisticCount);
+            json.writeNumberField("intervalTimeMillis", intervalTimeMillis);
+            json.writeArrayFieldStart("statistics");
+            for (int i = 0; i < statisticCount; i++) {
+                int index = index(i);
+                json.writeStartObject();
+                json.writeNumberField("time", times[index]);
+                json.writeNumberField("entityCount", entityCounts[index]);
+                json.writeNumberField("commandCount", commandCounts[index]);
+                json.writeEndObject();
             }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator json, SerializerProvider serializerProvider, TypeSerializer typeSerializer) throws IOException {
+            serialize(json, serializerProvider);
         }
     }
 
-    public static class Statistic {
-        public final long time;
-        public final int entityCount;
-        public final int commandCount;
+    /**
+     * Holds the compact JSON of a value that is only reserialized after the value has changed. The
+     * owner passes a change counter that it increments on every modification.
+     */
+    static class JsonCache {
+        private final ByteArrayBuilder buffer = new ByteArrayBuilder(4096);
+        private long changes = -1;
+        private String string;
 
-        public Statistic(long time, int entityCount, int commandCount) {
-            this.time = time;
-            this.entityCount = entityCount;
-            this.commandCount = commandCount;
+        String string(Object value, long changes) {
+            if (string == null || this.changes != changes) {
+                string = toJson(value);
+                this.changes = changes;
+            }
+            return string;
         }
 
-        public Statistic(Instant time, int entityCount, int commandCount) {
-            this(time.toEpochMilli(), entityCount, commandCount);
+        private String toJson(Object value) {
+            try {
+                buffer.reset();
+                jsonWriter.writeValue(buffer, value);
+                return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
         }
+    }
 
-        @Override
-        public String toString() {
-            return String.format("%s[%s, %d, %d]", getClass().getSimpleName(), Instant.ofEpochMilli(time), entityCount, commandCount);
+    private static String toJsonString(Object value) {
+        try {
+            return jsonWriter.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
         }
     }
 }
@@ -0,0 +1,80 @@
+package cluster.sharding;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Requests that are waiting for a response, by correlation id. A request takes the slot at its
+ * correlation id modulo the window size, so with increasing correlation ids a new request can
+ * only be sent when the request sent window size requests earlier has been answered or has
+ * expired. Adding, removing, and looking up a request is O(1) and allocates nothing.
+ */
+class InFlightWindow {
+    private static final long empty = -1;
+    private final long[] correlationIds;
+    private final long[] sendTimes;
+    private int size;
+
+    InFlightWindow(int capacity) {
+        correlationIds = new long[capacity];
+        sendTimes = new long[capacity];
+        Arrays.fill(correlationIds, empty);
+    }
+
+    /** Returns false, and does not add the request, when its slot is still taken. */
+    boolean add(long correlationId, long sendTime) {
+        int slot = slot(correlationId);
+        if (correlationIds[slot] != empty) {
+            return false;
+        }
+        correlationIds[slot] = correlationId;
+        sendTimes[slot] = sendTime;
+        size++;
+        return true;
+    }
+
+    /** Returns the send time of the request, or -1 when it is unknown or has already expired. */
+    long remove(long correlationId) {
+        int slot = slot(correlationId);
+        if (correlationIds[slot] != correlationId) {
+            return -1;
+        }
+        correlationIds[slot] = empty;
+        size--;
+        return sendTimes[slot];
+    }
+
+    /**
+     * Removes the requests sent before the given time, passes their send times to the consumer,
+     * and returns how many were removed.
+     */
+    int expire(long sentBefore, LongConsumer expiredSendTimes) {
+        int expired = 0;
+        for (int slot = 0; slot < correlationIds.length; slot++) {
+            if (correlationIds[slot] != empty && sendTimes[slot] - sentBefore < 0) {
+                correlationIds[slot] = empty;
+                expiredSendTimes.accept(sendTimes[slot]);
+                expired++;
+            }
+        }
+        size -= expired;
+        return expired;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return correlationIds.length;
+    }
+
+    private int slot(long correlationId) {
+        return (int) Long.remainderUnsigned(correlationId, correlationIds.length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d/%d]", getClass().getSimpleName(), size, correlationIds.length);
+    }
+}
@@ -0,0 +1,143 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorRefWithCell;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedDequeBasedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An unbounded mailbox that reports to {@link MailboxMetrics} by actor class. It counts every
+ * message and the depth of the mailbox, and for one in sample-every messages, picked at random, it
+ * records when the message was enqueued, how long it waited in the mailbox, and how long the actor
+ * took to process it.
+ * <p>
+ * The processing of a message ends when the dispatcher thread that dequeued it comes back to the
+ * mailbox, to dequeue the next message or to check for more messages at the end of its run, so the
+ * processing time includes the system messages handled in between. Only sampled messages are
+ * wrapped and timed, which keeps the overhead of the other messages to two counter updates.
+ * <p>
+ * Select it with Props.withMailbox, or for all actors of a dispatcher by setting mailbox-type in the
+ * dispatcher configuration, with sample-every next to it. It supports stashing actors.
+ */
+class InstrumentedMailbox implements MailboxType, ProducesMessageQueue<InstrumentedMailbox.InstrumentedQueue> {
+    private final int sampleEvery;
+
+    public InstrumentedMailbox(ActorSystem.Settings settings, Config config) {
+        sampleEvery = config.hasPath("sample-every") ? Math.max(1, config.getInt("sample-every")) : 1;
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        MailboxMetrics.ActorClass actorClass = MailboxMetrics.get(system.get()).actorClass(actorClassName(owner));
+        return new InstrumentedQueue(actorClass, sampleEvery);
+    }
+
+    private static String actorClassName(Option<ActorRef> owner) {
+        if (owner.isDefined() && owner.get() instanceof ActorRefWithCell) {
+            return ((ActorRefWithCell) owner.get()).underlying().props().actorClass().getSimpleName();
+        }
+        return "unknown";
+    }
+
+    static class InstrumentedQueue implements MessageQueue, UnboundedDequeBasedMessageQueueSemantics {
+        private final ConcurrentLinkedDeque<Object> queue = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final MailboxMetrics.ActorClass actorClass;
+        private final int sampleEvery;
+        // Only used by the thread that processes the messages of the actor.
+        private Thread processingThread;
+        private long processingStart;
+
+        InstrumentedQueue(MailboxMetrics.ActorClass actorClass, int sampleEvery) {
+            this.actorClass = actorClass;
+            this.sampleEvery = sampleEvery;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            queue.addLast(sample(handle));
+            actorClass.enqueued(depth.incrementAndGet());
+        }
+
+        @Override
+        public void enqueueFirst(ActorRef receiver, Envelope handle) {
+            queue.addFirst(sample(handle));
+            actorClass.enqueued(depth.incrementAndGet());
+        }
+
+        @Override
+        public Envelope dequeue() {
+            processed();
+            Object next = queue.pollFirst();
+            if (next == null) {
+                return null;
+            }
+            depth.decrementAndGet();
+            actorClass.dequeued();
+            if (next instanceof Sampled) {
+                Sampled sampled = (Sampled) next;
+                long now = System.nanoTime();
+                actorClass.recordTimeInMailbox(now - sampled.enqueued);
+                processingThread = Thread.currentThread();
+                processingStart = now;
+                return sampled.envelope;
+            }
+            return (Envelope) next;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return depth.get();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            processed();
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+
+        private Object sample(Envelope handle) {
+            if (sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0) {
+                return new Sampled(handle, System.nanoTime());
+            }
+            return handle;
+        }
+
+        // Other threads check for messages too, when they send one, so only the processing thread
+        // ends the measurement.
+        private void processed() {
+            if (processingThread == Thread.currentThread()) {
+                actorClass.recordProcessingTime(System.nanoTime() - processingStart);
+                processingThread = null;
+            }
+        }
+    }
+
+    private static class Sampled {
+        final Envelope envelope;
+        final long enqueued;
+
+        Sampled(Envelope envelope, long enqueued) {
+            this.envelope = envelope;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cluster.sharding;
+
+import com.typesafe.config.Config;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks the keys, from 1 to the key space size, of the entities that the load actors send
+ * commands and queries to. Everything a distribution needs is computed when it is created, so
+ * picking a key allocates nothing. A distribution is not thread safe, each actor uses its own.
+ */
+abstract class KeyDistribution {
+    final long keySpace;
+
+    private KeyDistribution(long keySpace) {
+        if (keySpace < 1) {
+            throw new IllegalArgumentException(String.format("Key space must be positive, was %d", keySpace));
+        }
+        this.keySpace = keySpace;
+    }
+
+    /** Returns the next key, from 1 to the key space size. */
+    abstract long next();
+
+    Entity.Id nextEntityId() {
+        return new Entity.Id(next());
+    }
+
+    /** Creates the distribution configured by a cluster-demo.load.keys section. */
+    static KeyDistribution create(Config keys) {
+        long keySpace = keys.getLong("key-space");
+        String distribution = keys.getString("distribution");
+        switch (distribution) {
+            case "uniform":
+                return new Uniform(keySpace, new SplittableRandom());
+            case "zipfian":
+                return new Zipfian(keySpace, keys.getDouble("zipfian-constant"), new SplittableRandom());
+            case "hotspot":
+                return new Hotspot(keySpace, keys.getDouble("hotspot-fraction"), keys.getDouble("hotspot-operation-fraction"), new SplittableRandom());
+            case "sequential":
+                return new Sequential(keySpace);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown key distribution '%s'", distribution));
+        }
+    }
+
+    static class Uniform extends KeyDistribution {
+        private final SplittableRandom random;
+
+        Uniform(long keySpace, SplittableRandom random) {
+            super(keySpace);
+            this.random = random;
+        }
+
+        @Override
+        long next() {
+            return 1 + random.nextLong(keySpace);
+        }
+    }
+
+    /**
+     * Zipfian keys, where key 1 is the most popular and the popularity of key k is proportional to
+     * 1 / k^constant. This is the algorithm of YCSB's ZipfianGenerator, from Gray et al., "Quickly
+     * Generating Billion-Record Synthetic Databases". The zeta constant is computed once, in time
+     * proportional to the key space, after which each key takes O(1).
+     */
+    static class Zipfian extends KeyDistribution {
+        private final SplittableRandom random;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        private final double secondKeyThreshold;
+
+        Zipfian(long keySpace, double constant, SplittableRandom random) {
+            super(keySpace);
+            if (constant <= 0 || constant >= 1) {
+                throw new IllegalArgumentException(String.format("Zipfian constant must be between 0 and 1, was %f", constant));
+            }
+            this.random = random;
+            theta = constant;
+            zetaN = zeta(keySpace, theta);
+            alpha = 1 / (1 - theta);
+            eta = (1 - Math.pow(2.0 / keySpace, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+            secondKeyThreshold = 1 + Math.pow(0.5, theta);
+        }
+
+        @Override
+        long next() {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 1;
+            }
+            if (uz < secondKeyThreshold && keySpace > 1) {
+                return 2;
+            }
+            return 1 + Math.min(keySpace - 1, (long) (keySpace * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * A hot set made of the first hotspot-fraction of the keys receives hotspot-operation-fraction
+     * of the operations. Keys are uniform within the hot set and within the rest.
+     */
+    static class Hotspot extends KeyDistribution {
+        private final SplittableRandom random;
+        private final long hotKeys;
+        private final double hotOperationFraction;
+
+        Hotspot(long keySpace, double hotKeyFraction, double hotOperationFraction, SplittableRandom random) {
+            super(keySpace);
+            if (hotKeyFraction < 0 || hotKeyFraction > 1 || hotOperationFraction < 0 || hotOperationFraction > 1) {
+                throw new IllegalArgumentException(String.format("Hotspot fractions must be between 0 and 1, were %f and %f", hotKeyFraction, hotOperationFraction));
+            }
+            this.random = random;
+            this.hotKeys = Math.max(1, Math.min(keySpace, (long) (keySpace * hotKeyFraction)));
+            this.hotOperationFraction = hotKeys == keySpace ? 1 : hotOperationFraction;
+        }
+
+        @Override
+        long next() {
+            if (random.nextDouble() < hotOperationFraction) {
+                return 1 + random.nextLong(hotKeys);
+            } else {
+                return 1 + hotKeys + random.nextLong(keySpace - hotKeys);
+            }
+        }
+    }
+
+    /** Keys 1, 2, and so on up to the key space size, then starting over from 1. */
+    static class Sequential extends KeyDistribution {
+        private long key;
+
+        Sequential(long keySpace) {
+            super(keySpace);
+        }
+
+        @Override
+        long next() {
+            key = key < keySpace ? key + 1 : 1;
+            return key;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The latest latency summaries of this node, by name, such as "commands" and "queries". The load
+ * actors publish a summary of their latency histogram once per interval, and the HTTP server
+ * serves them as JSON.
+ */
+class Latencies implements Extension {
+    private static final ObjectWriter jsonWriter = new ObjectMapper().writer();
+    private final Map<String, LatencyHistogram.Summary> summaries = new ConcurrentSkipListMap<>();
+
+    void publish(String name, LatencyHistogram.Summary summary) {
+        summaries.put(name, summary);
+    }
+
+    /** The latest summary with the given name, or null when none has been published yet. */
+    LatencyHistogram.Summary summary(String name) {
+        return summaries.get(name);
+    }
+
+    String toJson() {
+        try {
+            return jsonWriter.writeValueAsString(summaries);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    static Latencies get(ActorSystem actorSystem) {
+        return Id.instance.get(actorSystem);
+    }
+
+    static class Id extends AbstractExtensionId<Latencies> {
+        static final Id instance = new Id();
+
+        @Override
+        public Latencies createExtension(ExtendedActorSystem system) {
+            return new Latencies();
+        }
+    }
+}
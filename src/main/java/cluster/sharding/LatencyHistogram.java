@@ -0,0 +1,121 @@
+package cluster.sharding;
+
+import java.util.Arrays;
+
+/**
+ * A compact high dynamic range histogram of latencies in microseconds. Values below 256 are
+ * counted exactly. Larger values are counted in 128 buckets per power of two, so a recorded value
+ * is off by less than 1%. Values above one hour are counted as one hour. Recording a value is O(1)
+ * and allocates nothing.
+ * <p>
+ * A load generator that waits for a response before it sends the next request does not send the
+ * requests it would have sent while a slow response held it up, so their latencies are never
+ * measured. {@link #recordValue(long, long)} corrects for this coordinated omission the same way
+ * HdrHistogram does, by also recording the latencies the requests that should have been sent every
+ * expected interval would have seen.
+ */
+class LatencyHistogram {
+    private static final int subBucketBits = 7;
+    private static final int subBucketCount = 1 << subBucketBits;
+    static final long highestTrackableValue = 3_600_000_000L;
+    private final long[] counts = new long[index(highestTrackableValue) + 1];
+    private long totalCount;
+    private long maxValue;
+
+    void recordValue(long value) {
+        long clamped = Math.min(Math.max(value, 0), highestTrackableValue);
+        counts[index(clamped)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, clamped);
+    }
+
+    void recordValue(long value, long expectedInterval) {
+        recordValue(value);
+        if (expectedInterval > 0) {
+            for (long missedValue = value - expectedInterval; missedValue >= expectedInterval; missedValue -= expectedInterval) {
+                recordValue(missedValue);
+            }
+        }
+    }
+
+    long totalCount() {
+        return totalCount;
+    }
+
+    long maxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Returns the highest value, within the precision of the histogram, below which the given
+     * percentage of the recorded values fall, or 0 when nothing was recorded.
+     */
+    long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= countAtPercentile) {
+                return Math.min(highestValue(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        maxValue = 0;
+    }
+
+    Summary summary(long time) {
+        return new Summary(time, totalCount, valueAtPercentile(50), valueAtPercentile(99), valueAtPercentile(99.9), maxValue);
+    }
+
+    // Values in [2^e, 2^(e+1)) with e >= subBucketBits are counted in the bucket of their top
+    // subBucketBits + 1 bits, after the buckets of the smaller powers of two.
+    static int index(long value) {
+        if (value < 2 * subBucketCount) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - subBucketBits;
+        return shift * subBucketCount + (int) (value >>> shift);
+    }
+
+    static long highestValue(int index) {
+        if (index < 2 * subBucketCount) {
+            return index;
+        }
+        int shift = index / subBucketCount - 1;
+        long subBucket = index % subBucketCount + subBucketCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /** The count and percentiles, in microseconds, of the latencies recorded in an interval. */
+    public static class Summary {
+        public final long time;
+        public final long count;
+        public final long p50;
+        public final long p99;
+        public final long p999;
+        public final long max;
+
+        Summary(long time, long count, long p50, long p99, long p999, long max) {
+            this.time = time;
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[count %d, p50 %dus, p99 %dus, p99.9 %dus, max %dus]", getClass().getSimpleName(), count, p50, p99, p999, max);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Allocates new shards to the least loaded shard region and moves shards away from the most
+ * loaded one. The load of a region is a weighted sum of its share of the messages per second of
+ * all shards, the CPU and heap usage of its member, and its share of all shards, as known by
+ * {@link ClusterLoad}.
+ * <p>
+ * The coordinator asks for a rebalance every akka.cluster.sharding.rebalance-interval. Shards are
+ * only moved when the load of the most and least loaded regions differs by more than
+ * rebalance-threshold, no earlier than rebalance-interval after the last move, and when no
+ * rebalance is in progress, so that a shard that just moved is measured on its new member before
+ * anything else moves. The shards that are moved are the ones whose load brings the two regions
+ * closest to each other, so a single hot shard is not bounced between two members.
+ * <p>
+ * When the most loaded region has shards that {@link ShardLoadActor} flagged as hot, the hottest of
+ * them is moved first, also when the difference is within rebalance-threshold. Every move is
+ * published as a {@link Rebalanced} event, which the HTTP server actor shows in the monitor tree.
+ */
+class LoadAwareAllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+    private final ClusterLoad clusterLoad;
+    private final Address selfAddress;
+    private final LoggingAdapter log;
+    private final Consumer<Rebalanced> decisions;
+    private final double rateWeight;
+    private final double cpuWeight;
+    private final double heapWeight;
+    private final double shardCountWeight;
+    private final double rebalanceThreshold;
+    private final long rebalanceIntervalNanos;
+    private final int maxSimultaneousRebalance;
+    private long lastRebalance;
+
+    LoadAwareAllocationStrategy(ActorSystem actorSystem) {
+        this(actorSystem.settings().config().getConfig("cluster-demo.shard-allocation"), ClusterLoad.get(actorSystem),
+                Cluster.get(actorSystem).selfAddress(), Logging.getLogger(actorSystem, LoadAwareAllocationStrategy.class),
+                actorSystem.eventStream()::publish);
+    }
+
+    LoadAwareAllocationStrategy(Config config, ClusterLoad clusterLoad, Address selfAddress, LoggingAdapter log, Consumer<Rebalanced> decisions) {
+        this.clusterLoad = clusterLoad;
+        this.selfAddress = selfAddress;
+        this.log = log;
+        this.decisions = decisions;
+        rateWeight = config.getDouble("weights.rate");
+        cpuWeight = config.getDouble("weights.cpu");
+        heapWeight = config.getDouble("weights.heap");
+        shardCountWeight = config.getDouble("weights.shard-count");
+        rebalanceThreshold = config.getDouble("rebalance-threshold");
+        rebalanceIntervalNanos = config.getDuration("rebalance-interval", TimeUnit.NANOSECONDS);
+        maxSimultaneousRebalance = config.getInt("max-simultaneous-rebalance");
+        lastRebalance = System.nanoTime() - rebalanceIntervalNanos;
+    }
+
+    @Override
+    public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        ActorRef region = leastLoaded(asJava(currentShardAllocations), this::address);
+        log.debug("Allocate shard {} to {}", shardId, region);
+        return Futures.successful(region);
+    }
+
+    @Override
+    public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+        long now = System.nanoTime();
+        if (!rebalanceInProgress.isEmpty() || now - lastRebalance < rebalanceIntervalNanos) {
+            return Futures.successful(Collections.emptySet());
+        }
+        Set<String> shardIds = shardsToMove(asJava(currentShardAllocations), this::address);
+        if (!shardIds.isEmpty()) {
+            lastRebalance = now;
+        }
+        return Futures.successful(shardIds);
+    }
+
+    /**
+     * The region with the lowest load, of the regions with the fewest shards when loads are equal.
+     * A load that cannot be compared counts as the highest, so there is always a region.
+     */
+    <R> R leastLoaded(Map<R, List<String>> allocations, Function<R, String> address) {
+        Totals totals = totals(allocations);
+        R leastLoaded = null;
+        double lowest = Double.MAX_VALUE;
+        for (Map.Entry<R, List<String>> allocation : allocations.entrySet()) {
+            double load = load(address.apply(allocation.getKey()), allocation.getValue(), totals);
+            if (Double.isNaN(load)) {
+                load = Double.MAX_VALUE;
+            }
+            if (leastLoaded == null || load < lowest || load == lowest && allocation.getValue().size() < allocations.get(leastLoaded).size()) {
+                leastLoaded = allocation.getKey();
+                lowest = load;
+            }
+        }
+        return leastLoaded;
+    }
+
+    /**
+     * The shards to move from the most to the least loaded region, at most max-simultaneous-rebalance.
+     * The hottest hot shard goes first, then shards are moved while the loads differ by more than
+     * rebalance-threshold. A shard is only moved when that makes the difference smaller, and of
+     * those the one that makes it smallest is moved first.
+     */
+    <R> Set<String> shardsToMove(Map<R, List<String>> allocations, Function<R, String> address) {
+        if (allocations.size() < 2) {
+            return Collections.emptySet();
+        }
+        Totals totals = totals(allocations);
+        R most = null;
+        R least = null;
+        double highest = -Double.MAX_VALUE;
+        double lowest = Double.MAX_VALUE;
+        for (Map.Entry<R, List<String>> allocation : allocations.entrySet()) {
+            double load = load(address.apply(allocation.getKey()), allocation.getValue(), totals);
+            if (Double.isNaN(load)) {
+                return Collections.emptySet();
+            }
+            if (load > highest) {
+                most = allocation.getKey();
+                highest = load;
+            }
+            if (load < lowest) {
+                least = allocation.getKey();
+                lowest = load;
+            }
+        }
+
+        Set<String> shardIds = new LinkedHashSet<>();
+        Set<String> hotShardIds = new HashSet<>();
+        List<String> candidates = new ArrayList<>(allocations.get(most));
+        String hottest = null;
+        for (String shardId : candidates) {
+            if (clusterLoad.isHot(shardId) && (hottest == null || clusterLoad.shardRate(shardId) > clusterLoad.shardRate(hottest))) {
+                hottest = shardId;
+            }
+        }
+        if (hottest != null && maxSimultaneousRebalance > 0) {
+            double shift = shardLoad(hottest, totals);
+            if (Math.abs(highest - lowest - 2 * shift) < highest - lowest) {
+                candidates.remove(hottest);
+                shardIds.add(hottest);
+                hotShardIds.add(hottest);
+                highest -= shift;
+                lowest += shift;
+            }
+        }
+        while (highest - lowest > rebalanceThreshold && shardIds.size() < maxSimultaneousRebalance) {
+            double difference = highest - lowest;
+            String best = null;
+            double bestShift = 0;
+            double bestDifference = difference;
+            for (String shardId : candidates) {
+                double shift = shardLoad(shardId, totals);
+                double newDifference = Math.abs(difference - 2 * shift);
+                if (newDifference < bestDifference) {
+                    best = shardId;
+                    bestShift = shift;
+                    bestDifference = newDifference;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            candidates.remove(best);
+            shardIds.add(best);
+            highest -= bestShift;
+            lowest += bestShift;
+        }
+        if (!shardIds.isEmpty()) {
+            String from = address.apply(most);
+            String to = address.apply(least);
+            log.info(String.format("Rebalance %s from %s to %s, hot %s, load difference %.3f, threshold %.3f", shardIds, from, to, hotShardIds,
+                    load(from, allocations.get(most), totals) - load(to, allocations.get(least), totals), rebalanceThreshold));
+            shardIds.forEach(shardId -> decisions.accept(new Rebalanced(shardId, from, to, hotShardIds.contains(shardId), true)));
+        }
+        return shardIds;
+    }
+
+    // The part of the load of a region that moves with a shard.
+    private double shardLoad(String shardId, Totals totals) {
+        double rateShare = totals.rate > 0 ? clusterLoad.shardRate(shardId) / totals.rate : 0;
+        return rateWeight * rateShare + shardCountWeight / totals.shards;
+    }
+
+    private double load(String address, List<String> shardIds, Totals totals) {
+        double rate = 0;
+        for (String shardId : shardIds) {
+            rate += clusterLoad.shardRate(shardId);
+        }
+        double rateShare = totals.rate > 0 ? rate / totals.rate : 0;
+        double shardShare = totals.shards > 0 ? (double) shardIds.size() / totals.shards : 0;
+        return rateWeight * rateShare
+                + cpuWeight * clusterLoad.cpu(address)
+                + heapWeight * clusterLoad.heap(address)
+                + shardCountWeight * shardShare;
+    }
+
+    private <R> Totals totals(Map<R, List<String>> allocations) {
+        Totals totals = new Totals();
+        for (List<String> shardIds : allocations.values()) {
+            for (String shardId : shardIds) {
+                totals.rate += clusterLoad.shardRate(shardId);
+            }
+            totals.shards += shardIds.size();
+        }
+        return totals;
+    }
+
+    // The local shard region has an address without host and port.
+    private String address(ActorRef region) {
+        Address address = region.path().address();
+        return (address.hasGlobalScope() ? address : selfAddress).toString();
+    }
+
+    private static Map<ActorRef, List<String>> asJava(Map<ActorRef, IndexedSeq<String>> allocations) {
+        Map<ActorRef, List<String>> converted = new HashMap<>();
+        allocations.forEach((region, shardIds) -> converted.put(region, JavaConverters.seqAsJavaListConverter(shardIds).asJava()));
+        return converted;
+    }
+
+    /** A shard that the coordinator moves from one member to another, and whether it was hot. */
+    static class Rebalanced implements Serializable {
+        final String shardId;
+        final String fromMember;
+        final String toMember;
+        final boolean hot;
+        final boolean forward;
+
+        Rebalanced(String shardId, String fromMember, String toMember, boolean hot, boolean forward) {
+            this.shardId = shardId;
+            this.fromMember = fromMember;
+            this.toMember = toMember;
+            this.hot = hot;
+            this.forward = forward;
+        }
+
+        Rebalanced asNoForward() {
+            return new Rebalanced(shardId, fromMember, toMember, hot, false);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s -> %s, hot %b, %b]", getClass().getSimpleName(), shardId, fromMember, toMember, hot, forward);
+        }
+    }
+
+    private static class Totals {
+        double rate;
+        int shards;
+    }
+}
@@ -0,0 +1,353 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a cluster of nodes in one JVM on loopback ports, without Kubernetes, to measure how the
+ * cluster scales and how long it takes to recover from node failures. Each node is an actor system
+ * with the same actors as a node started by {@link Runner}, including the HTTP server, and joins
+ * the cluster through static seed nodes instead of Cluster Bootstrap.
+ * <p>
+ * The nodes, the run time and the node events are set in cluster-demo.local-cluster, and the
+ * workload in cluster-demo.load. Node events given as arguments, such as "30s kill 3", replace
+ * the configured script. While it runs, it prints the throughput of all nodes and the latency of
+ * the slowest node every report interval, and at the end the throughput and latency after the warm-up and, for every node
+ * event, how long it took until all shards were hosted again and until the last shard moved.
+ */
+public class LocalCluster {
+    private static final long nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+    private final Config config;
+    private final Config settings;
+    private final List<NodeEvent> script;
+    private final int numberOfShards;
+    private final Map<Integer, ActorSystem> nodes = new TreeMap<>();
+    private final Map<Integer, CompletionStage<?>> stoppingNodes = new HashMap<>();
+    private final Map<String, Load> loads = new TreeMap<>();
+    private final List<Rebalance> rebalances = new ArrayList<>();
+    private Map<String, Integer> shardAllocation = Collections.emptyMap();
+    private final long start = System.nanoTime();
+
+    LocalCluster(Config config, List<String> script) {
+        this.config = config;
+        this.settings = config.getConfig("cluster-demo.local-cluster");
+        this.script = (script.isEmpty() ? settings.getStringList("script") : script).stream()
+                .map(NodeEvent::parse)
+                .sorted((e1, e2) -> Long.compare(e1.atMillis, e2.atMillis))
+                .collect(Collectors.toList());
+        this.numberOfShards = config.getInt("cluster-demo.sharding.number-of-shards");
+        loads.put("commands", new Load());
+        loads.put("queries", new Load());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LocalCluster(ConfigFactory.load(), Arrays.asList(args)).run();
+    }
+
+    void run() throws Exception {
+        long duration = settings.getDuration("duration", TimeUnit.MILLISECONDS);
+        long warmUp = settings.getDuration("warm-up", TimeUnit.MILLISECONDS);
+        long reportInterval = settings.getDuration("report-interval", TimeUnit.MILLISECONDS);
+        long shardPollInterval = settings.getDuration("shard-poll-interval", TimeUnit.MILLISECONDS);
+        int initialNodes = settings.getInt("nodes");
+
+        System.out.println(String.format("Starting %d nodes, script %s", initialNodes,
+                script.stream().map(event -> String.format("%.1fs %s", event.atMillis / 1000.0, event)).collect(Collectors.toList())));
+        for (int n = 1; n <= initialNodes; n++) {
+            startNode(n);
+        }
+        rebalances.add(new Rebalance(String.format("start 1-%d", initialNodes), 0));
+
+        long nextReport = reportInterval;
+        long nextShardPoll = 0;
+        int nextEvent = 0;
+        for (long now = elapsedMillis(); now < duration; now = elapsedMillis()) {
+            while (nextEvent < script.size() && script.get(nextEvent).atMillis <= now) {
+                NodeEvent event = script.get(nextEvent++);
+                System.out.println(String.format("%7.1fs %s", now / 1000.0, event));
+                event.apply(this);
+                rebalances.add(new Rebalance(event.toString(), now));
+            }
+            pollLatencies(now >= warmUp);
+            if (now >= nextShardPoll) {
+                pollShards(now);
+                nextShardPoll = now + shardPollInterval;
+            }
+            if (now >= nextReport) {
+                printInterval(now, reportInterval);
+                nextReport += reportInterval;
+            }
+            Thread.sleep(100);
+        }
+
+        int nodesAtEnd = nodes.size();
+        stopAll();
+        printSummary(duration - warmUp, nodesAtEnd);
+    }
+
+    void startNode(int n) throws Exception {
+        if (nodes.containsKey(n)) {
+            System.out.println(String.format("Node %d is already running", n));
+            return;
+        }
+        CompletionStage<?> stopping = stoppingNodes.remove(n);
+        if (stopping != null) {
+            stopping.toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+        ActorSystem actorSystem = ActorSystem.create(Runner.actorSystemName, nodeConfig(n));
+        Runner.startNode(actorSystem);
+        nodes.put(n, actorSystem);
+    }
+
+    // Stops the node without leaving the cluster, so the other nodes see it become unreachable.
+    void killNode(int n) {
+        ActorSystem actorSystem = nodes.remove(n);
+        if (actorSystem != null) {
+            actorSystem.terminate();
+            stoppingNodes.put(n, actorSystem.getWhenTerminated());
+        }
+    }
+
+    void leaveNode(int n) {
+        ActorSystem actorSystem = nodes.remove(n);
+        if (actorSystem != null) {
+            stoppingNodes.put(n, CoordinatedShutdown.get(actorSystem).runAll(CoordinatedShutdown.clusterLeavingReason())
+                    .thenCompose(done -> actorSystem.getWhenTerminated()));
+        }
+    }
+
+    private Config nodeConfig(int n) {
+        String hostname = settings.getString("hostname");
+        int basePort = settings.getInt("base-port");
+        String dir = String.format("%s/node-%d", settings.getString("dir"), n);
+        String seedNodes = String.format("\"akka.tcp://%s@%s:%d\"", Runner.actorSystemName, hostname, basePort);
+        if (settings.getInt("nodes") > 1) {
+            seedNodes += String.format(", \"akka.tcp://%s@%s:%d\"", Runner.actorSystemName, hostname, basePort + 1);
+        }
+        return ConfigFactory.parseString(String.format(
+                "akka.loglevel = \"%s\"\n"
+                        + "akka.stdout-loglevel = \"%1$s\"\n"
+                        + "akka.remote.netty.tcp.hostname = \"%s\"\n"
+                        + "akka.remote.netty.tcp.port = %d\n"
+                        + "akka.cluster.seed-nodes = [%s]\n"
+                        + "akka.cluster.auto-down-unreachable-after = %s\n"
+                        + "akka.cluster.jmx.multi-mbeans-in-same-jvm = on\n"
+                        + "akka.cluster.metrics.native-library-extract-folder = \"%s/native\"\n"
+                        + "cluster-demo.http.hostname = \"%2$s\"\n"
+                        + "cluster-demo.http.port = %d\n"
+                        + "cluster-demo.persistence.journal.dir = \"%6$s/journal\"\n"
+                        + "cluster-demo.persistence.snapshot-store.dir = \"%6$s/snapshots\"\n"
+                        + "cluster-demo.persistence.shard-owners.durable.lmdb.dir = \"%6$s/ddata\"\n",
+                settings.getString("loglevel"), hostname, basePort + n - 1, seedNodes,
+                settings.getString("auto-down-unreachable-after"), dir, settings.getInt("http-base-port") + n - 1))
+                .withFallback(config)
+                .resolve();
+    }
+
+    // The load actors of each node publish a latency summary every cluster-demo.load.report-interval.
+    private void pollLatencies(boolean measured) {
+        for (Map.Entry<Integer, ActorSystem> node : nodes.entrySet()) {
+            Latencies latencies = Latencies.get(node.getValue());
+            for (Map.Entry<String, Load> load : loads.entrySet()) {
+                load.getValue().update(node.getKey(), latencies.summary(load.getKey()), measured);
+            }
+        }
+    }
+
+    private void pollShards(long now) throws InterruptedException {
+        Map<Integer, CompletableFuture<Object>> states = new TreeMap<>();
+        for (Map.Entry<Integer, ActorSystem> node : nodes.entrySet()) {
+            ActorRef shardRegion = ClusterSharding.get(node.getValue()).shardRegion("entity");
+            states.put(node.getKey(), Patterns.ask(shardRegion, ShardRegion.getShardRegionStateInstance(), Duration.ofSeconds(1))
+                    .toCompletableFuture());
+        }
+        Map<String, Integer> allocation = new TreeMap<>();
+        for (Map.Entry<Integer, CompletableFuture<Object>> state : states.entrySet()) {
+            try {
+                ShardRegion.CurrentShardRegionState shardRegionState = (ShardRegion.CurrentShardRegionState) state.getValue().get(2, TimeUnit.SECONDS);
+                shardRegionState.getShards().forEach(shard -> allocation.put(shard.shardId(), state.getKey()));
+            } catch (ExecutionException | TimeoutException e) {
+                // A node that does not answer in time hosts no shards for this poll.
+            }
+        }
+        Rebalance rebalance = rebalances.get(rebalances.size() - 1);
+        if (!allocation.equals(shardAllocation)) {
+            rebalance.lastMoveMillis = now;
+            shardAllocation = allocation;
+        }
+        if (allocation.size() == numberOfShards && rebalance.allHostedMillis < 0) {
+            rebalance.allHostedMillis = now;
+        }
+    }
+
+    private void printInterval(long now, long reportInterval) {
+        Load commands = loads.get("commands");
+        Load queries = loads.get("queries");
+        System.out.println(String.format("%7.1fs %3d up %10.1f commands/s p50 %6dus p99 %7dus %10.1f queries/s p99 %7dus",
+                now / 1000.0, upMembers(), commands.intervalCount * 1000.0 / reportInterval, commands.intervalP50,
+                commands.intervalP99, queries.intervalCount * 1000.0 / reportInterval, queries.intervalP99));
+        loads.values().forEach(Load::resetInterval);
+    }
+
+    private long upMembers() {
+        for (ActorSystem actorSystem : nodes.values()) {
+            return StreamSupport.stream(Cluster.get(actorSystem).state().getMembers().spliterator(), false)
+                    .filter(member -> member.status().equals(MemberStatus.up()))
+                    .count();
+        }
+        return 0;
+    }
+
+    private void printSummary(long measuredMillis, int nodesAtEnd) {
+        System.out.println(String.format("%nAfter the warm-up, %d nodes at the end", nodesAtEnd));
+        loads.forEach((name, load) -> System.out.println(String.format("  %-8s %10.1f/s p50 %7dus p99 %7dus worst p99 %7dus",
+                name, load.count * 1000.0 / measuredMillis, median(load.p50s), median(load.p99s), max(load.p99s))));
+        System.out.println("Rebalances, from the node event");
+        for (Rebalance rebalance : rebalances) {
+            System.out.println(String.format("  %7.1fs %-14s %s", rebalance.atMillis / 1000.0, rebalance.event, rebalance.result(numberOfShards)));
+        }
+    }
+
+    private void stopAll() throws Exception {
+        new ArrayList<>(nodes.keySet()).forEach(this::killNode);
+        for (CompletionStage<?> stopping : stoppingNodes.values()) {
+            stopping.toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - start) * 1000 / nanosPerSecond;
+    }
+
+    private static long median(List<Long> values) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private static long max(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).max().orElse(0);
+    }
+
+    /** The latency summaries of one kind of request, such as commands, from all nodes. */
+    private static class Load {
+        private final Map<Integer, LatencyHistogram.Summary> latest = new HashMap<>();
+        long intervalCount;
+        long intervalP50;
+        long intervalP99;
+        long count;
+        final List<Long> p50s = new ArrayList<>();
+        final List<Long> p99s = new ArrayList<>();
+
+        void update(int node, LatencyHistogram.Summary summary, boolean measured) {
+            if (summary == null || summary == latest.get(node)) {
+                return;
+            }
+            latest.put(node, summary);
+            intervalCount += summary.count;
+            intervalP50 = Math.max(intervalP50, summary.p50);
+            intervalP99 = Math.max(intervalP99, summary.p99);
+            if (measured && summary.count > 0) {
+                count += summary.count;
+                p50s.add(summary.p50);
+                p99s.add(summary.p99);
+            }
+        }
+
+        void resetInterval() {
+            intervalCount = 0;
+            intervalP50 = 0;
+            intervalP99 = 0;
+        }
+    }
+
+    /** The shard movements after a node event, until the next node event. */
+    private static class Rebalance {
+        final String event;
+        final long atMillis;
+        long allHostedMillis = -1;
+        long lastMoveMillis = -1;
+
+        Rebalance(String event, long atMillis) {
+            this.event = event;
+            this.atMillis = atMillis;
+        }
+
+        String result(int numberOfShards) {
+            String allHosted = allHostedMillis < 0
+                    ? String.format("not all %d shards hosted", numberOfShards)
+                    : String.format("all %d shards hosted after %.1fs", numberOfShards, (allHostedMillis - atMillis) / 1000.0);
+            String lastMove = lastMoveMillis < 0
+                    ? "no shard moved"
+                    : String.format("last shard move after %.1fs", (lastMoveMillis - atMillis) / 1000.0);
+            return allHosted + ", " + lastMove;
+        }
+    }
+
+    /** A scripted node event, such as "30s kill 3". */
+    static class NodeEvent {
+        final long atMillis;
+        final String action;
+        final int node;
+
+        NodeEvent(long atMillis, String action, int node) {
+            this.atMillis = atMillis;
+            this.action = action;
+            this.node = node;
+        }
+
+        static NodeEvent parse(String event) {
+            String[] parts = event.trim().split("\\s+");
+            if (parts.length != 3 || !(parts[1].equals("kill") || parts[1].equals("leave") || parts[1].equals("start"))) {
+                throw new IllegalArgumentException(String.format("Node event '%s' is not like '30s kill 3', '30s leave 3' or '30s start 3'", event));
+            }
+            long atMillis = ConfigFactory.parseString("at = " + parts[0]).getDuration("at", TimeUnit.MILLISECONDS);
+            return new NodeEvent(atMillis, parts[1], Integer.parseInt(parts[2]));
+        }
+
+        void apply(LocalCluster localCluster) throws Exception {
+            switch (action) {
+                case "kill":
+                    localCluster.killNode(node);
+                    break;
+                case "leave":
+                    localCluster.leaveNode(node);
+                    break;
+                default:
+                    localCluster.startNode(node);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d", action, node);
+        }
+    }
+}
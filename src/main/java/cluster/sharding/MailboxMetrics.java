@@ -0,0 +1,129 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The mailbox metrics of the actors of this node that use the {@link InstrumentedMailbox}, by actor
+ * class: the messages enqueued, the messages waiting in all mailboxes of the class and the deepest
+ * single mailbox, and histograms of the time the sampled messages waited in the mailbox and of the
+ * time the actor took to process them.
+ * <p>
+ * Time in mailbox high and processing time low means the actor is starved of threads or gets more
+ * messages than it can handle. Processing time high means the work itself is slow. Both low while
+ * the callers see high latency means the time goes to the network.
+ */
+class MailboxMetrics implements Extension {
+    private static final ObjectWriter jsonWriter = new ObjectMapper().writer();
+    private final ConcurrentMap<String, ActorClass> actorClasses = new ConcurrentSkipListMap<>();
+
+    ActorClass actorClass(String name) {
+        return actorClasses.computeIfAbsent(name, ActorClass::new);
+    }
+
+    /** Takes the summary of every actor class since the last report and returns them as JSON. */
+    String report() {
+        long time = System.currentTimeMillis();
+        Map<String, Summary> summaries = new TreeMap<>();
+        actorClasses.forEach((name, actorClass) -> summaries.put(name, actorClass.summary(time)));
+        try {
+            return jsonWriter.writeValueAsString(summaries);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    static MailboxMetrics get(ActorSystem actorSystem) {
+        return Id.instance.get(actorSystem);
+    }
+
+    static class Id extends AbstractExtensionId<MailboxMetrics> {
+        static final Id instance = new Id();
+
+        @Override
+        public MailboxMetrics createExtension(ExtendedActorSystem system) {
+            return new MailboxMetrics();
+        }
+    }
+
+    /**
+     * The metrics of the mailboxes of one actor class. The counts are updated by the threads that
+     * send messages without locking, the histograms are only updated for sampled messages.
+     */
+    static class ActorClass {
+        final String name;
+        private final LongAdder messages = new LongAdder();
+        private final LongAdder depth = new LongAdder();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final LatencyHistogram timeInMailbox = new LatencyHistogram();
+        private final LatencyHistogram processingTime = new LatencyHistogram();
+
+        ActorClass(String name) {
+            this.name = name;
+        }
+
+        void enqueued(int mailboxDepth) {
+            messages.increment();
+            depth.increment();
+            if (mailboxDepth > maxDepth.get()) {
+                maxDepth.accumulateAndGet(mailboxDepth, Math::max);
+            }
+        }
+
+        void dequeued() {
+            depth.decrement();
+        }
+
+        synchronized void recordTimeInMailbox(long nanos) {
+            timeInMailbox.recordValue(nanos / 1000);
+        }
+
+        synchronized void recordProcessingTime(long nanos) {
+            processingTime.recordValue(nanos / 1000);
+        }
+
+        /** The summary since the last one. The histograms and the deepest mailbox are reset. */
+        synchronized Summary summary(long time) {
+            Summary summary = new Summary(messages.sumThenReset(), depth.sum(), maxDepth.getAndSet(0),
+                    timeInMailbox.summary(time), processingTime.summary(time));
+            timeInMailbox.reset();
+            processingTime.reset();
+            return summary;
+        }
+    }
+
+    /** The mailbox metrics of an actor class in an interval, times in microseconds. */
+    public static class Summary {
+        public final long messages;
+        public final long depth;
+        public final int maxDepth;
+        public final LatencyHistogram.Summary timeInMailbox;
+        public final LatencyHistogram.Summary processingTime;
+
+        Summary(long messages, long depth, int maxDepth, LatencyHistogram.Summary timeInMailbox, LatencyHistogram.Summary processingTime) {
+            this.messages = messages;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.timeInMailbox = timeInMailbox;
+            this.processingTime = processingTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[messages %d, depth %d, max depth %d, in mailbox %s, processing %s]",
+                    getClass().getSimpleName(), messages, depth, maxDepth, timeInMailbox, processingTime);
+        }
+    }
+}
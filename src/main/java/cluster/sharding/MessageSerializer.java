@@ -0,0 +1,645 @@
+package cluster.sharding;
+
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import akka.serialization.Serializers;
+import scala.util.Try;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary format for the messages that are sent between cluster nodes. Strings are written
+ * as a varint length followed by UTF-8 bytes and collection sizes as varints.
+ * <p>
+ * Entity values of a type without a tag of their own are written with the serializer that Akka
+ * serialization picks for them, as its identifier, manifest and bytes, so that the serialization
+ * settings of the actor system, such as akka.actor.allow-java-serialization, also apply to them.
+ * Without an actor system such values are rejected.
+ */
+public class MessageSerializer extends SerializerWithStringManifest {
+    private static final String commandManifest = "C";
+    private static final String commandAckManifest = "CA";
+    private static final String queryManifest = "Q";
+    private static final String queryAckManifest = "QA";
+    private static final String queryAckNotFoundManifest = "QN";
+    private static final String entityActionManifest = "EA";
+    private static final String entityActionBatchManifest = "EB";
+    private static final String singletonActionManifest = "SA";
+    private static final String stopNodeManifest = "SN";
+    private static final String treeDigestManifest = "TD";
+    private static final String treeRepairRequestManifest = "TQ";
+    private static final String treeRepairManifest = "TR";
+    private static final String hotEntitiesManifest = "HE";
+    private static final String entityManifest = "E";
+    private static final String shardRatesManifest = "SL";
+    private static final String rebalancedManifest = "SR";
+    private static final String persistentEventManifest = "PE";
+    private static final String shardOwnerManifest = "SO";
+
+    private static final byte nullValue = 0;
+    private static final byte stringValue = 1;
+    private static final byte longValue = 2;
+    private static final byte intValue = 3;
+    private static final byte doubleValue = 4;
+    private static final byte bytesValue = 5;
+    private static final byte booleanValue = 6;
+    private static final byte serializedValue = 127;
+
+    private final ExtendedActorSystem system;
+    private Serialization serialization;
+
+    public MessageSerializer() {
+        this(null);
+    }
+
+    public MessageSerializer(ExtendedActorSystem system) {
+        this.system = system;
+    }
+
+    @Override
+    public int identifier() {
+        return 5001;
+    }
+
+    @Override
+    public String manifest(Object message) {
+        if (message instanceof EntityMessage.Command) {
+            return commandManifest;
+        } else if (message instanceof EntityMessage.CommandAck) {
+            return commandAckManifest;
+        } else if (message instanceof EntityMessage.Query) {
+            return queryManifest;
+        } else if (message instanceof EntityMessage.QueryAck) {
+            return queryAckManifest;
+        } else if (message instanceof EntityMessage.QueryAckNotFound) {
+            return queryAckNotFoundManifest;
+        } else if (message instanceof EntityMessage.Action) {
+            return entityActionManifest;
+        } else if (message instanceof EntityMessage.ActionBatch) {
+            return entityActionBatchManifest;
+        } else if (message instanceof ClusterSingletonActor.Action) {
+            return singletonActionManifest;
+        } else if (message instanceof HttpServerActor.StopNode) {
+            return stopNodeManifest;
+        } else if (message instanceof HttpServerActor.TreeDigest) {
+            return treeDigestManifest;
+        } else if (message instanceof HttpServerActor.TreeRepairRequest) {
+            return treeRepairRequestManifest;
+        } else if (message instanceof HttpServerActor.TreeRepair) {
+            return treeRepairManifest;
+        } else if (message instanceof HttpServerActor.HotEntities) {
+            return hotEntitiesManifest;
+        } else if (message instanceof Entity) {
+            return entityManifest;
+        } else if (message instanceof ClusterLoad.ShardRates) {
+            return shardRatesManifest;
+        } else if (message instanceof LoadAwareAllocationStrategy.Rebalanced) {
+            return rebalancedManifest;
+        } else if (message instanceof PersistentEntityActor.Event) {
+            return persistentEventManifest;
+        } else if (message instanceof ShardOwnership.Owner) {
+            return shardOwnerManifest;
+        } else {
+            throw new IllegalArgumentException(String.format("Can't serialize object of type %s", message.getClass()));
+        }
+    }
+
+    @Override
+    public byte[] toBinary(Object message) {
+        Writer writer = new Writer();
+        if (message instanceof EntityMessage.Command) {
+            EntityMessage.Command command = (EntityMessage.Command) message;
+            writeEntity(writer, command.entity);
+            writer.writeString(command.shardId);
+            writer.writeVarLong(command.correlationId);
+        } else if (message instanceof EntityMessage.CommandAck) {
+            EntityMessage.CommandAck commandAck = (EntityMessage.CommandAck) message;
+            writer.writeString(commandAck.action);
+            writeEntity(writer, commandAck.entity);
+            writer.writeVarLong(commandAck.correlationId);
+        } else if (message instanceof EntityMessage.Query) {
+            EntityMessage.Query query = (EntityMessage.Query) message;
+            writeId(writer, query.id);
+            writer.writeString(query.shardId);
+            writer.writeVarLong(query.correlationId);
+        } else if (message instanceof EntityMessage.QueryAck) {
+            EntityMessage.QueryAck queryAck = (EntityMessage.QueryAck) message;
+            writeEntity(writer, queryAck.entity);
+            writer.writeVarLong(queryAck.correlationId);
+        } else if (message instanceof EntityMessage.QueryAckNotFound) {
+            EntityMessage.QueryAckNotFound queryAckNotFound = (EntityMessage.QueryAckNotFound) message;
+            writeId(writer, queryAckNotFound.id);
+            writer.writeVarLong(queryAckNotFound.correlationId);
+        } else if (message instanceof EntityMessage.Action) {
+            EntityMessage.Action action = (EntityMessage.Action) message;
+            writer.writeString(action.member);
+            writer.writeString(action.shardId);
+            writer.writeString(action.entityId);
+            writer.writeString(action.action);
+            writer.writeBoolean(action.forward);
+        } else if (message instanceof EntityMessage.ActionBatch) {
+            EntityMessage.ActionBatch batch = (EntityMessage.ActionBatch) message;
+            writer.writeString(batch.member);
+            writer.writeVarInt(batch.entityIds.length);
+            for (int i = 0; i < batch.entityIds.length; i++) {
+                writer.writeString(batch.shardIds[i]);
+                writer.writeString(batch.entityIds[i]);
+                writer.writeBoolean(batch.starts[i]);
+            }
+        } else if (message instanceof ClusterSingletonActor.Action) {
+            ClusterSingletonActor.Action action = (ClusterSingletonActor.Action) message;
+            writer.writeString(action.member);
+            writer.writeString(action.action);
+            writer.writeBoolean(action.forward);
+        } else if (message instanceof HttpServerActor.StopNode) {
+            writer.writeString(((HttpServerActor.StopNode) message).memberAddress);
+        } else if (message instanceof HttpServerActor.TreeDigest) {
+            HttpServerActor.TreeDigest treeDigest = (HttpServerActor.TreeDigest) message;
+            writer.writeString(treeDigest.memberId);
+            writer.writeLong(treeDigest.memberDigest);
+            writer.writeVarInt(treeDigest.shardDigests.size());
+            treeDigest.shardDigests.forEach((shardId, digest) -> {
+                writer.writeString(shardId);
+                writer.writeLong(digest);
+            });
+        } else if (message instanceof HttpServerActor.TreeRepairRequest) {
+            HttpServerActor.TreeRepairRequest treeRepairRequest = (HttpServerActor.TreeRepairRequest) message;
+            writer.writeString(treeRepairRequest.memberId);
+            writeStrings(writer, treeRepairRequest.shardIds);
+        } else if (message instanceof HttpServerActor.TreeRepair) {
+            HttpServerActor.TreeRepair treeRepair = (HttpServerActor.TreeRepair) message;
+            writer.writeString(treeRepair.memberId);
+            writer.writeVarInt(treeRepair.entityIdsByShard.size());
+            treeRepair.entityIdsByShard.forEach((shardId, entityIds) -> {
+                writer.writeString(shardId);
+                writeStrings(writer, entityIds);
+            });
+        } else if (message instanceof HttpServerActor.HotEntities) {
+            HttpServerActor.HotEntities hotEntities = (HttpServerActor.HotEntities) message;
+            writer.writeString(hotEntities.memberId);
+            writer.writeVarInt(hotEntities.entityIds.length);
+            for (int i = 0; i < hotEntities.entityIds.length; i++) {
+                writer.writeString(hotEntities.shardIds[i]);
+                writer.writeString(hotEntities.entityIds[i]);
+                writer.writeVarLong(hotEntities.counts[i]);
+                writer.writeVarLong(hotEntities.errors[i]);
+            }
+        } else if (message instanceof Entity) {
+            writeEntity(writer, (Entity) message);
+        } else if (message instanceof ClusterLoad.ShardRates) {
+            ClusterLoad.ShardRates shardRates = (ClusterLoad.ShardRates) message;
+            writer.writeVarInt(shardRates.shardIds.length);
+            for (int i = 0; i < shardRates.shardIds.length; i++) {
+                writer.writeString(shardRates.shardIds[i]);
+                writer.writeLong(Double.doubleToRawLongBits(shardRates.rates[i]));
+                writer.writeBoolean(shardRates.hot[i]);
+            }
+        } else if (message instanceof LoadAwareAllocationStrategy.Rebalanced) {
+            LoadAwareAllocationStrategy.Rebalanced rebalanced = (LoadAwareAllocationStrategy.Rebalanced) message;
+            writer.writeString(rebalanced.shardId);
+            writer.writeString(rebalanced.fromMember);
+            writer.writeString(rebalanced.toMember);
+            writer.writeBoolean(rebalanced.hot);
+            writer.writeBoolean(rebalanced.forward);
+        } else if (message instanceof PersistentEntityActor.Event) {
+            PersistentEntityActor.Event event = (PersistentEntityActor.Event) message;
+            writeEntity(writer, event.entity);
+            writer.writeVarLong(event.ownershipVersion);
+        } else if (message instanceof ShardOwnership.Owner) {
+            ShardOwnership.Owner owner = (ShardOwnership.Owner) message;
+            writer.writeVarLong(owner.version);
+            writer.writeString(owner.memberId);
+        } else {
+            throw new IllegalArgumentException(String.format("Can't serialize object of type %s", message.getClass()));
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        Reader reader = new Reader(bytes);
+        switch (manifest) {
+            case commandManifest:
+                return new EntityMessage.Command(readEntity(reader), reader.readString(), reader.readVarLong());
+            case commandAckManifest:
+                return new EntityMessage.CommandAck(reader.readString(), readEntity(reader), reader.readVarLong());
+            case queryManifest:
+                return new EntityMessage.Query(new Entity.Id(reader.readString()), reader.readString(), reader.readVarLong());
+            case queryAckManifest:
+                return new EntityMessage.QueryAck(readEntity(reader), reader.readVarLong());
+            case queryAckNotFoundManifest:
+                return new EntityMessage.QueryAckNotFound(new Entity.Id(reader.readString()), reader.readVarLong());
+            case entityActionManifest:
+                return new EntityMessage.Action(reader.readString(), reader.readString(), reader.readString(), reader.readString(), reader.readBoolean());
+            case entityActionBatchManifest:
+                return readActionBatch(reader);
+            case singletonActionManifest:
+                return new ClusterSingletonActor.Action(reader.readString(), reader.readString(), reader.readBoolean());
+            case stopNodeManifest:
+                return new HttpServerActor.StopNode(reader.readString());
+            case treeDigestManifest:
+                return readTreeDigest(reader);
+            case treeRepairRequestManifest:
+                return new HttpServerActor.TreeRepairRequest(reader.readString(), readStrings(reader, new ArrayList<>()));
+            case treeRepairManifest:
+                return readTreeRepair(reader);
+            case hotEntitiesManifest:
+                return readHotEntities(reader);
+            case entityManifest:
+                return readEntity(reader);
+            case shardRatesManifest:
+                return readShardRates(reader);
+            case rebalancedManifest:
+                return new LoadAwareAllocationStrategy.Rebalanced(reader.readString(), reader.readString(), reader.readString(), reader.readBoolean(), reader.readBoolean());
+            case persistentEventManifest:
+                return new PersistentEntityActor.Event(readEntity(reader), reader.readVarLong());
+            case shardOwnerManifest:
+                return new ShardOwnership.Owner(reader.readVarLong(), reader.readString());
+            default:
+                throw new NotSerializableException(String.format("Unimplemented deserialization of message with manifest '%s'", manifest));
+        }
+    }
+
+    /** The same encoding of an entity as in messages, for keeping entities off the heap. */
+    byte[] entityToBinary(Entity entity) {
+        Writer writer = new Writer();
+        writeEntity(writer, entity);
+        return writer.toByteArray();
+    }
+
+    Entity entityFromBinary(byte[] bytes) {
+        return readEntity(new Reader(bytes));
+    }
+
+    // A numeric id is written like its decimal string, without making the string.
+    private static void writeId(Writer writer, Entity.Id id) {
+        if (id.isNumeric()) {
+            writer.writeDecimal(id.number());
+        } else {
+            writer.writeString(id.id());
+        }
+    }
+
+    private void writeEntity(Writer writer, Entity entity) {
+        writeId(writer, entity.id);
+        writeValue(writer, entity.value);
+    }
+
+    private Entity readEntity(Reader reader) {
+        return new Entity(new Entity.Id(reader.readString()), readValue(reader));
+    }
+
+    private void writeValue(Writer writer, Entity.Value value) {
+        if (value instanceof Entity.LongValue) {
+            writer.writeByte(longValue);
+            writer.writeLong(((Entity.LongValue) value).value);
+        } else if (value instanceof Entity.DoubleValue) {
+            writer.writeByte(doubleValue);
+            writer.writeLong(Double.doubleToRawLongBits(((Entity.DoubleValue) value).value));
+        } else if (value instanceof Entity.BytesValue) {
+            writer.writeByte(bytesValue);
+            writer.writeBytes(((Entity.BytesValue) value).value);
+        } else if (value instanceof Entity.StringValue) {
+            writer.writeByte(stringValue);
+            writer.writeStringBytes(((Entity.StringValue) value).utf8);
+        } else {
+            writeValue(writer, value == null ? null : value.value());
+        }
+    }
+
+    private void writeValue(Writer writer, Object value) {
+        if (value == null) {
+            writer.writeByte(nullValue);
+        } else if (value instanceof String) {
+            writer.writeByte(stringValue);
+            writer.writeString((String) value);
+        } else if (value instanceof Long) {
+            writer.writeByte(longValue);
+            writer.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            writer.writeByte(intValue);
+            writer.writeVarInt((Integer) value);
+        } else if (value instanceof Double) {
+            writer.writeByte(doubleValue);
+            writer.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof byte[]) {
+            writer.writeByte(bytesValue);
+            writer.writeBytes((byte[]) value);
+        } else if (value instanceof Boolean) {
+            writer.writeByte(booleanValue);
+            writer.writeBoolean((Boolean) value);
+        } else {
+            Serializer serializer = serialization().findSerializerFor(value);
+            writer.writeByte(serializedValue);
+            writer.writeVarInt(serializer.identifier());
+            writer.writeString(Serializers.manifestFor(serializer, value));
+            writer.writeBytes(serializer.toBinary(value));
+        }
+    }
+
+    private Entity.Value readValue(Reader reader) {
+        byte type = reader.readByte();
+        switch (type) {
+            case nullValue:
+                return Entity.Value.empty;
+            case stringValue:
+                byte[] utf8 = reader.readStringBytes();
+                return utf8 == null ? Entity.Value.empty : new Entity.StringValue(utf8);
+            case longValue:
+                return Entity.Value.of(reader.readLong());
+            case intValue:
+                return Entity.Value.of((Object) reader.readVarInt());
+            case doubleValue:
+                return Entity.Value.of(Double.longBitsToDouble(reader.readLong()));
+            case bytesValue:
+                return Entity.Value.of(reader.readBytes());
+            case booleanValue:
+                return Entity.Value.of((Object) reader.readBoolean());
+            case serializedValue:
+                return Entity.Value.of(deserialize(reader.readVarInt(), reader.readString(), reader.readBytes()));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown entity value type %d", type));
+        }
+    }
+
+    private static EntityMessage.ActionBatch readActionBatch(Reader reader) {
+        String member = reader.readString();
+        int size = reader.readVarInt();
+        String[] shardIds = new String[size];
+        String[] entityIds = new String[size];
+        boolean[] starts = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            shardIds[i] = reader.readString();
+            entityIds[i] = reader.readString();
+            starts[i] = reader.readBoolean();
+        }
+        return new EntityMessage.ActionBatch(member, shardIds, entityIds, starts);
+    }
+
+    private static HttpServerActor.TreeDigest readTreeDigest(Reader reader) {
+        String memberId = reader.readString();
+        long memberDigest = reader.readLong();
+        int size = reader.readVarInt();
+        Map<String, Long> shardDigests = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            shardDigests.put(reader.readString(), reader.readLong());
+        }
+        return new HttpServerActor.TreeDigest(memberId, memberDigest, shardDigests);
+    }
+
+    private static HttpServerActor.TreeRepair readTreeRepair(Reader reader) {
+        String memberId = reader.readString();
+        int size = reader.readVarInt();
+        Map<String, Set<String>> entityIdsByShard = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            entityIdsByShard.put(reader.readString(), readStrings(reader, new HashSet<>()));
+        }
+        return new HttpServerActor.TreeRepair(memberId, entityIdsByShard);
+    }
+
+    private static HttpServerActor.HotEntities readHotEntities(Reader reader) {
+        String memberId = reader.readString();
+        int size = reader.readVarInt();
+        String[] shardIds = new String[size];
+        String[] entityIds = new String[size];
+        long[] counts = new long[size];
+        long[] errors = new long[size];
+        for (int i = 0; i < size; i++) {
+            shardIds[i] = reader.readString();
+            entityIds[i] = reader.readString();
+            counts[i] = reader.readVarLong();
+            errors[i] = reader.readVarLong();
+        }
+        return new HttpServerActor.HotEntities(memberId, shardIds, entityIds, counts, errors);
+    }
+
+    private static ClusterLoad.ShardRates readShardRates(Reader reader) {
+        int size = reader.readVarInt();
+        String[] shardIds = new String[size];
+        double[] rates = new double[size];
+        boolean[] hot = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            shardIds[i] = reader.readString();
+            rates[i] = Double.longBitsToDouble(reader.readLong());
+            hot[i] = reader.readBoolean();
+        }
+        return new ClusterLoad.ShardRates(shardIds, rates, hot);
+    }
+
+    private static void writeStrings(Writer writer, Collection<String> strings) {
+        writer.writeVarInt(strings.size());
+        strings.forEach(writer::writeString);
+    }
+
+    private static <T extends Collection<String>> T readStrings(Reader reader, T strings) {
+        int size = reader.readVarInt();
+        for (int i = 0; i < size; i++) {
+            strings.add(reader.readString());
+        }
+        return strings;
+    }
+
+    private Object deserialize(int serializerId, String manifest, byte[] bytes) {
+        Try<Object> value = serialization().deserialize(bytes, serializerId, manifest);
+        if (value.isFailure()) {
+            throw new IllegalArgumentException(String.format("Can't deserialize entity value with serializer %d and manifest '%s'",
+                    serializerId, manifest), value.failed().get());
+        }
+        return value.get();
+    }
+
+    // Akka serialization creates its serializers, this one included, so it is looked up when first needed.
+    private Serialization serialization() {
+        if (system == null) {
+            throw new IllegalArgumentException("Entity values of other than the tagged types need an actor system to be serialized");
+        }
+        if (serialization == null) {
+            serialization = SerializationExtension.get(system);
+        }
+        return serialization;
+    }
+
+    static class Writer {
+        private byte[] buffer = new byte[64];
+        private int position;
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            int length = value.length();
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarInt(length + 1);
+                ensureCapacity(length);
+                for (int i = 0; i < length; i++) {
+                    buffer[position++] = (byte) value.charAt(i);
+                }
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length + 1);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, position, bytes.length);
+                position += bytes.length;
+            }
+        }
+
+        // A non-negative number, written like writeString writes its decimal string.
+        void writeDecimal(long value) {
+            int length = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                length++;
+            }
+            writeVarInt(length + 1);
+            ensureCapacity(length);
+            for (int i = position + length - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            position += length;
+        }
+
+        // The UTF-8 bytes of a string, written like writeString writes the string.
+        void writeStringBytes(byte[] utf8) {
+            writeVarInt(utf8.length + 1);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, buffer, position, utf8.length);
+            position += utf8.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensureCapacity(int size) {
+            if (position + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + size));
+            }
+        }
+    }
+
+    static class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            return buffer[position++];
+        }
+
+        boolean readBoolean() {
+            return readByte() != 0;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xff);
+            }
+            return value;
+        }
+
+        byte[] readBytes() {
+            int length = readVarInt();
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        byte[] readStringBytes() {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        // A string is written with its length plus one, so that 0 can stand for null.
+        String readString() {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.NoSerializationVerificationNeeded;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the number of active entities on this node within budget. Entities register when they
+ * start and unregister when they stop, and record the time of their last message in their entry
+ * without sending anything here.
+ * <p>
+ * When a node or shard budget is exceeded, the best candidate of a random sample of the entities
+ * is told to passivate: the least recently used one, or with the lfu policy the one with the
+ * lowest message rate since it started. This is the approximated LRU and LFU that Redis uses.
+ * Sampling keeps an eviction O(sample size) without ordering all entities on every message.
+ * <p>
+ * Entities passivate themselves after the idle timeout. When the heap that survived the last
+ * garbage collection grows above the heap pressure threshold, the manager passivates idle entities
+ * sooner, with an idle timeout that shrinks linearly down to the minimum as the heap fills up.
+ */
+class PassivationManager extends AbstractLoggingActor {
+    private final Config passivation = context().system().settings().config().getConfig("cluster-demo.passivation");
+    private final long idleTimeoutNanos = passivation.getDuration("idle-timeout", TimeUnit.NANOSECONDS);
+    private final long minIdleTimeoutNanos = passivation.getDuration("min-idle-timeout", TimeUnit.NANOSECONDS);
+    private final double heapPressureThreshold = passivation.getDouble("heap-pressure-threshold");
+    private final int maxActivePerNode = passivation.getInt("max-active-entities-per-node");
+    private final int maxActivePerShard = passivation.getInt("max-active-entities-per-shard");
+    private final boolean lfu = passivation.getString("eviction-policy").equals("lfu");
+    private final int sampleSize = passivation.getInt("eviction-sample-size");
+    private final Entries entries = new Entries();
+    private final Map<String, Entries> entriesByShard = new HashMap<>();
+    private final SplittableRandom random = new SplittableRandom();
+    private long evicted;
+    private long expired;
+    private Cancellable ticker;
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Register.class, this::register)
+                .match(Unregister.class, this::unregister)
+                .matchEquals("tick", t -> tick())
+                .build();
+    }
+
+    private void register(Register register) {
+        Entry entry = register.entry;
+        entries.add(entry, true);
+        Entries shardEntries = entriesByShard.computeIfAbsent(entry.shardId, s -> new Entries());
+        shardEntries.add(entry, false);
+
+        while (maxActivePerShard > 0 && shardEntries.active() > maxActivePerShard) {
+            passivate(shardEntries.evictionCandidate());
+            evicted++;
+        }
+        while (maxActivePerNode > 0 && entries.active() > maxActivePerNode) {
+            passivate(entries.evictionCandidate());
+            evicted++;
+        }
+    }
+
+    private void unregister(Unregister unregister) {
+        Entry entry = unregister.entry;
+        if (entries.remove(entry, true)) {
+            Entries shardEntries = entriesByShard.get(entry.shardId);
+            shardEntries.remove(entry, false);
+            if (shardEntries.size() == 0) {
+                entriesByShard.remove(entry.shardId);
+            }
+        }
+    }
+
+    private void tick() {
+        double heapPressure = heapPressure();
+        long idleTimeout = idleTimeout(idleTimeoutNanos, minIdleTimeoutNanos, heapPressureThreshold, heapPressure);
+        if (idleTimeout < idleTimeoutNanos) {
+            long idleSince = System.nanoTime() - idleTimeout;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                if (!entry.passivating && entry.lastAccess - idleSince < 0) {
+                    passivate(entry);
+                    expired++;
+                }
+            }
+            log().info(String.format("Heap pressure %d%%, idle timeout %dms, active entities %d, evicted %d, expired %d",
+                    Math.round(heapPressure * 100), TimeUnit.NANOSECONDS.toMillis(idleTimeout), entries.active(), evicted, expired));
+        }
+    }
+
+    private void passivate(Entry entry) {
+        entry.passivating = true;
+        entries.passivating++;
+        entriesByShard.get(entry.shardId).passivating++;
+        entry.entity.tell(passivate, self());
+    }
+
+    // The idle timeout goes down linearly from the configured one at the threshold to the minimum
+    // when the heap is full.
+    static long idleTimeout(long idleTimeout, long minIdleTimeout, double threshold, double heapPressure) {
+        if (heapPressure <= threshold) {
+            return idleTimeout;
+        }
+        double pressure = threshold < 1 ? Math.min(1, (heapPressure - threshold) / (1 - threshold)) : 1;
+        return idleTimeout - (long) ((idleTimeout - minIdleTimeout) * pressure);
+    }
+
+    // Whether the candidate should be passivated before the current choice.
+    private boolean evictBefore(Entry candidate, Entry current, long now) {
+        if (lfu) {
+            return candidate.accesses / (double) (now - candidate.started + 1) < current.accesses / (double) (now - current.started + 1);
+        }
+        return candidate.lastAccess - current.lastAccess < 0;
+    }
+
+    // The heap that was still in use after the last collection of each heap pool, as a fraction of
+    // the maximum heap, so garbage that has not been collected yet does not count as pressure.
+    private static double heapPressure() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        long max = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+        return max > 0 ? (double) used / max : 0;
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        FiniteDuration checkInterval = Duration.create(passivation.getDuration("check-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        ticker = context().system().scheduler().schedule(
+                checkInterval,
+                checkInterval,
+                self(),
+                "tick",
+                context().system().dispatcher(),
+                null);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        ticker.cancel();
+    }
+
+    static Props props() {
+        return Props.create(PassivationManager.class);
+    }
+
+    static final String passivate = "passivate";
+
+    /**
+     * An active entity. The entity writes the time of its last message and its message count, the
+     * manager reads them and owns the other fields.
+     */
+    static class Entry {
+        final ActorRef entity;
+        final String shardId;
+        final long started = System.nanoTime();
+        volatile long lastAccess = started;
+        volatile long accesses;
+        private boolean passivating;
+        private int position = -1;
+        private int shardPosition = -1;
+
+        Entry(ActorRef entity, String shardId) {
+            this.entity = entity;
+            this.shardId = shardId;
+        }
+
+        // Only the entity calls this, so the increment does not need to be atomic.
+        void touch() {
+            lastAccess = System.nanoTime();
+            accesses++;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), entity.path().name(), shardId);
+        }
+    }
+
+    // Entries are shared with the entities on this node and are never sent to other nodes.
+    static class Register implements NoSerializationVerificationNeeded {
+        final Entry entry;
+
+        Register(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    static class Unregister implements NoSerializationVerificationNeeded {
+        final Entry entry;
+
+        Unregister(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    // Entries in an array list, so a random one can be picked in O(1). Each entry knows its
+    // position, so it is removed in O(1) by moving the last entry into its place.
+    private class Entries {
+        private final List<Entry> list = new ArrayList<>();
+        private int passivating;
+
+        void add(Entry entry, boolean node) {
+            setPosition(entry, node, list.size());
+            list.add(entry);
+        }
+
+        boolean remove(Entry entry, boolean node) {
+            int position = node ? entry.position : entry.shardPosition;
+            if (position < 0) {
+                return false;
+            }
+            Entry last = list.remove(list.size() - 1);
+            if (last != entry) {
+                list.set(position, last);
+                setPosition(last, node, position);
+            }
+            setPosition(entry, node, -1);
+            if (entry.passivating) {
+                passivating--;
+            }
+            return true;
+        }
+
+        int size() {
+            return list.size();
+        }
+
+        int active() {
+            return list.size() - passivating;
+        }
+
+        Entry get(int i) {
+            return list.get(i);
+        }
+
+        // Samples until sampleSize entries are seen, but keeps going for a while longer if all of
+        // them were already passivating, then falls back to the first active entry.
+        Entry evictionCandidate() {
+            long now = System.nanoTime();
+            Entry candidate = null;
+            for (int i = 0; i < sampleSize * 4 && (candidate == null || i < sampleSize); i++) {
+                Entry entry = list.get(random.nextInt(list.size()));
+                if (!entry.passivating && (candidate == null || evictBefore(entry, candidate, now))) {
+                    candidate = entry;
+                }
+            }
+            if (candidate == null) {
+                for (Entry entry : list) {
+                    if (!entry.passivating) {
+                        return entry;
+                    }
+                }
+            }
+            return candidate;
+        }
+
+        private void setPosition(Entry entry, boolean node, int position) {
+            if (node) {
+                entry.position = position;
+            } else {
+                entry.shardPosition = position;
+            }
+        }
+    }
+}
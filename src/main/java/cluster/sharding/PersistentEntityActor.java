@@ -0,0 +1,220 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ShardRegion;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.*;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An entity that persists every change of its value as an event and takes a snapshot every
+ * snapshot-every events, so that it gets its value back when it is started again after it was
+ * passivated or its shard was moved. It handles the same messages as {@link EntityActor}.
+ * <p>
+ * The events are written to the configured journal, by default the {@link SegmentedJournal} on
+ * the local file system, and the snapshots to the local snapshot store. The events that a snapshot
+ * covers are deleted.
+ * <p>
+ * Each node only has the history that was written on it, so when another node owned the shard in
+ * the meantime, the history an entity finds is older than what the entity went through there.
+ * Every event and snapshot carries the {@link ShardOwnership} version of the shard it was written
+ * under. After recovery the entity claims the current version and stashes its messages until it
+ * has it. History from another version is stale: it is discarded and deleted, and the entity
+ * starts without a value. History from the same version is kept, also after the node restarted.
+ */
+class PersistentEntityActor extends AbstractPersistentActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final ActorRef httpServer;
+    private final ActorRef passivationManager;
+    private final ActorRef shardOwnership;
+    private Entity entity;
+    private long historyVersion;
+    private long ownershipVersion;
+    // Cluster sharding names the entity actors by their entity id and their parent by its shard id.
+    private final String entityId = self().path().name();
+    private final String shardId = context().parent().path().name();
+    private final int shardEpoch = context().parent().path().uid();
+    private final String memberId = Cluster.get(context().system()).selfMember().address().toString();
+    private final Config persistence = context().system().settings().config().getConfig("cluster-demo.persistence");
+    private final int snapshotEvery = persistence.getInt("snapshot-every");
+    private final EntityCounters entityCounters = EntityCounters.get(context().system());
+    private EntityCounters.Counter counter;
+    private PassivationManager.Entry passivationEntry;
+
+    PersistentEntityActor(ActorRef httpServer, ActorRef passivationManager, ActorRef shardOwnership) {
+        this.httpServer = httpServer;
+        this.passivationManager = passivationManager;
+        this.shardOwnership = shardOwnership;
+    }
+
+    @Override
+    public String persistenceId() {
+        return "entity-" + entityId;
+    }
+
+    @Override
+    public String journalPluginId() {
+        return "cluster-demo.persistence.journal";
+    }
+
+    @Override
+    public String snapshotPluginId() {
+        return "cluster-demo.persistence.snapshot-store";
+    }
+
+    @Override
+    public Receive createReceiveRecover() {
+        return receiveBuilder()
+                .match(Event.class, this::update)
+                .match(SnapshotOffer.class, offer -> update((Event) offer.snapshot()))
+                .match(RecoveryCompleted.class, r -> shardOwnership.tell(new ShardOwnership.Claim(shardId, shardEpoch), self()))
+                .build();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ShardOwnership.Claimed.class, this::claimed)
+                .matchAny(m -> stash())
+                .build();
+    }
+
+    private Receive owned() {
+        return receiveBuilder()
+                .match(EntityMessage.Command.class, this::command)
+                .match(EntityMessage.Query.class, this::query)
+                .match(SaveSnapshotSuccess.class, this::saveSnapshotSuccess)
+                .match(SaveSnapshotFailure.class, f -> log.warning("Snapshot failed {}", f))
+                .match(DeleteSnapshotsSuccess.class, d -> {})
+                .match(DeleteSnapshotsFailure.class, f -> log.warning("Snapshot delete failed {}", f))
+                .match(DeleteMessagesSuccess.class, d -> {})
+                .match(DeleteMessagesFailure.class, f -> log.warning("Event delete failed {}", f))
+                .matchEquals(ReceiveTimeout.getInstance(), t -> passivate())
+                .matchEquals(PassivationManager.passivate, p -> passivate())
+                .build();
+    }
+
+    private void command(EntityMessage.Command command) {
+        String action = entity == null ? "initialize" : "update";
+        persist(new Event(command.entity, ownershipVersion), event -> {
+            log.info("{} {} -> {}", action, event, entity);
+            update(event);
+            sender().tell(new EntityMessage.CommandAck(action, command.entity, command.correlationId), self());
+            if (lastSequenceNr() % snapshotEvery == 0) {
+                saveSnapshot(event);
+            }
+        });
+        counter().command();
+        passivationEntry.touch();
+    }
+
+    private void query(EntityMessage.Query query) {
+        log.info("query {} -> {}", query, entity == null ? "(not initialized)" : entity);
+        if (entity == null) {
+            sender().tell(new EntityMessage.QueryAckNotFound(query.id, query.correlationId), self());
+        } else {
+            sender().tell(new EntityMessage.QueryAck(entity, query.correlationId), self());
+        }
+        counter().query();
+        passivationEntry.touch();
+    }
+
+    private void update(Event event) {
+        entity = event.entity;
+        historyVersion = event.ownershipVersion;
+    }
+
+    private void claimed(ShardOwnership.Claimed claimed) {
+        ownershipVersion = claimed.version;
+        if (entity != null && historyVersion != ownershipVersion) {
+            log.warning("Discarding stale history of entity {} up to sequence number {}, another node owned shard {} since ownership version {}",
+                    entityId, lastSequenceNr(), shardId, historyVersion);
+            entity = null;
+            deleteMessages(lastSequenceNr());
+            deleteSnapshots(SnapshotSelectionCriteria.latest());
+        }
+        log.info("Recovered {} at sequence number {}", entity == null ? "(not initialized)" : entity, lastSequenceNr());
+        notifyStart();
+        getContext().become(owned());
+        unstashAll();
+    }
+
+    private void saveSnapshotSuccess(SaveSnapshotSuccess success) {
+        SnapshotMetadata metadata = success.metadata();
+        deleteMessages(metadata.sequenceNr());
+        deleteSnapshots(SnapshotSelectionCriteria.create(metadata.sequenceNr() - 1, Long.MAX_VALUE));
+    }
+
+    private EntityCounters.Counter counter() {
+        if (counter == null) {
+            counter = entityCounters.register(shardId, entityId);
+        }
+        return counter;
+    }
+
+    private void notifyStart() {
+        EntityMessage.Action start = new EntityMessage.Action(memberId, shardId, entityId, "start", true);
+        httpServer.tell(start, self());
+        passivationEntry = new PassivationManager.Entry(self(), shardId);
+        passivationManager.tell(new PassivationManager.Register(passivationEntry), self());
+    }
+
+    private void notifyStop() {
+        EntityMessage.Action stop = new EntityMessage.Action(memberId, shardId, entityId, "stop", true);
+        httpServer.tell(stop, self());
+    }
+
+    private void passivate() {
+        context().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), self());
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        log.info("Start");
+        context().setReceiveTimeout(Duration.create(context().system().settings().config()
+                .getDuration("cluster-demo.passivation.idle-timeout", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS));
+        super.preStart();
+    }
+
+    @Override
+    public void postStop() {
+        if (counter != null) {
+            entityCounters.unregister(counter);
+        }
+        if (passivationEntry != null) {
+            notifyStop();
+            passivationManager.tell(new PassivationManager.Unregister(passivationEntry), self());
+        }
+        log.info("Stop shard {}, entity {}", shardId, entityId);
+        super.postStop();
+    }
+
+    static Props props(ActorRef httpServer, ActorRef passivationManager, ActorRef shardOwnership) {
+        return Props.create(PersistentEntityActor.class, httpServer, passivationManager, shardOwnership);
+    }
+
+    /** A new value of the entity, and the ownership version of its shard. Also the snapshot. */
+    static class Event implements Serializable {
+        final Entity entity;
+        final long ownershipVersion;
+
+        Event(Entity entity, long ownershipVersion) {
+            this.entity = entity;
+            this.ownershipVersion = ownershipVersion;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d]", getClass().getSimpleName(), entity, ownershipVersion);
+        }
+    }
+}
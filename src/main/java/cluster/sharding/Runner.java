@@ -14,24 +14,40 @@ import akka.management.javadsl.AkkaManagement;
 import java.util.concurrent.CompletableFuture;
 
 public class Runner {
+    static final String actorSystemName = "akka-cluster-kubernetes";
+
     public static void main(String[] args) {
         startupClusterNode();
     }
 
     private static void startupClusterNode() {
-        ActorSystem actorSystem = ActorSystem.create("akka-cluster-kubernetes");
+        ActorSystem actorSystem = ActorSystem.create(actorSystemName);
 
         startClusterBootstrap(actorSystem);
 
+        startNode(actorSystem);
+    }
+
+    /**
+     * Starts the actors of a cluster node: the HTTP server, the sharding region, the singleton, the
+     * load actors and the cluster bookkeeping actors. The actor system joins the cluster by itself,
+     * with Cluster Bootstrap or with seed nodes.
+     */
+    static void startNode(ActorSystem actorSystem) {
         actorSystem.log().info("Started actor system '{}', member {}", actorSystem, actorSystem.provider().getDefaultAddress());
 
-        actorSystem.actorOf(ClusterListenerActor.props(), "clusterListener");
-        ActorRef httpServer = actorSystem.actorOf(HttpServerActor.props(), "httpServer");
-        ActorRef shardingRegion = setupClusterSharding(actorSystem, httpServer);
-        createClusterSingletonManagerActor(actorSystem, httpServer);
+        DispatcherLayout dispatchers = DispatcherLayout.get(actorSystem);
+        actorSystem.log().info("Dispatchers {}", dispatchers);
 
-        actorSystem.actorOf(EntityCommandActor.props(shardingRegion), "entityCommand");
-        actorSystem.actorOf(EntityQueryActor.props(shardingRegion), "entityQuery");
+        actorSystem.actorOf(dispatchers.cluster(ClusterListenerActor.props().withMailbox("cluster-demo.mailboxes.cluster-listener")), "clusterListener");
+        ActorRef httpServer = actorSystem.actorOf(dispatchers.http(HttpServerActor.props().withMailbox("cluster-demo.mailboxes.http-server")), "httpServer");
+        ActorRef passivationManager = actorSystem.actorOf(dispatchers.cluster(PassivationManager.props()), "passivationManager");
+        actorSystem.actorOf(dispatchers.cluster(ShardLoadActor.props()), "shardLoad");
+        ActorRef shardingRegion = setupClusterSharding(actorSystem, dispatchers, httpServer, passivationManager);
+        createClusterSingletonManagerActor(actorSystem, dispatchers, httpServer);
+
+        actorSystem.actorOf(dispatchers.load(EntityCommandActor.props(shardingRegion)), "entityCommand");
+        actorSystem.actorOf(dispatchers.load(EntityQueryActor.props(shardingRegion)), "entityQuery");
 
         addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShutdown());
 
@@ -43,19 +59,37 @@ public class Runner {
         ClusterBootstrap.get(actorSystem).start();
     }
 
-    private static ActorRef setupClusterSharding(ActorSystem actorSystem, ActorRef httpServer) {
+    private static ActorRef setupClusterSharding(ActorSystem actorSystem, DispatcherLayout dispatchers, ActorRef httpServer, ActorRef passivationManager) {
         ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem);
+        if (actorSystem.settings().config().getString("cluster-demo.shard-allocation.strategy").equals("load-aware")) {
+            return ClusterSharding.get(actorSystem).start(
+                    "entity",
+                    entityProps(actorSystem, dispatchers, httpServer, passivationManager),
+                    settings,
+                    EntityMessage.messageExtractor(ShardIds.get(actorSystem)),
+                    new LoadAwareAllocationStrategy(actorSystem),
+                    PoisonPill.getInstance()
+            );
+        }
         return ClusterSharding.get(actorSystem).start(
                 "entity",
-                EntityActor.props(httpServer),
+                entityProps(actorSystem, dispatchers, httpServer, passivationManager),
                 settings,
-                EntityMessage.messageExtractor()
+                EntityMessage.messageExtractor(ShardIds.get(actorSystem))
         );
     }
 
-    private static void createClusterSingletonManagerActor(ActorSystem actorSystem, ActorRef httpServer) {
+    private static Props entityProps(ActorSystem actorSystem, DispatcherLayout dispatchers, ActorRef httpServer, ActorRef passivationManager) {
+        if (actorSystem.settings().config().getBoolean("cluster-demo.persistence.enabled")) {
+            ActorRef shardOwnership = actorSystem.actorOf(dispatchers.cluster(ShardOwnership.props()), "shardOwnership");
+            return dispatchers.entity(PersistentEntityActor.props(httpServer, passivationManager, shardOwnership).withMailbox("cluster-demo.mailboxes.entity"));
+        }
+        return dispatchers.entity(EntityActor.props(httpServer, passivationManager).withMailbox("cluster-demo.mailboxes.entity"));
+    }
+
+    private static void createClusterSingletonManagerActor(ActorSystem actorSystem, DispatcherLayout dispatchers, ActorRef httpServer) {
         Props clusterSingletonManagerProps = ClusterSingletonManager.props(
-                ClusterSingletonActor.props(httpServer),
+                dispatchers.cluster(ClusterSingletonActor.props(httpServer)),
                 PoisonPill.getInstance(),
                 ClusterSingletonManagerSettings.create(actorSystem)
         );
@@ -0,0 +1,195 @@
+package cluster.sharding;
+
+import akka.dispatch.Futures;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.journal.japi.AsyncWriteJournal;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+import scala.concurrent.Promise;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * An Akka Persistence journal plugin that keeps the events in a {@link SegmentedLog} on the local
+ * file system, so no database is needed.
+ * <p>
+ * Writes are group committed. The journal actor serializes the events of each request and queues
+ * them for a writer thread. The writer thread appends everything that is queued, up to
+ * max-batch-size requests, forces it to disk with one fsync, and only then acknowledges the
+ * requests. While one fsync is in progress the writes of other entities queue up for the next one,
+ * so the number of fsyncs per second stays about the same as the write rate goes up.
+ */
+class SegmentedJournal extends AsyncWriteJournal {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final Serialization serialization = SerializationExtension.get(context().system());
+    private final SegmentedLog segmentedLog;
+    private final boolean fsync;
+    private final int maxBatchSize;
+    private final ExecutionContext replayDispatcher;
+    private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private final Thread writer = new Thread(this::writeBatches, "segmented-journal-writer");
+    private volatile long batchCount;
+    private volatile long commitCount;
+
+    SegmentedJournal(Config config) throws IOException {
+        segmentedLog = new SegmentedLog(Paths.get(config.getString("dir")), config.getBytes("segment-size"));
+        fsync = config.getBoolean("fsync");
+        maxBatchSize = config.getInt("max-batch-size");
+        replayDispatcher = context().system().dispatchers().lookup(config.getString("replay-dispatcher"));
+    }
+
+    @Override
+    public Future<Iterable<Optional<Exception>>> doAsyncWriteMessages(Iterable<AtomicWrite> messages) {
+        List<Optional<Exception>> results = new ArrayList<>();
+        Batch batch = new Batch(results);
+        for (AtomicWrite atomicWrite : messages) {
+            try {
+                batch.writes.add(write(atomicWrite));
+                results.add(Optional.empty());
+            } catch (Exception e) {
+                results.add(Optional.of(e));
+            }
+        }
+        queue.add(batch);
+        return batch.promise.future();
+    }
+
+    @Override
+    public Future<Void> doAsyncDeleteMessagesTo(String persistenceId, long toSequenceNr) {
+        Batch batch = new Batch(null);
+        batch.writes.add(new Write(persistenceId, null, null, toSequenceNr));
+        queue.add(batch);
+        return batch.promise.future().map(results -> null, replayDispatcher);
+    }
+
+    @Override
+    public Future<Void> doAsyncReplayMessages(String persistenceId, long fromSequenceNr, long toSequenceNr, long max, Consumer<PersistentRepr> replayCallback) {
+        return Futures.future(() -> {
+            segmentedLog.replay(persistenceId, fromSequenceNr, toSequenceNr, max,
+                    (bytes, sequenceNr) -> replayCallback.accept(serialization.deserialize(bytes, PersistentRepr.class).get()));
+            return null;
+        }, replayDispatcher);
+    }
+
+    @Override
+    public Future<Long> doAsyncReadHighestSequenceNr(String persistenceId, long fromSequenceNr) {
+        return Futures.successful(segmentedLog.highestSequenceNr(persistenceId));
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        super.preStart();
+        log.info("Start, {} persistence ids in {} segments", segmentedLog.persistenceIdCount(), segmentedLog.segmentCount());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        queue.add(Batch.stop);
+        writer.join();
+        segmentedLog.close();
+        log.info("Stop, {} write requests in {} commits", batchCount, commitCount);
+        super.postStop();
+    }
+
+    private Write write(AtomicWrite atomicWrite) {
+        int size = atomicWrite.size();
+        long[] sequenceNrs = new long[size];
+        byte[][] events = new byte[size][];
+        int i = 0;
+        for (PersistentRepr persistentRepr : scala.collection.JavaConverters.seqAsJavaList(atomicWrite.payload())) {
+            sequenceNrs[i] = persistentRepr.sequenceNr();
+            events[i] = serialization.serialize(persistentRepr).get();
+            i++;
+        }
+        return new Write(atomicWrite.persistenceId(), sequenceNrs, events, 0);
+    }
+
+    // Runs on the writer thread until the stop batch is taken from the queue.
+    private void writeBatches() {
+        List<Batch> batches = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batches.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batches, maxBatchSize - 1);
+            stopping = batches.remove(Batch.stop);
+            List<Batch> appended = new ArrayList<>(batches.size());
+            for (Batch batch : batches) {
+                try {
+                    append(batch);
+                    appended.add(batch);
+                } catch (Exception e) {
+                    batch.promise.failure(e);
+                }
+            }
+            try {
+                if (fsync && !appended.isEmpty()) {
+                    segmentedLog.force();
+                }
+                for (Batch batch : appended) {
+                    batch.promise.success(batch.results);
+                }
+            } catch (Exception e) {
+                for (Batch batch : appended) {
+                    batch.promise.failure(e);
+                }
+            }
+            batchCount += batches.size();
+            commitCount += appended.isEmpty() ? 0 : 1;
+            batches.clear();
+        }
+    }
+
+    private void append(Batch batch) throws IOException {
+        for (Write write : batch.writes) {
+            if (write.events == null) {
+                segmentedLog.deleteTo(write.persistenceId, write.deleteTo);
+            } else {
+                segmentedLog.append(write.persistenceId, write.sequenceNrs, write.events);
+            }
+        }
+    }
+
+    // The writes of one request to the journal, acknowledged together.
+    private static class Batch {
+        static final Batch stop = new Batch(null);
+        final List<Write> writes = new ArrayList<>();
+        final Iterable<Optional<Exception>> results;
+        final Promise<Iterable<Optional<Exception>>> promise = Futures.promise();
+
+        Batch(Iterable<Optional<Exception>> results) {
+            this.results = results;
+        }
+    }
+
+    // The serialized events of one atomic write, or a deletion when there are no events.
+    private static class Write {
+        final String persistenceId;
+        final long[] sequenceNrs;
+        final byte[][] events;
+        final long deleteTo;
+
+        Write(String persistenceId, long[] sequenceNrs, byte[][] events, long deleteTo) {
+            this.persistenceId = persistenceId;
+            this.sequenceNrs = sequenceNrs;
+            this.events = events;
+            this.deleteTo = deleteTo;
+        }
+    }
+}
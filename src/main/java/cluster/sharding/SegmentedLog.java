@@ -0,0 +1,383 @@
+package cluster.sharding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.LongConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the events of many persistence ids, stored in numbered segment files in
+ * one directory. A new segment is started when the current one would grow beyond the segment size.
+ * <p>
+ * Each record starts with its length and the CRC32 of its body. A record holds either all the
+ * events of one atomic write or a deletion of the events of a persistence id up to a sequence
+ * number. When the log is opened all segments are scanned to rebuild the in-memory index of where
+ * the events of each persistence id are. A record at the end of the last segment that was not
+ * completely written is cut off, a damaged record anywhere else fails the open.
+ * <p>
+ * Each segment counts its events that are not deleted. The oldest segments are removed as soon as
+ * all their events are deleted. The highest sequence number of a persistence id must survive the
+ * deletion of all its events, so when it was only recorded in a segment that is removed, a delete
+ * record up to it is written to the current segment first.
+ * <p>
+ * Appends are not forced to disk until {@link #force()} is called, so many appends can share one
+ * fsync. Appends are meant to come from one thread, replays may run on other threads.
+ */
+class SegmentedLog implements Closeable {
+    private static final byte eventsRecord = 1;
+    private static final byte deleteRecord = 2;
+    private static final int headerSize = 8;
+    private static final int segmentBits = 40;
+    private final Path dir;
+    private final long segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Events> index = new HashMap<>();
+    private long position;
+
+    SegmentedLog(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            String name = path.getFileName().toString();
+            long number = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+            segments.add(new Segment(number, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+            position = scan(i, i == paths.size() - 1);
+        }
+        if (segments.isEmpty()) {
+            startSegment();
+        }
+        removeDeletedSegments();
+    }
+
+    /** Appends the events of one atomic write, which is replayed either completely or not at all. */
+    synchronized void append(String persistenceId, long[] sequenceNrs, byte[][] events) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(eventsRecord);
+        body.writeUTF(persistenceId);
+        body.writeInt(events.length);
+        int[] offsets = new int[events.length];
+        for (int i = 0; i < events.length; i++) {
+            body.writeLong(sequenceNrs[i]);
+            body.writeInt(events[i].length);
+            offsets[i] = headerSize + body.size();
+            body.write(events[i]);
+        }
+        long recordPosition = write(bytes);
+        Segment segment = current();
+        Events persistenceIdEvents = events(persistenceId);
+        for (int i = 0; i < events.length; i++) {
+            persistenceIdEvents.add(sequenceNrs[i], location(segment.number, recordPosition + offsets[i]), events[i].length);
+        }
+        persistenceIdEvents.lastRecordSegment = segment.number;
+        segment.liveEvents += events.length;
+    }
+
+    /** Deletes the events of a persistence id up to and including the given sequence number. */
+    synchronized void deleteTo(String persistenceId, long toSequenceNr) throws IOException {
+        Events persistenceIdEvents = events(persistenceId);
+        writeDelete(persistenceId, persistenceIdEvents, Math.min(toSequenceNr, persistenceIdEvents.highestSequenceNr));
+        removeDeletedSegments();
+    }
+
+    /** Forces everything appended so far to disk. */
+    void force() throws IOException {
+        FileChannel segment;
+        synchronized (this) {
+            segment = current().channel;
+        }
+        segment.force(false);
+    }
+
+    /** Returns the highest sequence number ever appended for the persistence id, or 0. */
+    synchronized long highestSequenceNr(String persistenceId) {
+        Events persistenceIdEvents = index.get(persistenceId);
+        return persistenceIdEvents == null ? 0 : persistenceIdEvents.highestSequenceNr;
+    }
+
+    /**
+     * Passes the events of the persistence id that are not deleted, from and to the given sequence
+     * numbers inclusive and at most max of them, in sequence number order to the consumer.
+     */
+    void replay(String persistenceId, long fromSequenceNr, long toSequenceNr, long max, ObjLongConsumer<byte[]> consumer) throws IOException {
+        long[] sequenceNrs;
+        long[] locations;
+        int[] lengths;
+        synchronized (this) {
+            Events persistenceIdEvents = index.get(persistenceId);
+            if (persistenceIdEvents == null) {
+                return;
+            }
+            int from = persistenceIdEvents.indexOf(Math.max(fromSequenceNr, persistenceIdEvents.deletedTo + 1));
+            int to = from;
+            while (to < persistenceIdEvents.size && persistenceIdEvents.sequenceNrs[to] <= toSequenceNr && to - from < max) {
+                to++;
+            }
+            sequenceNrs = Arrays.copyOfRange(persistenceIdEvents.sequenceNrs, from, to);
+            locations = Arrays.copyOfRange(persistenceIdEvents.locations, from, to);
+            lengths = Arrays.copyOfRange(persistenceIdEvents.lengths, from, to);
+        }
+        for (int i = 0; i < sequenceNrs.length; i++) {
+            consumer.accept(read(locations[i], lengths[i]), sequenceNrs[i]);
+        }
+    }
+
+    /** The number of persistence ids with events in the log. */
+    synchronized int persistenceIdCount() {
+        return index.size();
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    private long write(ByteArrayOutputStream body) throws IOException {
+        byte[] bytes = body.toByteArray();
+        if (position > 0 && position + headerSize + bytes.length > segmentSize) {
+            startSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(headerSize + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        FileChannel segment = current().channel;
+        long recordPosition = position;
+        while (record.hasRemaining()) {
+            position += segment.write(record, position);
+        }
+        return recordPosition;
+    }
+
+    private byte[] read(long location, int length) throws IOException {
+        FileChannel segment;
+        synchronized (this) {
+            long segmentNumber = location >>> segmentBits;
+            if (segmentNumber < segments.get(0).number) {
+                throw new IOException(String.format("Segment %d was removed", segmentNumber));
+            }
+            segment = segment(segmentNumber).channel;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long offset = location & ((1L << segmentBits) - 1);
+        while (buffer.hasRemaining()) {
+            if (segment.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException(String.format("Unexpected end of segment %d", location >>> segmentBits));
+            }
+        }
+        return buffer.array();
+    }
+
+    private void startSegment() throws IOException {
+        long number = 1;
+        if (!segments.isEmpty()) {
+            current().channel.force(false);
+            number = current().number + 1;
+        }
+        Path path = dir.resolve(String.format("%020d.log", number));
+        segments.add(new Segment(number, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+        position = 0;
+    }
+
+    // Removes the oldest segments that have no events left. The persistence ids whose last record
+    // is in such a segment have no events left either, so only their highest sequence number is
+    // written to the current segment, and forced to disk before the segment file is deleted.
+    private void removeDeletedSegments() throws IOException {
+        while (segments.size() > 1 && segments.get(0).liveEvents == 0) {
+            Segment oldest = segments.get(0);
+            boolean written = false;
+            for (Iterator<Map.Entry<String, Events>> i = index.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<String, Events> entry = i.next();
+                Events persistenceIdEvents = entry.getValue();
+                if (persistenceIdEvents.lastRecordSegment <= oldest.number) {
+                    if (persistenceIdEvents.highestSequenceNr == 0) {
+                        i.remove();
+                    } else {
+                        writeDelete(entry.getKey(), persistenceIdEvents, persistenceIdEvents.highestSequenceNr);
+                        written = true;
+                    }
+                }
+            }
+            if (written) {
+                current().channel.force(false);
+            }
+            oldest.channel.close();
+            Files.delete(oldest.path);
+            segments.remove(0);
+        }
+    }
+
+    // A delete record is never beyond the highest sequence number, so it also records the highest
+    // sequence number when the events it deletes are gone.
+    private void writeDelete(String persistenceId, Events persistenceIdEvents, long toSequenceNr) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(deleteRecord);
+        body.writeUTF(persistenceId);
+        body.writeLong(toSequenceNr);
+        write(bytes);
+        persistenceIdEvents.deleteTo(toSequenceNr, this::deleted);
+        persistenceIdEvents.lastRecordSegment = current().number;
+    }
+
+    private void deleted(long location) {
+        segment(location >>> segmentBits).liveEvents--;
+    }
+
+    private Segment current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    // Segment numbers have no gaps, as only the oldest segments are removed.
+    private Segment segment(long number) {
+        return segments.get((int) (number - segments.get(0).number));
+    }
+
+    // Adds the records of a segment to the index and returns where the records end.
+    private long scan(int segmentIndex, boolean last) throws IOException {
+        Segment segment = segments.get(segmentIndex);
+        long size = segment.channel.size();
+        MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() > 0) {
+            int recordPosition = buffer.position();
+            int length = buffer.remaining() >= headerSize ? buffer.getInt() : -1;
+            int checksum = length >= 0 ? buffer.getInt() : 0;
+            if (length <= 0 || length > buffer.remaining()) {
+                return truncate(segment, recordPosition, last);
+            }
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return truncate(segment, recordPosition, last);
+            }
+            index(segment, recordPosition + headerSize, body);
+            buffer.position(recordPosition + headerSize + length);
+        }
+        return size;
+    }
+
+    private void index(Segment segment, int bodyPosition, ByteBuffer body) {
+        byte type = body.get();
+        byte[] persistenceIdBytes = new byte[body.getShort() & 0xffff];
+        body.get(persistenceIdBytes);
+        Events persistenceIdEvents = events(new String(persistenceIdBytes, StandardCharsets.UTF_8));
+        if (type == eventsRecord) {
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                long sequenceNr = body.getLong();
+                int length = body.getInt();
+                persistenceIdEvents.add(sequenceNr, location(segment.number, bodyPosition + body.position()), length);
+                body.position(body.position() + length);
+            }
+            segment.liveEvents += count;
+        } else if (type == deleteRecord) {
+            long toSequenceNr = body.getLong();
+            persistenceIdEvents.highestSequenceNr = Math.max(persistenceIdEvents.highestSequenceNr, toSequenceNr);
+            persistenceIdEvents.deleteTo(toSequenceNr, this::deleted);
+        }
+        persistenceIdEvents.lastRecordSegment = segment.number;
+    }
+
+    private long truncate(Segment segment, long recordPosition, boolean last) throws IOException {
+        if (!last) {
+            throw new IOException(String.format("Damaged record at %d in segment %d of %s", recordPosition, segment.number, dir));
+        }
+        segment.channel.truncate(recordPosition);
+        return recordPosition;
+    }
+
+    private Events events(String persistenceId) {
+        return index.computeIfAbsent(persistenceId, p -> new Events());
+    }
+
+    private static long location(long segmentNumber, long offset) {
+        return segmentNumber << segmentBits | offset;
+    }
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        final FileChannel channel;
+        // The number of events in this segment that are not deleted.
+        int liveEvents;
+
+        Segment(long number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    // The sequence numbers of a persistence id and where its events are, in sequence number order.
+    private static class Events {
+        private long[] sequenceNrs = new long[4];
+        private long[] locations = new long[4];
+        private int[] lengths = new int[4];
+        private int size;
+        private long highestSequenceNr;
+        private long deletedTo;
+        private long lastRecordSegment;
+
+        void add(long sequenceNr, long location, int length) {
+            if (size == sequenceNrs.length) {
+                sequenceNrs = Arrays.copyOf(sequenceNrs, size * 2);
+                locations = Arrays.copyOf(locations, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            sequenceNrs[size] = sequenceNr;
+            locations[size] = location;
+            lengths[size] = length;
+            size++;
+            highestSequenceNr = Math.max(highestSequenceNr, sequenceNr);
+        }
+
+        // Forgets where the deleted events are and passes their locations to the consumer, the
+        // highest sequence number stays.
+        void deleteTo(long toSequenceNr, LongConsumer deletedLocations) {
+            deletedTo = Math.max(deletedTo, Math.min(toSequenceNr, highestSequenceNr));
+            int from = indexOf(deletedTo + 1);
+            for (int i = 0; i < from; i++) {
+                deletedLocations.accept(locations[i]);
+            }
+            System.arraycopy(sequenceNrs, from, sequenceNrs, 0, size - from);
+            System.arraycopy(locations, from, locations, 0, size - from);
+            System.arraycopy(lengths, from, lengths, 0, size - from);
+            size -= from;
+        }
+
+        // The index of the first event with at least the given sequence number.
+        int indexOf(long sequenceNr) {
+            int i = Arrays.binarySearch(sequenceNrs, 0, size, sequenceNr);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package cluster.sharding;
+
+import akka.actor.ActorCell;
+import akka.dispatch.Mailbox;
+import akka.dispatch.affinity.QueueSelector;
+import akka.dispatch.affinity.QueueSelectorFactory;
+import com.typesafe.config.Config;
+
+/**
+ * Picks the task queue, and so the thread, of an affinity pool dispatcher by the shard of the
+ * entity. The entities run as children of their shard actor, so the name of the parent of the
+ * actor whose mailbox is scheduled is the shard id, and all entities of a shard run on the same
+ * thread, which keeps their state in the cache of that core. Other tasks are spread by their
+ * hash code.
+ */
+class ShardAffinityQueueSelector implements QueueSelectorFactory {
+    public ShardAffinityQueueSelector(Config config) {
+    }
+
+    @Override
+    public QueueSelector create() {
+        return ShardAffinityQueueSelector::queue;
+    }
+
+    static int queue(Runnable command, int queues) {
+        if (command instanceof Mailbox) {
+            ActorCell actor = ((Mailbox) command).actor();
+            if (actor != null) {
+                return queue(actor.self().path().parent().name(), queues);
+            }
+        }
+        return Math.floorMod(command.hashCode(), queues);
+    }
+
+    static int queue(String shardId, int queues) {
+        return Math.floorMod(shardId.hashCode(), queues);
+    }
+}
@@ -0,0 +1,133 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+
+/**
+ * Maps entity ids to shard ids. The shard of an entity is the unsigned murmur3 hash of its id
+ * modulo the configured number of shards, and the shard ids are taken from a table of interned
+ * strings built once, so mapping an entity id allocates nothing. A numeric entity id is hashed
+ * from its number, without making the string of its decimal form.
+ */
+class ShardIds implements Extension {
+    private static final long[] powersOfTen = new long[19];
+    private final String[] shardIds;
+
+    static {
+        powersOfTen[0] = 1;
+        for (int i = 1; i < powersOfTen.length; i++) {
+            powersOfTen[i] = powersOfTen[i - 1] * 10;
+        }
+    }
+
+    ShardIds(int numberOfShards) {
+        if (numberOfShards < 1) {
+            throw new IllegalArgumentException(String.format("Number of shards must be positive, was %d", numberOfShards));
+        }
+        shardIds = new String[numberOfShards];
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            shardIds[shard] = String.valueOf(shard).intern();
+        }
+    }
+
+    int numberOfShards() {
+        return shardIds.length;
+    }
+
+    int shard(String entityId) {
+        return Integer.remainderUnsigned(murmur3(entityId), shardIds.length);
+    }
+
+    int shard(Entity.Id entityId) {
+        int hash = entityId.isNumeric() ? murmur3(entityId.number()) : murmur3(entityId.id());
+        return Integer.remainderUnsigned(hash, shardIds.length);
+    }
+
+    String shardId(String entityId) {
+        return shardIds[shard(entityId)];
+    }
+
+    String shardId(Entity.Id entityId) {
+        return shardIds[shard(entityId)];
+    }
+
+    String shardId(int shard) {
+        return shardIds[shard];
+    }
+
+    /**
+     * Murmur3 32 bit hash of the UTF-16 chars of the given string, two chars per block. This is
+     * the same hash as Guava's {@code Hashing.murmur3_32().hashUnencodedChars}.
+     */
+    static int murmur3(CharSequence chars) {
+        int h1 = 0;
+        int length = chars.length();
+        for (int i = 1; i < length; i += 2) {
+            int k1 = chars.charAt(i - 1) | (chars.charAt(i) << 16);
+            h1 = mixH1(h1, mixK1(k1));
+        }
+        if ((length & 1) == 1) {
+            h1 ^= mixK1(chars.charAt(length - 1));
+        }
+        return fmix(h1, 2 * length);
+    }
+
+    /** The same hash as {@link #murmur3(CharSequence)} of the decimal form of a non-negative number. */
+    static int murmur3(long number) {
+        int length = 1;
+        while (length < powersOfTen.length && number >= powersOfTen[length]) {
+            length++;
+        }
+        int h1 = 0;
+        for (int i = 1; i < length; i += 2) {
+            int k1 = digit(number, length - i) | (digit(number, length - i - 1) << 16);
+            h1 = mixH1(h1, mixK1(k1));
+        }
+        if ((length & 1) == 1) {
+            h1 ^= mixK1(digit(number, 0));
+        }
+        return fmix(h1, 2 * length);
+    }
+
+    // The char of the decimal digit of the number at the given power of ten.
+    private static int digit(long number, int power) {
+        return '0' + (int) (number / powersOfTen[power] % 10);
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= 0xcc9e2d51;
+        k1 = Integer.rotateLeft(k1, 15);
+        return k1 * 0x1b873593;
+    }
+
+    private static int mixH1(int h1, int k1) {
+        h1 ^= k1;
+        h1 = Integer.rotateLeft(h1, 13);
+        return h1 * 5 + 0xe6546b64;
+    }
+
+    private static int fmix(int h1, int length) {
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    static ShardIds get(ActorSystem actorSystem) {
+        return Id.instance.get(actorSystem);
+    }
+
+    static class Id extends AbstractExtensionId<ShardIds> {
+        static final Id instance = new Id();
+
+        @Override
+        public ShardIds createExtension(ExtendedActorSystem system) {
+            return new ShardIds(system.settings().config().getInt("cluster-demo.sharding.number-of-shards"));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.metrics.ClusterMetricsChanged;
+import akka.cluster.metrics.ClusterMetricsExtension;
+import akka.cluster.metrics.NodeMetrics;
+import akka.cluster.metrics.StandardMetrics;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the {@link ClusterLoad} of this node up to date for the load-aware shard allocation
+ * strategy. Every load-interval it takes the message counts of the shards of this node from the
+ * {@link EntityCounters}, smooths them into messages per second, and writes them under its own
+ * member address into a distributed data map that all nodes subscribe to. With the load-aware
+ * strategy the CPU and heap usage of every member come from the cluster metrics extension, which
+ * subscribing starts, so the extension only runs when the strategy needs it.
+ * <p>
+ * A shard whose rate stays above hot-shard-rate for hot-shard-intervals load intervals in a row is
+ * flagged as hot in the map, which the load-aware shard allocation strategy moves first and the
+ * monitor tree shows.
+ */
+class ShardLoadActor extends AbstractLoggingActor {
+    // Rates below this are dropped, so that shards that moved away stop being reported.
+    private static final double minRate = 0.01;
+    private final Cluster cluster = Cluster.get(context().system());
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final Key<LWWMap<String, ClusterLoad.ShardRates>> shardLoadKey = LWWMapKey.create("shard-load");
+    private final ClusterLoad clusterLoad = ClusterLoad.get(context().system());
+    private final EntityCounters entityCounters = EntityCounters.get(context().system());
+    private final Config config = context().system().settings().config().getConfig("cluster-demo.shard-allocation");
+    private final FiniteDuration loadInterval = Duration.create(config.getDuration("load-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final double smoothing = config.getDouble("rate-smoothing");
+    private final double hotShardRate = config.getDouble("hot-shard-rate");
+    private final int hotShardIntervals = config.getInt("hot-shard-intervals");
+    private final boolean loadAware = config.getString("strategy").equals("load-aware");
+    private final Map<String, Double> shardRates = new HashMap<>();
+    // The number of load intervals in a row that each shard has been above the hot shard rate.
+    private final Map<String, Integer> hotIntervals = new HashMap<>();
+    private Cancellable ticker;
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .match(ClusterMetricsChanged.class, this::metricsChanged)
+                .match(ClusterEvent.MemberRemoved.class, this::memberRemoved)
+                .match(Replicator.Changed.class, this::shardLoadChanged)
+                .match(Replicator.UpdateSuccess.class, u -> {})
+                .match(Replicator.UpdateFailure.class, f -> log().warning("Shard load update failed {}", f))
+                .build();
+    }
+
+    private void tick() {
+        double seconds = loadInterval.toMillis() / 1000.0;
+        for (Map.Entry<String, LongAdder> shardMessages : entityCounters.shardMessages().entrySet()) {
+            double rate = shardMessages.getValue().sumThenReset() / seconds;
+            shardRates.merge(shardMessages.getKey(), rate, (previous, current) -> smooth(previous, current, smoothing));
+        }
+        shardRates.values().removeIf(rate -> rate < minRate);
+
+        String[] shardIds = new String[shardRates.size()];
+        double[] rates = new double[shardRates.size()];
+        boolean[] hot = new boolean[shardRates.size()];
+        Iterator<Map.Entry<String, Double>> entries = shardRates.entrySet().iterator();
+        for (int i = 0; entries.hasNext(); i++) {
+            Map.Entry<String, Double> entry = entries.next();
+            shardIds[i] = entry.getKey();
+            rates[i] = entry.getValue();
+            hot[i] = isHot(shardIds[i], rates[i]);
+        }
+        hotIntervals.keySet().retainAll(shardRates.keySet());
+        ClusterLoad.ShardRates ownRates = new ClusterLoad.ShardRates(shardIds, rates, hot);
+        String memberId = cluster.selfAddress().toString();
+        replicator.tell(new Replicator.Update<>(shardLoadKey, LWWMap.create(), Replicator.writeLocal(),
+                map -> map.put(node, memberId, ownRates)), self());
+    }
+
+    private boolean isHot(String shardId, double rate) {
+        int previous = hotIntervals.getOrDefault(shardId, 0);
+        int intervals = rate > hotShardRate ? previous + 1 : 0;
+        hotIntervals.put(shardId, intervals);
+        if (intervals == hotShardIntervals) {
+            log().info("Shard {} is hot, {} messages per second", shardId, String.format("%.1f", rate));
+        } else if (intervals == 0 && previous >= hotShardIntervals) {
+            log().info("Shard {} cooled down, {} messages per second", shardId, String.format("%.1f", rate));
+        }
+        return intervals >= hotShardIntervals;
+    }
+
+    /** Exponentially weighted moving average, where smoothing is the weight of the latest rate. */
+    static double smooth(double previous, double rate, double smoothing) {
+        return smoothing * rate + (1 - smoothing) * previous;
+    }
+
+    private void metricsChanged(ClusterMetricsChanged metricsChanged) {
+        for (NodeMetrics nodeMetrics : metricsChanged.getNodeMetrics()) {
+            clusterLoad.updateMetrics(nodeMetrics.address().toString(), cpu(nodeMetrics), heap(nodeMetrics));
+        }
+    }
+
+    // The combined CPU usage, or the load average per processor where that is not collected.
+    private static double cpu(NodeMetrics nodeMetrics) {
+        StandardMetrics.Cpu cpu = StandardMetrics.extractCpu(nodeMetrics);
+        if (cpu == null) {
+            return 0;
+        } else if (cpu.cpuCombined().isDefined()) {
+            return (Double) cpu.cpuCombined().get();
+        } else if (cpu.systemLoadAverage().isDefined()) {
+            return Math.min(1, (Double) cpu.systemLoadAverage().get() / cpu.processors());
+        }
+        return 0;
+    }
+
+    private static double heap(NodeMetrics nodeMetrics) {
+        StandardMetrics.HeapMemory heap = StandardMetrics.extractHeapMemory(nodeMetrics);
+        if (heap == null) {
+            return 0;
+        }
+        double max = heap.max().isDefined() ? (double) (Long) heap.max().get() : heap.committed();
+        return max > 0 ? heap.used() / max : 0;
+    }
+
+    private void memberRemoved(ClusterEvent.MemberRemoved memberRemoved) {
+        String memberId = memberRemoved.member().address().toString();
+        clusterLoad.remove(memberId);
+        replicator.tell(new Replicator.Update<>(shardLoadKey, LWWMap.create(), Replicator.writeLocal(),
+                map -> map.remove(node, memberId)), self());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void shardLoadChanged(Replicator.Changed<?> changed) {
+        clusterLoad.updateShardRates(new HashMap<>(((Replicator.Changed<LWWMap<String, ClusterLoad.ShardRates>>) changed)
+                .get(shardLoadKey).getEntries()));
+    }
+
+    @Override
+    public void preStart() {
+        log().debug("Start");
+        ticker = context().system().scheduler().schedule(loadInterval, loadInterval, self(), "tick",
+                context().system().dispatcher(), self());
+        cluster.subscribe(self(), ClusterEvent.MemberRemoved.class);
+        if (loadAware) {
+            ClusterMetricsExtension.get(context().system()).subscribe(self());
+        }
+        replicator.tell(new Replicator.Subscribe<>(shardLoadKey, self()), self());
+    }
+
+    @Override
+    public void postStop() {
+        log().debug("Stop");
+        ticker.cancel();
+        cluster.unsubscribe(self());
+        if (loadAware) {
+            ClusterMetricsExtension.get(context().system()).unsubscribe(self());
+        }
+    }
+
+    static Props props() {
+        return Props.create(ShardLoadActor.class);
+    }
+}
@@ -0,0 +1,202 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.NoSerializationVerificationNeeded;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.ReplicatorSettings;
+import akka.cluster.ddata.SelfUniqueAddress;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps the ownership version of every shard, so that persistent entities can tell whether the
+ * history on this node is still theirs. The version of a shard goes up by one every time the shard
+ * starts on another node than the one that owned it last, and stays the same when it starts again
+ * on the same node, after passivation, after moving away and back with no other node in between,
+ * or after the node restarted. Persistent entities write the version with every event, and
+ * history written under another version is stale, because another node owned the shard since.
+ * <p>
+ * The versions are kept in a distributed data map from shard id to owner, replicated by a
+ * replicator of its own that stores the map durably on the local disk, so that the versions
+ * survive restarts of the nodes and of the whole cluster. A node is identified by its address,
+ * which must stay the same when it restarts for its history to be kept.
+ */
+class ShardOwnership extends AbstractLoggingActor {
+    private final Config persistence = context().system().settings().config().getConfig("cluster-demo.persistence");
+    private final Duration timeout = persistence.getDuration("ownership-timeout");
+    private final ActorRef replicator = context().actorOf(Replicator.props(ReplicatorSettings.apply(persistence.getConfig("shard-owners"))), "replicator");
+    private final Key<LWWMap<String, Owner>> ownersKey = LWWMapKey.create("shard-owners");
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final String memberId = Cluster.get(context().system()).selfAddress().toString();
+    // The version of each shard for the epoch of the shard that claimed it last on this node.
+    private final Map<String, Claimed> claims = new HashMap<>();
+    private final Map<String, Integer> claimEpochs = new HashMap<>();
+    // The claims that wait for the claim of the same shard that is in progress.
+    private final Map<String, List<Waiting>> waiting = new HashMap<>();
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Claim.class, this::claim)
+                .match(Replicator.GetSuccess.class, this::getSuccess)
+                .match(Replicator.NotFound.class, n -> owner((Claim) n.getRequest().get(), null))
+                .match(Replicator.GetFailure.class, this::getFailure)
+                .match(Replicator.UpdateSuccess.class, u -> claimed((Change) u.getRequest().get()))
+                .match(Replicator.UpdateTimeout.class, this::updateTimeout)
+                .match(Replicator.UpdateFailure.class, this::updateFailure)
+                .build();
+    }
+
+    private void claim(Claim claim) {
+        Claimed claimed = claims.get(claim.shardId);
+        if (claimed != null && claimEpochs.get(claim.shardId) == claim.shardEpoch) {
+            sender().tell(claimed, self());
+            return;
+        }
+        List<Waiting> shardWaiting = waiting.get(claim.shardId);
+        if (shardWaiting != null) {
+            shardWaiting.add(new Waiting(sender(), claim.shardEpoch));
+            return;
+        }
+        shardWaiting = new ArrayList<>();
+        shardWaiting.add(new Waiting(sender(), claim.shardEpoch));
+        waiting.put(claim.shardId, shardWaiting);
+        replicator.tell(new Replicator.Get<>(ownersKey, new Replicator.ReadMajority(timeout), Optional.of(claim)), self());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void getSuccess(Replicator.GetSuccess<?> success) {
+        Claim claim = (Claim) success.getRequest().get();
+        Option<Owner> owner = ((Replicator.GetSuccess<LWWMap<String, Owner>>) success).get(ownersKey).get(claim.shardId);
+        owner(claim, owner.isDefined() ? owner.get() : null);
+    }
+
+    // Without a majority the local replica is the best there is.
+    private void getFailure(Replicator.GetFailure<?> failure) {
+        log().warning("Reading the shard owners from a majority failed, reading them locally");
+        replicator.tell(new Replicator.Get<>(ownersKey, Replicator.readLocal(), failure.getRequest()), self());
+    }
+
+    private void owner(Claim claim, Owner owner) {
+        if (owner != null && owner.memberId.equals(memberId)) {
+            claimed(new Change(claim, owner.version));
+        } else {
+            Owner claimed = new Owner(owner == null ? 1 : owner.version + 1, memberId);
+            log().info("Shard {} owned by {}, was {}", claim.shardId, claimed, owner);
+            replicator.tell(new Replicator.Update<>(ownersKey, LWWMap.create(), new Replicator.WriteMajority(timeout),
+                    Optional.of(new Change(claim, claimed.version)), owners -> owners.put(node, claim.shardId, claimed)), self());
+        }
+    }
+
+    // The change was written locally and stored, only not yet on a majority of the nodes.
+    private void updateTimeout(Replicator.UpdateTimeout<?> timeout) {
+        log().warning("Writing the owner of a shard to a majority timed out");
+        claimed((Change) timeout.getRequest().get());
+    }
+
+    private void updateFailure(Replicator.UpdateFailure<?> failure) {
+        log().error("Writing the owner of a shard failed {}", failure);
+        claimed((Change) failure.getRequest().get());
+    }
+
+    private void claimed(Change change) {
+        String shardId = change.claim.shardId;
+        Claimed claimed = new Claimed(shardId, change.version);
+        claims.put(shardId, claimed);
+        claimEpochs.put(shardId, change.claim.shardEpoch);
+        for (Waiting claimer : waiting.remove(shardId)) {
+            if (claimer.shardEpoch == change.claim.shardEpoch) {
+                claimer.replyTo.tell(claimed, self());
+            } else {
+                self().tell(new Claim(shardId, claimer.shardEpoch), claimer.replyTo);
+            }
+        }
+    }
+
+    static Props props() {
+        return Props.create(ShardOwnership.class);
+    }
+
+    /** Asks for the ownership version of a shard that started on this node in the given epoch. */
+    static class Claim implements NoSerializationVerificationNeeded {
+        final String shardId;
+        final int shardEpoch;
+
+        Claim(String shardId, int shardEpoch) {
+            this.shardId = shardId;
+            this.shardEpoch = shardEpoch;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d]", getClass().getSimpleName(), shardId, shardEpoch);
+        }
+    }
+
+    /** The ownership version of a shard while this node owns it. */
+    static class Claimed implements NoSerializationVerificationNeeded {
+        final String shardId;
+        final long version;
+
+        Claimed(String shardId, long version) {
+            this.shardId = shardId;
+            this.version = version;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d]", getClass().getSimpleName(), shardId, version);
+        }
+    }
+
+    /** The node that owned a shard last, and the ownership version it owned it with. */
+    static class Owner implements Serializable {
+        final long version;
+        final String memberId;
+
+        Owner(long version, String memberId) {
+            this.version = version;
+            this.memberId = memberId;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %s]", getClass().getSimpleName(), version, memberId);
+        }
+    }
+
+    private static class Change {
+        final Claim claim;
+        final long version;
+
+        Change(Claim claim, long version) {
+            this.claim = claim;
+            this.version = version;
+        }
+    }
+
+    private static class Waiting {
+        final ActorRef replyTo;
+        final int shardEpoch;
+
+        Waiting(ActorRef replyTo, int shardEpoch) {
+            this.replyTo = replyTo;
+            this.shardEpoch = shardEpoch;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the command throughput and the p99 command latency of the dispatcher layouts: all
+ * actors on the default dispatcher, the bulkheads of {@link DispatcherLayout}, and the bulkheads
+ * with the entities on the shard affinity pool.
+ * <p>
+ * Each layout runs a single node cluster with the pipelined load of the {@link EntityCommandActor}
+ * and {@link EntityQueryActor}, once on its own and once next to tree workers, actors on the HTTP
+ * dispatcher that block their thread for most of every tick the way a slow tree update or a
+ * blocking call in the HTTP server does. After a warm-up, the latency summary that the command
+ * actor publishes every second is collected; the result is the acked commands per second and the
+ * median and the worst of the per second p99 latencies. Run the main method with the test
+ * classpath.
+ */
+public class DispatcherBenchmark {
+    private static final int commandRate = 10_000;
+    private static final int keySpace = 10_000;
+    private static final int warmUpSeconds = 10;
+    private static final int measureSeconds = 20;
+    // As many as the default dispatcher has threads.
+    private static final int treeWorkers = Math.min(64, Math.max(8, 3 * Runtime.getRuntime().availableProcessors()));
+    private static final int treeWorkMillis = 8;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%-24s %-10s %12s %10s %12s", "layout", "tree work", "commands/s", "p99", "worst p99"));
+        for (boolean treeWork : new boolean[]{false, true}) {
+            print("single dispatcher", treeWork, run(false, false, treeWork));
+            print("bulkheads", treeWork, run(true, false, treeWork));
+            print("bulkheads with affinity", treeWork, run(true, true, treeWork));
+        }
+    }
+
+    private static void print(String layout, boolean treeWork, double[] result) {
+        System.out.println(String.format("%-24s %-10s %12.0f %8.0fus %10.0fus", layout, treeWork ? "on" : "off", result[0], result[1], result[2]));
+    }
+
+    // Returns the acked commands per second and the median and worst p99 latency in microseconds.
+    private static double[] run(boolean bulkheads, boolean affinity, boolean treeWork) throws Exception {
+        Config config = ConfigFactory.parseString(String.format(
+                "akka.loglevel = WARNING\n"
+                        + "akka.actor.provider = cluster\n"
+                        + "akka.remote.netty.tcp.port = 0\n"
+                        + "akka.remote.netty.tcp.hostname = 127.0.0.1\n"
+                        + "cluster-demo.dispatchers.enabled = %b\n"
+                        + "cluster-demo.dispatchers.entity-affinity = %b\n"
+                        + "cluster-demo.load.mode = pipelined\n"
+                        + "cluster-demo.load.cluster-rate = %d\n"
+                        + "cluster-demo.load.report-interval = 1s\n"
+                        + "cluster-demo.load.keys.key-space = %d\n",
+                bulkheads, affinity, commandRate, keySpace))
+                .withFallback(ConfigFactory.load());
+
+        ActorSystem system = ActorSystem.create("benchmark", config);
+        try {
+            Cluster.get(system).join(Cluster.get(system).selfAddress());
+            DispatcherLayout dispatchers = DispatcherLayout.get(system);
+            ActorRef httpServer = system.actorOf(dispatchers.http(Props.create(Sink.class)), "httpServer");
+            ActorRef passivationManager = system.actorOf(dispatchers.cluster(PassivationManager.props()), "passivationManager");
+            ActorRef region = ClusterSharding.get(system).start(
+                    "entity",
+                    dispatchers.entity(EntityActor.props(httpServer, passivationManager).withMailbox("cluster-demo.mailboxes.entity")),
+                    ClusterShardingSettings.create(system),
+                    EntityMessage.messageExtractor(ShardIds.get(system)));
+            system.actorOf(dispatchers.load(EntityCommandActor.props(region)), "entityCommand");
+            system.actorOf(dispatchers.load(EntityQueryActor.props(region)), "entityQuery");
+            if (treeWork) {
+                for (int i = 0; i < treeWorkers; i++) {
+                    system.actorOf(dispatchers.http(TreeWorker.props(treeWorkMillis)), "treeWorker-" + i);
+                }
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmUpSeconds));
+            return measure(Latencies.get(system));
+        } finally {
+            Await.result(system.terminate(), Duration.create(1, TimeUnit.MINUTES));
+        }
+    }
+
+    private static double[] measure(Latencies latencies) throws InterruptedException {
+        List<Long> p99s = new ArrayList<>();
+        long count = 0;
+        LatencyHistogram.Summary previous = latencies.summary("commands");
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(measureSeconds);
+        while (System.nanoTime() < end) {
+            Thread.sleep(100);
+            LatencyHistogram.Summary summary = latencies.summary("commands");
+            if (summary != null && summary != previous) {
+                count += summary.count;
+                p99s.add(summary.p99);
+                previous = summary;
+            }
+        }
+        if (p99s.isEmpty()) {
+            return new double[]{0, 0, 0};
+        }
+        Collections.sort(p99s);
+        return new double[]{count / (double) measureSeconds, p99s.get(p99s.size() / 2), p99s.get(p99s.size() - 1)};
+    }
+
+    // Stands in for the HTTP server actor, which the entities send their start and stop actions to.
+    private static class Sink extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchAny(m -> {})
+                    .build();
+        }
+    }
+
+    // Holds its dispatcher thread for workMillis of every tick of 10 milliseconds.
+    private static class TreeWorker extends AbstractActor {
+        private final long workMillis;
+        private Cancellable ticker;
+
+        TreeWorker(long workMillis) {
+            this.workMillis = workMillis;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchEquals("tick", t -> Thread.sleep(workMillis))
+                    .build();
+        }
+
+        @Override
+        public void preStart() {
+            ticker = context().system().scheduler().schedule(Duration.Zero(), Duration.create(10, TimeUnit.MILLISECONDS),
+                    self(), "tick", context().system().dispatcher(), self());
+        }
+
+        @Override
+        public void postStop() {
+            ticker.cancel();
+        }
+
+        static Props props(long workMillis) {
+            return Props.create(TreeWorker.class, workMillis);
+        }
+    }
+}
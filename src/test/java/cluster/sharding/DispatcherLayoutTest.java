@@ -0,0 +1,54 @@
+package cluster.sharding;
+
+import akka.actor.Props;
+import akka.dispatch.Dispatchers;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DispatcherLayoutTest {
+    private final Props props = Props.empty();
+
+    @Test
+    public void disabledLayoutKeepsTheDefaultDispatcher() {
+        DispatcherLayout dispatchers = layout("enabled = off, entity-affinity = on");
+
+        Assert.assertEquals(Dispatchers.DefaultDispatcherId(), dispatchers.entity(props).dispatcher());
+        Assert.assertEquals(Dispatchers.DefaultDispatcherId(), dispatchers.http(props).dispatcher());
+    }
+
+    @Test
+    public void layoutIsOffByDefault() {
+        DispatcherLayout dispatchers = new DispatcherLayout(ConfigFactory.load().getConfig("cluster-demo.dispatchers"));
+
+        Assert.assertEquals(Dispatchers.DefaultDispatcherId(), dispatchers.entity(props).dispatcher());
+        Assert.assertEquals(Dispatchers.DefaultDispatcherId(), dispatchers.cluster(props).dispatcher());
+    }
+
+    @Test
+    public void eachGroupGetsItsOwnDispatcher() {
+        DispatcherLayout dispatchers = layout("enabled = on, entity-affinity = off");
+
+        Assert.assertEquals(DispatcherLayout.entity, dispatchers.entity(props).dispatcher());
+        Assert.assertEquals(DispatcherLayout.http, dispatchers.http(props).dispatcher());
+        Assert.assertEquals(DispatcherLayout.load, dispatchers.load(props).dispatcher());
+        Assert.assertEquals(DispatcherLayout.cluster, dispatchers.cluster(props).dispatcher());
+        Assert.assertEquals(DispatcherLayout.entityAffinity, layout("enabled = on, entity-affinity = on").entity(props).dispatcher());
+    }
+
+    @Test
+    public void entitiesOfAShardShareAQueue() {
+        for (int shard = 0; shard < 100; shard++) {
+            int queue = ShardAffinityQueueSelector.queue(String.valueOf(shard), 7);
+            Assert.assertTrue(queue >= 0 && queue < 7);
+            Assert.assertEquals(queue, ShardAffinityQueueSelector.queue(String.valueOf(shard), 7));
+        }
+        Runnable task = () -> {};
+        int queue = ShardAffinityQueueSelector.queue(task, 3);
+        Assert.assertTrue(queue >= 0 && queue < 3);
+    }
+
+    private static DispatcherLayout layout(String config) {
+        return new DispatcherLayout(ConfigFactory.parseString(config));
+    }
+}
@@ -0,0 +1,126 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+public class EntityActorTest {
+    private ActorSystem actorSystem;
+
+    @Before
+    public void startActorSystem() {
+        actorSystem = ActorSystem.create("EntityActorTest", ConfigFactory.parseString(
+                "akka.loglevel = WARNING\n" +
+                "akka.extensions = []\n" +
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"\n" +
+                "akka.remote.netty.tcp.port = 0\n")
+                .withFallback(ConfigFactory.load()));
+    }
+
+    @After
+    public void stopActorSystem() throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void passivatedEntityGetsItsValueBack() throws Exception {
+        ActorRef shard = actorSystem.actorOf(Shard.props(), "shard1");
+        command(shard, "value-1");
+
+        ask(shard, PassivationManager.passivate);
+
+        Assert.assertEquals("value-1", queryValue(shard));
+        Assert.assertEquals(1, EntityCache.get(actorSystem).stats().hits);
+    }
+
+    @Test
+    public void handedOffEntityIsNotCached() throws Exception {
+        ActorRef shard = actorSystem.actorOf(Shard.props(), "shard1");
+        command(shard, "value-1");
+
+        ask(shard, "hand-off");
+
+        Assert.assertNull(queryValue(shard));
+        Assert.assertEquals(0, EntityCache.get(actorSystem).stats().puts);
+    }
+
+    @Test
+    public void entityPassivatedBeforeItsShardMovedIsStale() throws Exception {
+        ActorRef shard = actorSystem.actorOf(Shard.props(), "shard1");
+        command(shard, "value-1");
+        ask(shard, PassivationManager.passivate);
+
+        ActorRef restartedShard = actorSystem.actorOf(Shard.props(), "shard1-restarted");
+
+        Assert.assertNull(queryValue(restartedShard));
+        Assert.assertEquals(1, EntityCache.get(actorSystem).stats().stale);
+    }
+
+    private static void command(ActorRef shard, String value) throws Exception {
+        ask(shard, new EntityMessage.Command(new Entity("1", value), "shard1", 1));
+    }
+
+    // The value of the entity, or null when it has none.
+    private static Object queryValue(ActorRef shard) throws Exception {
+        Object queryAck = ask(shard, new EntityMessage.Query(new Entity.Id("1"), "shard1", 2));
+        return queryAck instanceof EntityMessage.QueryAck ? ((EntityMessage.QueryAck) queryAck).entity.value.value() : null;
+    }
+
+    private static Object ask(ActorRef shard, Object message) throws Exception {
+        return Patterns.ask(shard, message, Duration.ofSeconds(10)).toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    // Stands in for a cluster sharding shard with one entity. It stops the entity with a PoisonPill
+    // when the entity asks to passivate or when it is handed off, and answers once it has stopped.
+    // Every shard actor has a new uid, so a new one is like the shard starting again on this node.
+    static class Shard extends AbstractActor {
+        private ActorRef entity;
+        private ActorRef stopRequester;
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchEquals(PassivationManager.passivate, p -> stopEntity(p))
+                    .matchEquals("hand-off", h -> stopEntity(PoisonPill.getInstance()))
+                    .match(ShardRegion.Passivate.class, p -> entity.tell(p.stopMessage(), self()))
+                    .match(Terminated.class, t -> entityStopped())
+                    .matchAny(this::forward)
+                    .build();
+        }
+
+        private void forward(Object message) {
+            if (entity == null) {
+                entity = context().watch(context().actorOf(EntityActor.props(context().system().deadLetters(), context().system().deadLetters()), "1"));
+            }
+            entity.forward(message, context());
+        }
+
+        private void stopEntity(Object stopMessage) {
+            stopRequester = sender();
+            entity.tell(stopMessage, self());
+        }
+
+        private void entityStopped() {
+            entity = null;
+            stopRequester.tell("stopped", self());
+        }
+
+        static Props props() {
+            return Props.create(Shard.class);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EntityCacheTest {
+    @Test
+    public void takeReturnsWhatWasPutOnce() {
+        EntityCache cache = new EntityCache(1024);
+        cache.put("1", new Entity("1", "one"), 1);
+        cache.put("2", new Entity("2", 2L), 1);
+
+        assertEntity(new Entity("1", "one"), cache.take("1", 1));
+        assertEntity(new Entity("2", 2L), cache.take("2", 1));
+        Assert.assertNull(cache.take("1", 1));
+        Assert.assertNull(cache.take("3", 1));
+
+        EntityCache.Stats stats = cache.stats();
+        Assert.assertEquals(2, stats.hits);
+        Assert.assertEquals(2, stats.misses);
+        Assert.assertEquals(0, stats.entities);
+    }
+
+    @Test
+    public void putReplacesTheEntity() {
+        EntityCache cache = new EntityCache(1024);
+        cache.put("1", new Entity("1", "old"), 1);
+        cache.put("1", new Entity("1", "new"), 1);
+
+        Assert.assertEquals(1, cache.stats().entities);
+        assertEntity(new Entity("1", "new"), cache.take("1", 1));
+    }
+
+    @Test
+    public void oldestEntitiesAreEvictedWhenFull() {
+        EntityCache cache = new EntityCache(200);
+        for (int i = 0; i < 100; i++) {
+            cache.put(String.valueOf(i), new Entity(String.valueOf(i), "value-" + i), 1);
+        }
+
+        EntityCache.Stats stats = cache.stats();
+        Assert.assertTrue(stats.usedBytes <= 200);
+        Assert.assertEquals(100 - stats.entities, stats.evictions);
+        Assert.assertNull(cache.take("0", 1));
+        assertEntity(new Entity("99", "value-99"), cache.take("99", 1));
+        for (int i = 100 - stats.entities; i < 99; i++) {
+            assertEntity(new Entity(String.valueOf(i), "value-" + i), cache.take(String.valueOf(i), 1));
+        }
+    }
+
+    @Test
+    public void entityFromAnotherShardEpochIsStale() {
+        EntityCache cache = new EntityCache(1024);
+        cache.put("1", new Entity("1", "before handoff"), 1);
+        cache.put("2", new Entity("2", "two"), 1);
+
+        Assert.assertNull(cache.take("1", 2));
+        Assert.assertNull(cache.take("1", 1));
+        assertEntity(new Entity("2", "two"), cache.take("2", 1));
+
+        EntityCache.Stats stats = cache.stats();
+        Assert.assertEquals(1, stats.stale);
+        Assert.assertEquals(1, stats.misses);
+        Assert.assertEquals(1, stats.hits);
+    }
+
+    @Test
+    public void entityLargerThanTheCacheIsNotStored() {
+        EntityCache cache = new EntityCache(16);
+        cache.put("1", new Entity("1", "a value that does not fit"), 1);
+
+        Assert.assertNull(cache.take("1", 1));
+        Assert.assertEquals(1, cache.stats().rejections);
+    }
+
+    @Test
+    public void disabledCacheStoresNothing() {
+        EntityCache cache = new EntityCache(0);
+        cache.put("1", new Entity("1", "one"), 1);
+
+        Assert.assertNull(cache.take("1", 1));
+    }
+
+    // Entity ids and values do not implement equals.
+    private static void assertEntity(Entity expected, Entity actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+}
@@ -0,0 +1,97 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+public class EntityCommandActorTest {
+    private static ActorSystem actorSystem;
+
+    @BeforeClass
+    public static void startActorSystem() {
+        actorSystem = ActorSystem.create("EntityCommandActorTest", ConfigFactory.parseString(
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"\n" +
+                "akka.remote.netty.tcp.port = 0\n" +
+                "akka.loglevel = WARNING\n" +
+                "akka.extensions = []\n" +
+                "cluster-demo.load.mode = \"stop-and-wait\"\n" +
+                "cluster-demo.load.report-interval = 500ms\n")
+                .withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void stopActorSystem() {
+        actorSystem.terminate();
+    }
+
+    // Without members the stop-and-wait tick interval is 300ms, so a first ack that takes 1s
+    // kept three ticks from sending a command. The ack is recorded at its latency of about 1s,
+    // and the commands those ticks would have sent at about 700ms and 400ms.
+    @Test
+    public void slowAckIsRecordedWithTheCommandsItHeldBack() throws InterruptedException {
+        ActorRef shardRegion = actorSystem.actorOf(SlowFirstAck.props(1000), "shardRegion");
+        actorSystem.actorOf(EntityCommandActor.props(shardRegion), "entityCommand");
+
+        LatencyHistogram.Summary summary = awaitSummaryWithMax(900_000, 5000);
+
+        Assert.assertNotNull("no summary with the slow ack", summary);
+        Assert.assertTrue(summary.toString(), summary.max < 2_000_000);
+        Assert.assertTrue(summary.toString(), summary.count >= 3);
+        Assert.assertTrue(summary.toString(), summary.p50 >= 300_000);
+    }
+
+    private static LatencyHistogram.Summary awaitSummaryWithMax(long atLeastMicros, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            LatencyHistogram.Summary summary = Latencies.get(actorSystem).summary("commands");
+            if (summary != null && summary.max >= atLeastMicros) {
+                return summary;
+            }
+            Thread.sleep(20);
+        }
+        return null;
+    }
+
+    // Acks the first command after the given delay and the other commands immediately.
+    static class SlowFirstAck extends AbstractActor {
+        private final long firstAckDelayMillis;
+
+        SlowFirstAck(long firstAckDelayMillis) {
+            this.firstAckDelayMillis = firstAckDelayMillis;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.Command.class, this::command)
+                    .build();
+        }
+
+        private void command(EntityMessage.Command command) {
+            EntityMessage.CommandAck commandAck = new EntityMessage.CommandAck("update", command.entity, command.correlationId);
+            if (command.correlationId == 1) {
+                context().system().scheduler().scheduleOnce(
+                        Duration.create(firstAckDelayMillis, TimeUnit.MILLISECONDS),
+                        sender(),
+                        commandAck,
+                        context().system().dispatcher(),
+                        self());
+            } else {
+                sender().tell(commandAck, self());
+            }
+        }
+
+        static Props props(long firstAckDelayMillis) {
+            return Props.create(SlowFirstAck.class, firstAckDelayMillis);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.function.IntFunction;
+
+/**
+ * Measures the heap retained per live entity by holding many of them and comparing the heap in
+ * use after a full garbage collection, and prints the results. System.gc() is only a hint, so the
+ * measurement is reported rather than asserted.
+ */
+public class EntityFootprintTest {
+    private static final int count = 200_000;
+
+    @Test
+    public void reportRetainedBytesPerEntity() {
+        long numericLong = retainedBytesPerEntity(i -> new Entity(new Entity.Id(i), Entity.Value.of((long) i)));
+        long numericString = retainedBytesPerEntity(i -> new Entity(new Entity.Id(i), Entity.Value.of(String.format("entityCommand-%d", i))));
+        long stringIdBoxedLong = retainedBytesPerEntity(i -> new Entity(new Entity.Id("entity-" + i), new Entity.ObjectValue((long) i + 1000)));
+
+        System.out.println(String.format("numeric id, long value             %4d bytes per entity", numericLong));
+        System.out.println(String.format("numeric id, string value           %4d bytes per entity", numericString));
+        System.out.println(String.format("string id, boxed long value        %4d bytes per entity", stringIdBoxedLong));
+    }
+
+    @Test
+    public void numericIdsAreRecognized() {
+        Assert.assertTrue(new Entity.Id("0").isNumeric());
+        Assert.assertTrue(new Entity.Id("123456789012345678").isNumeric());
+        Assert.assertFalse(new Entity.Id("0123").isNumeric());
+        Assert.assertFalse(new Entity.Id("-1").isNumeric());
+        Assert.assertFalse(new Entity.Id("").isNumeric());
+        Assert.assertFalse(new Entity.Id("12a").isNumeric());
+        Assert.assertTrue(new Entity.Id("1000000000000000000").isNumeric());
+        Assert.assertTrue(new Entity.Id("9223372036854775807").isNumeric());
+        Assert.assertFalse(new Entity.Id("9223372036854775808").isNumeric());
+        Assert.assertFalse(new Entity.Id("10000000000000000000").isNumeric());
+        Assert.assertEquals(new Entity.Id(1_000_000_000_000_000_000L), new Entity.Id("1000000000000000000"));
+        Assert.assertEquals(new Entity.Id(Long.MAX_VALUE), new Entity.Id(Long.toString(Long.MAX_VALUE)));
+        Assert.assertEquals("0123", new Entity.Id("0123").id());
+        Assert.assertEquals("42", new Entity.Id("42").id());
+        Assert.assertEquals(new Entity.Id(42), new Entity.Id("42"));
+        Assert.assertEquals(new Entity.Id(42).hashCode(), new Entity.Id("42").hashCode());
+    }
+
+    @Test
+    public void valuesAreTyped() {
+        Assert.assertTrue(Entity.Value.of((Object) 7L) instanceof Entity.LongValue);
+        Assert.assertTrue(Entity.Value.of((Object) 0.5) instanceof Entity.DoubleValue);
+        Assert.assertTrue(Entity.Value.of((Object) new byte[]{1}) instanceof Entity.BytesValue);
+        Assert.assertTrue(Entity.Value.of((Object) "x") instanceof Entity.StringValue);
+        Assert.assertTrue(Entity.Value.of((Object) 7) instanceof Entity.ObjectValue);
+        Assert.assertSame(Entity.Value.empty, Entity.Value.of((Object) null));
+        Assert.assertEquals("\u00e9t\u00e9", Entity.Value.of("\u00e9t\u00e9").value());
+        Assert.assertEquals(Entity.Value.of("x"), Entity.Value.of((Object) "x"));
+        Assert.assertEquals(new Entity("1", 7L), new Entity("1", 7L).withValue(Entity.Value.of(7L)));
+    }
+
+    private static long retainedBytesPerEntity(IntFunction<Entity> create) {
+        Entity[] entities = new Entity[count];
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            entities[i] = create.apply(i);
+        }
+        long after = usedHeap();
+        Assert.assertNotNull(entities[count - 1]);
+        return (after - before) / count;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
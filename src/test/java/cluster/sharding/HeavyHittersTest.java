@@ -0,0 +1,70 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeavyHittersTest {
+    @Test
+    public void countsExactlyWhileNotFull() {
+        HeavyHitters heavyHitters = new HeavyHitters(4);
+        heavyHitters.offer("a", 3);
+        heavyHitters.offer("b", 1);
+        heavyHitters.offer("a", 2);
+
+        Assert.assertEquals(2, heavyHitters.size());
+        Assert.assertEquals(5, heavyHitters.count("a"));
+        Assert.assertEquals(1, heavyHitters.count("b"));
+        Assert.assertEquals(0, heavyHitters.error("a"));
+        Assert.assertEquals(0, heavyHitters.count("c"));
+    }
+
+    @Test
+    public void newKeyReplacesSmallestCount() {
+        HeavyHitters heavyHitters = new HeavyHitters(2);
+        heavyHitters.offer("a", 10);
+        heavyHitters.offer("b", 2);
+        heavyHitters.offer("c", 1);
+
+        Assert.assertEquals(2, heavyHitters.size());
+        Assert.assertEquals(10, heavyHitters.count("a"));
+        Assert.assertEquals(0, heavyHitters.count("b"));
+        Assert.assertEquals(3, heavyHitters.count("c"));
+        Assert.assertEquals(2, heavyHitters.error("c"));
+    }
+
+    @Test
+    public void findsHeavyHittersInSkewedStream() {
+        HeavyHitters heavyHitters = new HeavyHitters(10);
+        for (int i = 0; i < 10000; i++) {
+            heavyHitters.offer("hot" + (i % 3), 1);
+            heavyHitters.offer("cold" + i, 1);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            String key = "hot" + i;
+            long count = heavyHitters.count(key);
+            Assert.assertTrue(count >= 3333);
+            Assert.assertTrue(count - heavyHitters.error(key) <= 3334);
+        }
+    }
+
+    @Test
+    public void decayHalvesCountsAndDropsQuietKeys() {
+        HeavyHitters heavyHitters = new HeavyHitters(4);
+        heavyHitters.offer("a", 8);
+        heavyHitters.offer("b", 1);
+        heavyHitters.offer("c", 4);
+        heavyHitters.decay();
+
+        Assert.assertEquals(2, heavyHitters.size());
+        Assert.assertEquals(4, heavyHitters.count("a"));
+        Assert.assertEquals(0, heavyHitters.count("b"));
+        Assert.assertEquals(2, heavyHitters.count("c"));
+
+        heavyHitters.offer("d", 1);
+        heavyHitters.offer("e", 1);
+        heavyHitters.offer("f", 1);
+        Assert.assertEquals(4, heavyHitters.count("a"));
+        Assert.assertEquals(2, heavyHitters.count("c"));
+    }
+}
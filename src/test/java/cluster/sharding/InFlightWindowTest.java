@@ -0,0 +1,56 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class InFlightWindowTest {
+    @Test
+    public void addAndRemove() {
+        InFlightWindow inFlight = new InFlightWindow(4);
+        for (long correlationId = 1; correlationId <= 4; correlationId++) {
+            Assert.assertTrue(inFlight.add(correlationId, correlationId * 10));
+        }
+        Assert.assertEquals(4, inFlight.size());
+
+        Assert.assertEquals(20, inFlight.remove(2));
+        Assert.assertEquals(-1, inFlight.remove(2));
+        Assert.assertEquals(-1, inFlight.remove(42));
+        Assert.assertEquals(3, inFlight.size());
+    }
+
+    @Test
+    public void slotIsTakenUntilOldestRequestIsDone() {
+        InFlightWindow inFlight = new InFlightWindow(4);
+        for (long correlationId = 1; correlationId <= 4; correlationId++) {
+            inFlight.add(correlationId, 0);
+        }
+        inFlight.remove(2);
+        inFlight.remove(3);
+
+        Assert.assertFalse(inFlight.add(5, 0));
+        inFlight.remove(1);
+        Assert.assertTrue(inFlight.add(5, 0));
+        Assert.assertTrue(inFlight.add(6, 0));
+        Assert.assertTrue(inFlight.add(7, 0));
+        Assert.assertFalse(inFlight.add(8, 0));
+    }
+
+    @Test
+    public void expireRemovesOldRequests() {
+        InFlightWindow inFlight = new InFlightWindow(8);
+        for (long correlationId = 1; correlationId <= 6; correlationId++) {
+            inFlight.add(correlationId, correlationId * 100);
+        }
+
+        List<Long> expiredSendTimes = new ArrayList<>();
+        Assert.assertEquals(3, inFlight.expire(400, expiredSendTimes::add));
+        Assert.assertEquals(Arrays.asList(100L, 200L, 300L), expiredSendTimes);
+        Assert.assertEquals(3, inFlight.size());
+        Assert.assertEquals(-1, inFlight.remove(3));
+        Assert.assertEquals(400, inFlight.remove(4));
+    }
+}
@@ -0,0 +1,62 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.dispatch.Envelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InstrumentedMailboxTest {
+    private final MailboxMetrics.ActorClass actorClass = new MailboxMetrics.ActorClass("TestActor");
+
+    @Test
+    public void messagesAreDequeuedInOrderWithStashedMessagesFirst() {
+        InstrumentedMailbox.InstrumentedQueue queue = new InstrumentedMailbox.InstrumentedQueue(actorClass, 1);
+        queue.enqueue(ActorRef.noSender(), envelope("a"));
+        queue.enqueue(ActorRef.noSender(), envelope("b"));
+        queue.enqueueFirst(ActorRef.noSender(), envelope("stashed"));
+
+        Assert.assertEquals(3, queue.numberOfMessages());
+        Assert.assertEquals("stashed", queue.dequeue().message());
+        Assert.assertEquals("a", queue.dequeue().message());
+        Assert.assertEquals("b", queue.dequeue().message());
+        Assert.assertNull(queue.dequeue());
+        Assert.assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void sampledMessagesAreTimedUntilTheProcessingThreadReturns() throws InterruptedException {
+        InstrumentedMailbox.InstrumentedQueue queue = new InstrumentedMailbox.InstrumentedQueue(actorClass, 1);
+        queue.enqueue(ActorRef.noSender(), envelope("a"));
+        queue.enqueue(ActorRef.noSender(), envelope("b"));
+        queue.dequeue();
+        Thread.sleep(5);
+        queue.dequeue();
+        queue.hasMessages();
+
+        MailboxMetrics.Summary summary = actorClass.summary(0);
+        Assert.assertEquals(2, summary.messages);
+        Assert.assertEquals(0, summary.depth);
+        Assert.assertEquals(2, summary.maxDepth);
+        Assert.assertEquals(2, summary.timeInMailbox.count);
+        Assert.assertEquals(2, summary.processingTime.count);
+        Assert.assertTrue(summary.toString(), summary.processingTime.max >= 5_000);
+
+        Assert.assertEquals(0, actorClass.summary(0).processingTime.count);
+    }
+
+    @Test
+    public void otherThreadsDoNotEndTheProcessingTime() throws InterruptedException {
+        InstrumentedMailbox.InstrumentedQueue queue = new InstrumentedMailbox.InstrumentedQueue(actorClass, 1);
+        queue.enqueue(ActorRef.noSender(), envelope("a"));
+        queue.dequeue();
+        Thread sender = new Thread(queue::hasMessages);
+        sender.start();
+        sender.join();
+
+        Assert.assertEquals(0, actorClass.summary(0).processingTime.count);
+    }
+
+    private static Envelope envelope(Object message) {
+        return Envelope.apply(message, ActorRef.noSender());
+    }
+}
@@ -0,0 +1,140 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how the recovery time of a {@link PersistentEntityActor} grows with the number of
+ * events it has persisted, with snapshots off and with the configured snapshot interval, and how
+ * long the {@link SegmentedJournal} takes to open and index its segments.
+ * <p>
+ * For each event count, one entity persists that many commands in a fresh journal. Then a new
+ * actor system is started on the same directories, an entity without events is recovered to open
+ * the journal, and the time until the entity with the events has recovered is measured. Run the
+ * main method with the test classpath.
+ */
+public class JournalRecoveryBenchmark {
+    private static final int[] eventCounts = {1_000, 10_000, 100_000};
+    private static final int snapshotEvery = 100;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%10s %12s %14s %14s", "events", "open journal", "no snapshots", "snapshots"));
+        for (int eventCount : eventCounts) {
+            double[] withoutSnapshots = run(eventCount, Integer.MAX_VALUE);
+            double[] withSnapshots = run(eventCount, snapshotEvery);
+            System.out.println(String.format("%10d %10.1fms %12.1fms %12.1fms", eventCount, withoutSnapshots[0], withoutSnapshots[1], withSnapshots[1]));
+        }
+    }
+
+    // Returns the milliseconds it took to open the journal and to recover the entity.
+    private static double[] run(int eventCount, int snapshotEvery) throws Exception {
+        Path dir = Files.createTempDirectory("journal-recovery");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            // Both actor systems are the same node, so that it keeps owning the entity's shard.
+            int port = socket.getLocalPort();
+            socket.close();
+            Config config = ConfigFactory.parseString(String.format(
+                    "akka.loglevel = WARNING\n"
+                            + "akka.actor.provider = cluster\n"
+                            + "akka.remote.netty.tcp.port = %d\n"
+                            + "akka.remote.netty.tcp.hostname = 127.0.0.1\n"
+                            + "cluster-demo.persistence.snapshot-every = %d\n"
+                            + "cluster-demo.persistence.journal.dir = \"%s\"\n"
+                            + "cluster-demo.persistence.snapshot-store.dir = \"%s\"\n"
+                            + "cluster-demo.persistence.shard-owners.durable.lmdb.dir = \"%s\"\n",
+                    port, snapshotEvery, dir.resolve("journal"), dir.resolve("snapshots"), dir.resolve("ddata")))
+                    .withFallback(ConfigFactory.load());
+
+            ActorSystem writing = ActorSystem.create("benchmark", config);
+            CompletableFuture<Object> acked = new CompletableFuture<>();
+            ActorRef receiver = writing.actorOf(Receiver.commandAcks(acked, eventCount));
+            ActorRef shardOwnership = writing.actorOf(ShardOwnership.props(), "shardOwnership");
+            ActorRef entity = writing.actorOf(PersistentEntityActor.props(receiver, receiver, shardOwnership), "1");
+            for (int i = 1; i <= eventCount; i++) {
+                entity.tell(new EntityMessage.Command(new Entity("1", "value-" + i), "1", i), receiver);
+            }
+            acked.get(5, TimeUnit.MINUTES);
+            entity.tell(PoisonPill.getInstance(), ActorRef.noSender());
+            Await.result(writing.terminate(), Duration.create(1, TimeUnit.MINUTES));
+
+            ActorSystem recovering = ActorSystem.create("benchmark", config);
+            ActorRef recoveringOwnership = recovering.actorOf(ShardOwnership.props(), "shardOwnership");
+            long start = System.nanoTime();
+            recover(recovering, recoveringOwnership, "0");
+            long journalOpened = System.nanoTime();
+            recover(recovering, recoveringOwnership, "1");
+            long recovered = System.nanoTime();
+            Await.result(recovering.terminate(), Duration.create(1, TimeUnit.MINUTES));
+            return new double[]{(journalOpened - start) / 1e6, (recovered - journalOpened) / 1e6};
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException e) {
+                // Leave the directory behind.
+            }
+        }
+    }
+
+    // The first entity to recover also waits for the journal to open its segments.
+    private static void recover(ActorSystem system, ActorRef shardOwnership, String entityId) throws Exception {
+        CompletableFuture<Object> recovered = new CompletableFuture<>();
+        ActorRef receiver = system.actorOf(Receiver.starts(recovered, 1));
+        system.actorOf(PersistentEntityActor.props(receiver, receiver, shardOwnership), entityId);
+        recovered.get(5, TimeUnit.MINUTES);
+    }
+
+    // Completes the future when it has received the expected number of command acks, or of entity
+    // start actions, and ignores everything else. The entity also sends a start action when it
+    // has recovered, which must not count as the ack of the last command.
+    private static class Receiver extends AbstractActor {
+        private final CompletableFuture<Object> done;
+        private final int expected;
+        private final boolean countStarts;
+        private int received;
+
+        Receiver(CompletableFuture<Object> done, int expected, boolean countStarts) {
+            this.done = done;
+            this.expected = expected;
+            this.countStarts = countStarts;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, a -> !countStarts, a -> count())
+                    .match(EntityMessage.Action.class, a -> countStarts && a.action.equals("start"), a -> count())
+                    .matchAny(m -> {})
+                    .build();
+        }
+
+        private void count() {
+            if (++received == expected) {
+                done.complete(received);
+            }
+        }
+
+        static Props commandAcks(CompletableFuture<Object> done, int expected) {
+            return Props.create(Receiver.class, done, expected, false);
+        }
+
+        static Props starts(CompletableFuture<Object> done, int expected) {
+            return Props.create(Receiver.class, done, expected, true);
+        }
+    }
+}
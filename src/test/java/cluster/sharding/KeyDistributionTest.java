@@ -0,0 +1,75 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+public class KeyDistributionTest {
+    private static final int samples = 1_000_000;
+
+    @Test
+    public void uniformCoversKeySpace() {
+        long[] counts = sample(new KeyDistribution.Uniform(10, new SplittableRandom(1)), 10);
+
+        for (int key = 1; key <= 10; key++) {
+            Assert.assertEquals(samples / 10.0, counts[key], samples / 100.0);
+        }
+    }
+
+    @Test
+    public void zipfianFollowsPowerLaw() {
+        double constant = 0.99;
+        int keySpace = 1000;
+        long[] counts = sample(new KeyDistribution.Zipfian(keySpace, constant, new SplittableRandom(1)), keySpace);
+
+        double zeta = 0;
+        for (int key = 1; key <= keySpace; key++) {
+            zeta += 1 / Math.pow(key, constant);
+        }
+        for (int key : new int[]{1, 2, 10}) {
+            double expected = samples / Math.pow(key, constant) / zeta;
+            Assert.assertEquals(expected, counts[key], expected * 0.1);
+        }
+        Assert.assertTrue(counts[1] > 100 * counts[keySpace - 1]);
+    }
+
+    @Test
+    public void zipfianHandlesLargeKeySpace() {
+        KeyDistribution keys = new KeyDistribution.Zipfian(10_000_000, 0.99, new SplittableRandom(1));
+        for (int i = 0; i < samples; i++) {
+            long key = keys.next();
+            Assert.assertTrue(key >= 1 && key <= 10_000_000);
+        }
+    }
+
+    @Test
+    public void hotspotSendsMostOperationsToHotKeys() {
+        long[] counts = sample(new KeyDistribution.Hotspot(100, 0.2, 0.8, new SplittableRandom(1)), 100);
+
+        long hot = 0;
+        for (int key = 1; key <= 20; key++) {
+            hot += counts[key];
+        }
+        Assert.assertEquals(0.8, (double) hot / samples, 0.01);
+    }
+
+    @Test
+    public void sequentialWrapsAround() {
+        KeyDistribution keys = new KeyDistribution.Sequential(3);
+        long[] expected = {1, 2, 3, 1, 2};
+        for (long key : expected) {
+            Assert.assertEquals(key, keys.next());
+        }
+    }
+
+    private static long[] sample(KeyDistribution keys, int keySpace) {
+        long[] counts = new long[keySpace + 1];
+        for (int i = 0; i < samples; i++) {
+            long key = keys.next();
+            Assert.assertTrue(key >= 1 && key <= keySpace);
+            counts[(int) key]++;
+        }
+        return counts;
+    }
+}
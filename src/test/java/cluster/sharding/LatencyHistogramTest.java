@@ -0,0 +1,61 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void percentilesAreWithinOnePercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.recordValue(value);
+        }
+
+        Assert.assertEquals(100000, histogram.totalCount());
+        Assert.assertEquals(100000, histogram.maxValue());
+        assertWithinOnePercent(50000, histogram.valueAtPercentile(50));
+        assertWithinOnePercent(99000, histogram.valueAtPercentile(99));
+        assertWithinOnePercent(99900, histogram.valueAtPercentile(99.9));
+        Assert.assertEquals(100000, histogram.valueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverAllValues() {
+        for (long value = 0; value < 1_000_000; value += 7) {
+            int index = LatencyHistogram.index(value);
+            Assert.assertTrue(value <= LatencyHistogram.highestValue(index));
+            Assert.assertTrue(index == 0 || value > LatencyHistogram.highestValue(index - 1));
+        }
+        Assert.assertEquals(LatencyHistogram.highestTrackableValue,
+                Math.min(LatencyHistogram.highestTrackableValue, LatencyHistogram.highestValue(LatencyHistogram.index(LatencyHistogram.highestTrackableValue))));
+    }
+
+    @Test
+    public void correctsForCoordinatedOmission() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.recordValue(1000, 10000);
+        }
+        histogram.recordValue(1000000, 10000);
+
+        // The stalled request hides the 99 requests that should have been sent while it was waiting.
+        Assert.assertEquals(199, histogram.totalCount());
+        Assert.assertTrue(histogram.valueAtPercentile(75) > 400000);
+        assertWithinOnePercent(1000, histogram.valueAtPercentile(25));
+    }
+
+    @Test
+    public void resetClearsCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(42);
+        histogram.reset();
+
+        Assert.assertEquals(0, histogram.totalCount());
+        Assert.assertEquals(0, histogram.valueAtPercentile(99));
+        Assert.assertEquals(0, histogram.summary(0).max);
+    }
+
+    private static void assertWithinOnePercent(long expected, long actual) {
+        Assert.assertTrue(String.format("expected %d, was %d", expected, actual), Math.abs(actual - expected) <= expected / 100);
+    }
+}
@@ -0,0 +1,134 @@
+package cluster.sharding;
+
+import akka.actor.Address;
+import akka.event.NoLogging;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Function;
+
+public class LoadAwareAllocationStrategyTest {
+    private static final String a = "akka.tcp://test@10.0.0.1:2552";
+    private static final String b = "akka.tcp://test@10.0.0.2:2552";
+    private final Map<String, ClusterLoad.ShardRates> shardRates = new HashMap<>();
+    private final List<LoadAwareAllocationStrategy.Rebalanced> decisions = new ArrayList<>();
+    private ClusterLoad clusterLoad;
+    private LoadAwareAllocationStrategy strategy;
+
+    @Before
+    public void setUp() {
+        clusterLoad = new ClusterLoad();
+        strategy = new LoadAwareAllocationStrategy(ConfigFactory.load().getConfig("cluster-demo.shard-allocation"),
+                clusterLoad, new Address("akka.tcp", "test", "10.0.0.1", 2552), NoLogging.getInstance(), decisions::add);
+    }
+
+    @Test
+    public void newShardGoesToTheMemberWithTheLowestLoad() {
+        rates(a, "1", 100);
+        rates(b, "2", 1);
+        Assert.assertEquals(b, strategy.leastLoaded(allocations(a, "1", b, "2"), Function.identity()));
+
+        rates(b, "2", 100);
+        clusterLoad.updateMetrics(b, 0.9, 0.5);
+        Assert.assertEquals(a, strategy.leastLoaded(allocations(a, "1", b, "2"), Function.identity()));
+    }
+
+    @Test
+    public void busyShardMovesToTheLeastLoadedMember() {
+        rates(a, "1", 100);
+        rates(a, "2", 100);
+        rates(a, "3", 1);
+        rates(b, "4", 1);
+        Map<String, List<String>> allocations = new HashMap<>();
+        allocations.put(a, Arrays.asList("1", "2", "3"));
+        allocations.put(b, Collections.singletonList("4"));
+
+        Set<String> moved = strategy.shardsToMove(allocations, Function.identity());
+        Assert.assertEquals(1, moved.size());
+        Assert.assertTrue(moved.toString(), moved.contains("1") || moved.contains("2"));
+        Assert.assertEquals(1, decisions.size());
+        Assert.assertEquals(a, decisions.get(0).fromMember);
+        Assert.assertEquals(b, decisions.get(0).toMember);
+        Assert.assertFalse(decisions.get(0).hot);
+    }
+
+    @Test
+    public void hottestShardMovesFirstAlsoWithinTheThreshold() {
+        rates(a, "1", 50, true);
+        rates(a, "2", 850, false);
+        rates(b, "3", 600, false);
+        rates(b, "4", 100, false);
+        Map<String, List<String>> allocations = new HashMap<>();
+        allocations.put(a, Arrays.asList("1", "2"));
+        allocations.put(b, Arrays.asList("3", "4"));
+
+        Set<String> moved = strategy.shardsToMove(allocations, Function.identity());
+        Assert.assertEquals(Collections.singleton("1"), moved);
+        Assert.assertEquals(1, decisions.size());
+        Assert.assertTrue(decisions.get(0).hot);
+    }
+
+    @Test
+    public void shardsAreAllocatedBeforeMetricsArrive() {
+        clusterLoad.updateMetrics(a, Double.NaN, Double.NaN);
+        clusterLoad.updateMetrics(b, Double.NaN, -1);
+        Assert.assertEquals(0, clusterLoad.cpu(a), 0);
+        Assert.assertEquals(0, clusterLoad.heap(b), 0);
+
+        Map<String, List<String>> allocations = new HashMap<>();
+        allocations.put(a, Collections.emptyList());
+        allocations.put(b, Collections.emptyList());
+        Assert.assertNotNull(strategy.leastLoaded(allocations, Function.identity()));
+        Assert.assertTrue(strategy.shardsToMove(allocations, Function.identity()).isEmpty());
+    }
+
+    @Test
+    public void singleHotShardIsNotBouncedBetweenMembers() {
+        rates(a, "1", 100);
+        Assert.assertTrue(strategy.shardsToMove(allocations(a, "1", b, "2"), Function.identity()).isEmpty());
+    }
+
+    @Test
+    public void balancedMembersKeepTheirShards() {
+        rates(a, "1", 50);
+        rates(b, "2", 48);
+        Assert.assertTrue(strategy.shardsToMove(allocations(a, "1", b, "2"), Function.identity()).isEmpty());
+    }
+
+    private void rates(String address, String shardId, double rate) {
+        rates(address, shardId, rate, false);
+    }
+
+    private void rates(String address, String shardId, double rate, boolean hot) {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        Set<String> hotShardIds = new HashSet<>();
+        ClusterLoad.ShardRates current = shardRates.get(address);
+        for (int i = 0; current != null && i < current.shardIds.length; i++) {
+            rates.put(current.shardIds[i], current.rates[i]);
+            if (current.hot[i]) {
+                hotShardIds.add(current.shardIds[i]);
+            }
+        }
+        rates.put(shardId, rate);
+        if (hot) {
+            hotShardIds.add(shardId);
+        }
+        String[] shardIds = rates.keySet().toArray(new String[0]);
+        boolean[] hotFlags = new boolean[shardIds.length];
+        for (int i = 0; i < shardIds.length; i++) {
+            hotFlags[i] = hotShardIds.contains(shardIds[i]);
+        }
+        shardRates.put(address, new ClusterLoad.ShardRates(shardIds, rates.values().stream().mapToDouble(Double::doubleValue).toArray(), hotFlags));
+        clusterLoad.updateShardRates(new HashMap<>(shardRates));
+    }
+
+    private static Map<String, List<String>> allocations(String address1, String shardId1, String address2, String shardId2) {
+        Map<String, List<String>> allocations = new HashMap<>();
+        allocations.put(address1, Collections.singletonList(shardId1));
+        allocations.put(address2, Collections.singletonList(shardId2));
+        return allocations;
+    }
+}
@@ -0,0 +1,23 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocalClusterTest {
+    @Test
+    public void nodeEventsAreParsed() {
+        LocalCluster.NodeEvent kill = LocalCluster.NodeEvent.parse("30s kill 3");
+        Assert.assertEquals(30_000, kill.atMillis);
+        Assert.assertEquals("kill", kill.action);
+        Assert.assertEquals(3, kill.node);
+
+        LocalCluster.NodeEvent start = LocalCluster.NodeEvent.parse(" 1500ms   start 16 ");
+        Assert.assertEquals(1_500, start.atMillis);
+        Assert.assertEquals("start 16", start.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownNodeActionsAreRejected() {
+        LocalCluster.NodeEvent.parse("30s restart 3");
+    }
+}
@@ -0,0 +1,196 @@
+package cluster.sharding;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.DisabledJavaSerializer;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class MessageSerializerTest {
+    private final MessageSerializer serializer = new MessageSerializer();
+
+    @Test
+    public void entityMessagesRoundTrip() throws NotSerializableException {
+        Entity entity = new Entity("42", "entityCommand-17");
+
+        assertRoundTrip(new EntityMessage.Command(entity, "7", 1L << 35));
+        assertRoundTrip(new EntityMessage.CommandAck("update", entity, 1L << 35));
+        assertRoundTrip(new EntityMessage.Query(new Entity.Id("42"), "7", 3));
+        assertRoundTrip(new EntityMessage.QueryAck(entity, 3));
+        assertRoundTrip(new EntityMessage.QueryAckNotFound(new Entity.Id("42"), 3));
+        assertRoundTrip(new EntityMessage.Action("akka.tcp://akka-cluster-kubernetes@10.0.0.1:2552", "7", "42", "start", true));
+        assertRoundTrip(entity);
+        assertRoundTrip(new PersistentEntityActor.Event(entity, 1234567890123L));
+        assertRoundTrip(new ShardOwnership.Owner(3, "akka.tcp://akka-cluster-kubernetes@10.0.0.1:2552"));
+    }
+
+    @Test
+    public void numericAndStringIdsRoundTrip() throws NotSerializableException {
+        for (String id : new String[]{"0", "9", "10", "123456789012345678", "1000000000000000000", "9223372036854775807",
+                "9223372036854775808", "0123", "entity-1"}) {
+            assertRoundTrip(new Entity(id, 1L));
+            assertRoundTrip(new EntityMessage.Query(new Entity.Id(id), "7", 3));
+        }
+    }
+
+    @Test
+    public void entityValueTypesRoundTrip() throws NotSerializableException {
+        assertRoundTrip(new Entity("1", null));
+        assertRoundTrip(new Entity("1", 123456789012L));
+        assertRoundTrip(new Entity("1", -17));
+        assertRoundTrip(new Entity("1", 3.25));
+        assertRoundTrip(new Entity("1", true));
+        assertRoundTrip(new Entity("1", "caf\u00e9 \u2603"));
+
+        byte[] bytes = {1, 2, 3};
+        Entity entity = (Entity) roundTrip(new Entity("1", bytes));
+        Assert.assertArrayEquals(bytes, (byte[]) entity.value.value());
+    }
+
+    @Test
+    public void largestNumericIdsAreEqualAfterARoundTrip() throws NotSerializableException {
+        for (long number : new long[]{999_999_999_999_999_999L, 1_000_000_000_000_000_000L, Long.MAX_VALUE}) {
+            Entity entity = new Entity(new Entity.Id(number), Entity.Value.of(1L));
+            Assert.assertEquals(entity, roundTrip(entity));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherValueTypesNeedAnActorSystem() {
+        serializer.toBinary(new Entity("1", Instant.ofEpochMilli(1500000000000L)));
+    }
+
+    @Test
+    public void otherValueTypesFollowTheSerializationSettingsOfTheActorSystem() throws Exception {
+        Entity entity = new Entity("1", Instant.ofEpochMilli(1500000000000L));
+        ActorSystem actorSystem = ActorSystem.create("MessageSerializerTest", ConfigFactory.parseString(
+                "akka.actor.provider = local\n" +
+                "akka.extensions = []\n" +
+                "akka.actor.warn-about-java-serializer-usage = off\n"));
+        try {
+            MessageSerializer serializer = new MessageSerializer((ExtendedActorSystem) actorSystem);
+            Assert.assertEquals(entity, serializer.fromBinary(serializer.toBinary(entity), serializer.manifest(entity)));
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+
+        actorSystem = ActorSystem.create("MessageSerializerTest", ConfigFactory.parseString(
+                "akka.actor.provider = local\n" +
+                "akka.extensions = []\n" +
+                "akka.actor.allow-java-serialization = off\n"));
+        try {
+            MessageSerializer serializer = new MessageSerializer((ExtendedActorSystem) actorSystem);
+            serializer.toBinary(entity);
+            Assert.fail("Java serialization is not allowed");
+        } catch (DisabledJavaSerializer.JavaSerializationException e) {
+            // Akka refuses the value as it refuses messages.
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @Test
+    public void clusterMessagesRoundTrip() throws NotSerializableException {
+        String member = "akka.tcp://akka-cluster-kubernetes@10.0.0.1:2552";
+
+        assertRoundTrip(new ClusterSingletonActor.Action(member, "start", false));
+        assertRoundTrip(new HttpServerActor.StopNode(member));
+        assertRoundTrip(new HttpServerActor.TreeRepairRequest(member, Arrays.asList("1", "2", "14")));
+        assertRoundTrip(new LoadAwareAllocationStrategy.Rebalanced("7", member, "akka.tcp://akka-cluster-kubernetes@10.0.0.2:2552", true, true));
+
+        Map<String, Long> shardDigests = new HashMap<>();
+        shardDigests.put("1", 0x1234567890abcdefL);
+        shardDigests.put("2", -1L);
+        HttpServerActor.TreeDigest treeDigest = (HttpServerActor.TreeDigest) roundTrip(new HttpServerActor.TreeDigest(member, 42, shardDigests));
+        Assert.assertEquals(42, treeDigest.memberDigest);
+        Assert.assertEquals(shardDigests, treeDigest.shardDigests);
+
+        Map<String, Set<String>> entityIdsByShard = new HashMap<>();
+        entityIdsByShard.put("1", new HashSet<>(Arrays.asList("10", "11")));
+        entityIdsByShard.put("2", Collections.emptySet());
+        HttpServerActor.TreeRepair treeRepair = (HttpServerActor.TreeRepair) roundTrip(new HttpServerActor.TreeRepair(member, entityIdsByShard));
+        Assert.assertEquals(member, treeRepair.memberId);
+        Assert.assertEquals(entityIdsByShard, treeRepair.entityIdsByShard);
+
+        EntityMessage.ActionBatch batch = (EntityMessage.ActionBatch) roundTrip(new EntityMessage.ActionBatch(member,
+                new String[]{"1", "2"}, new String[]{"10", "20"}, new boolean[]{true, false}));
+        Assert.assertEquals(member, batch.member);
+        Assert.assertArrayEquals(new String[]{"1", "2"}, batch.shardIds);
+        Assert.assertArrayEquals(new String[]{"10", "20"}, batch.entityIds);
+        Assert.assertTrue(batch.starts[0]);
+        Assert.assertFalse(batch.starts[1]);
+
+        HttpServerActor.HotEntities hotEntities = (HttpServerActor.HotEntities) roundTrip(new HttpServerActor.HotEntities(member,
+                new String[]{"1", "2"}, new String[]{"10", "20"}, new long[]{300, 1L << 40}, new long[]{0, 7}));
+        Assert.assertEquals(member, hotEntities.memberId);
+        Assert.assertArrayEquals(new String[]{"1", "2"}, hotEntities.shardIds);
+        Assert.assertArrayEquals(new String[]{"10", "20"}, hotEntities.entityIds);
+        Assert.assertArrayEquals(new long[]{300, 1L << 40}, hotEntities.counts);
+        Assert.assertArrayEquals(new long[]{0, 7}, hotEntities.errors);
+
+        ClusterLoad.ShardRates shardRates = (ClusterLoad.ShardRates) roundTrip(new ClusterLoad.ShardRates(
+                new String[]{"1", "2"}, new double[]{0.5, 1250.25}, new boolean[]{false, true}));
+        Assert.assertArrayEquals(new String[]{"1", "2"}, shardRates.shardIds);
+        Assert.assertArrayEquals(new double[]{0.5, 1250.25}, shardRates.rates, 0);
+        Assert.assertFalse(shardRates.hot[0]);
+        Assert.assertTrue(shardRates.hot[1]);
+    }
+
+    @Test
+    public void payloadsAreSmallerThanJavaSerialization() throws IOException {
+        String member = "akka.tcp://akka-cluster-kubernetes@10.0.0.1:2552";
+        Entity entity = new Entity("42", "entityCommand-17");
+        List<Object> messages = Arrays.asList(
+                new EntityMessage.Command(entity, "7", 12),
+                new EntityMessage.CommandAck("update", entity, 12),
+                new EntityMessage.Query(new Entity.Id("42"), "7", 12),
+                new EntityMessage.QueryAck(entity, 12),
+                new EntityMessage.QueryAckNotFound(new Entity.Id("42"), 12),
+                new EntityMessage.Action(member, "7", "42", "start", true),
+                new ClusterSingletonActor.Action(member, "start", true),
+                new HttpServerActor.StopNode(member),
+                entity);
+
+        for (Object message : messages) {
+            int binarySize = serializer.toBinary(message).length;
+            int javaSize = javaSerializedSize(message);
+            System.out.printf("%-20s binary %4d bytes, java %4d bytes%n", message.getClass().getSimpleName(), binarySize, javaSize);
+            Assert.assertTrue(message.toString(), binarySize * 2 < javaSize);
+        }
+    }
+
+    @Test(expected = NotSerializableException.class)
+    public void unknownManifestIsRejected() throws NotSerializableException {
+        serializer.fromBinary(new byte[0], "unknown");
+    }
+
+    private void assertRoundTrip(Object message) throws NotSerializableException {
+        Assert.assertEquals(message.toString(), roundTrip(message).toString());
+    }
+
+    private Object roundTrip(Object message) throws NotSerializableException {
+        Object copy = serializer.fromBinary(serializer.toBinary(message), serializer.manifest(message));
+        Assert.assertEquals(message.getClass(), copy.getClass());
+        return copy;
+    }
+
+
+    private static int javaSerializedSize(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.size();
+    }
+}
@@ -0,0 +1,189 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PassivationManagerTest {
+    private static final long idleTimeout = 15_000;
+    private static final long minIdleTimeout = 1_000;
+    private final BlockingQueue<String> passivated = new LinkedBlockingQueue<>();
+    private ActorSystem actorSystem;
+    private ActorRef passivationManager;
+
+    @After
+    public void stopActorSystem() {
+        if (actorSystem != null) {
+            actorSystem.terminate();
+        }
+    }
+
+    @Test
+    public void idleTimeoutIsUnchangedUpToTheThreshold() {
+        Assert.assertEquals(idleTimeout, PassivationManager.idleTimeout(idleTimeout, minIdleTimeout, 0.7, 0));
+        Assert.assertEquals(idleTimeout, PassivationManager.idleTimeout(idleTimeout, minIdleTimeout, 0.7, 0.7));
+    }
+
+    @Test
+    public void idleTimeoutShrinksLinearlyAboveTheThreshold() {
+        Assert.assertEquals(8_000, PassivationManager.idleTimeout(idleTimeout, minIdleTimeout, 0.6, 0.8));
+        Assert.assertEquals(minIdleTimeout, PassivationManager.idleTimeout(idleTimeout, minIdleTimeout, 0.6, 1.0));
+    }
+
+    @Test
+    public void idleTimeoutIsNeverBelowTheMinimum() {
+        Assert.assertEquals(minIdleTimeout, PassivationManager.idleTimeout(idleTimeout, minIdleTimeout, 0.7, 1.5));
+        Assert.assertEquals(minIdleTimeout, PassivationManager.idleTimeout(idleTimeout, minIdleTimeout, 1.0, 1.1));
+    }
+
+    @Test
+    public void nodeBudgetPassivatesTheLeastRecentlyUsedEntity() throws InterruptedException {
+        start(2, 0, "lru");
+        register(entry("entity1", "shard1", 30, 0));
+        register(entry("entity2", "shard2", 10, 0));
+        assertNothingPassivated();
+
+        register(entry("entity3", "shard1", 20, 0));
+
+        Assert.assertEquals("entity1", nextPassivated());
+        assertNothingPassivated();
+    }
+
+    @Test
+    public void shardBudgetOnlyPassivatesEntitiesOfThatShard() throws InterruptedException {
+        start(0, 1, "lru");
+        register(entry("entity1", "shard1", 10, 0));
+        register(entry("entity2", "shard2", 30, 0));
+        assertNothingPassivated();
+
+        register(entry("entity3", "shard1", 20, 0));
+
+        Assert.assertEquals("entity3", nextPassivated());
+        assertNothingPassivated();
+    }
+
+    @Test
+    public void lfuPassivatesTheEntityWithTheLowestMessageRate() throws InterruptedException {
+        start(2, 0, "lfu");
+        register(entry("entity1", "shard1", 30, 100));
+        register(entry("entity2", "shard1", 0, 1));
+
+        register(entry("entity3", "shard1", 20, 50));
+
+        Assert.assertEquals("entity2", nextPassivated());
+        assertNothingPassivated();
+    }
+
+    @Test
+    public void passivatingEntitiesDoNotCountAsActive() throws InterruptedException {
+        start(2, 0, "lru");
+        PassivationManager.Entry entry1 = entry("entity1", "shard1", 40, 0);
+        PassivationManager.Entry entry2 = entry("entity2", "shard1", 30, 0);
+        register(entry1);
+        register(entry2);
+        register(entry("entity3", "shard1", 20, 0));
+        Assert.assertEquals("entity1", nextPassivated());
+
+        register(entry("entity4", "shard1", 10, 0));
+        Assert.assertEquals("entity2", nextPassivated());
+        assertNothingPassivated();
+
+        // Once the passivated entities have stopped the count of passivating entities is back to 0,
+        // so the next entity is over budget again.
+        unregister(entry1);
+        unregister(entry2);
+        register(entry("entity5", "shard1", 0, 0));
+
+        Assert.assertEquals("entity3", nextPassivated());
+        assertNothingPassivated();
+    }
+
+    @Test
+    public void unregisteredEntitiesAreNeverPassivated() throws InterruptedException {
+        start(3, 0, "lru");
+        PassivationManager.Entry entry1 = entry("entity1", "shard1", 50, 0);
+        PassivationManager.Entry entry2 = entry("entity2", "shard1", 40, 0);
+        register(entry1);
+        register(entry2);
+        register(entry("entity3", "shard1", 30, 0));
+
+        // Removing the first entry moves the last one into its place, and removing it again does
+        // nothing.
+        unregister(entry1);
+        unregister(entry1);
+        register(entry("entity4", "shard1", 20, 0));
+        assertNothingPassivated();
+
+        register(entry("entity5", "shard1", 10, 0));
+        Assert.assertEquals("entity2", nextPassivated());
+
+        unregister(entry2);
+        register(entry("entity6", "shard1", 0, 0));
+        Assert.assertEquals("entity3", nextPassivated());
+        assertNothingPassivated();
+    }
+
+    private void start(int maxActivePerNode, int maxActivePerShard, String evictionPolicy) {
+        actorSystem = ActorSystem.create("PassivationManagerTest", ConfigFactory.parseString(String.format(
+                "akka.actor.provider = local\n" +
+                "akka.loglevel = WARNING\n" +
+                "akka.extensions = []\n" +
+                "cluster-demo.passivation.max-active-entities-per-node = %d\n" +
+                "cluster-demo.passivation.max-active-entities-per-shard = %d\n" +
+                "cluster-demo.passivation.eviction-policy = \"%s\"\n" +
+                "cluster-demo.passivation.eviction-sample-size = 64\n" +
+                "cluster-demo.passivation.check-interval = 1h\n", maxActivePerNode, maxActivePerShard, evictionPolicy))
+                .withFallback(ConfigFactory.load()));
+        passivationManager = actorSystem.actorOf(PassivationManager.props(), "passivationManager");
+    }
+
+    // An entry that was last used the given number of seconds ago and has seen the given number of
+    // messages.
+    private PassivationManager.Entry entry(String entityId, String shardId, int idleSeconds, long accesses) {
+        ActorRef entity = actorSystem.actorOf(Props.create(PassivatedEntity.class, passivated), entityId);
+        PassivationManager.Entry entry = new PassivationManager.Entry(entity, shardId);
+        entry.lastAccess = entry.started - TimeUnit.SECONDS.toNanos(idleSeconds);
+        entry.accesses = accesses;
+        return entry;
+    }
+
+    private void register(PassivationManager.Entry entry) {
+        passivationManager.tell(new PassivationManager.Register(entry), ActorRef.noSender());
+    }
+
+    private void unregister(PassivationManager.Entry entry) {
+        passivationManager.tell(new PassivationManager.Unregister(entry), ActorRef.noSender());
+    }
+
+    private String nextPassivated() throws InterruptedException {
+        return passivated.poll(3, TimeUnit.SECONDS);
+    }
+
+    private void assertNothingPassivated() throws InterruptedException {
+        Assert.assertNull(passivated.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    static class PassivatedEntity extends AbstractActor {
+        private final BlockingQueue<String> passivated;
+
+        PassivatedEntity(BlockingQueue<String> passivated) {
+            this.passivated = passivated;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchEquals(PassivationManager.passivate, p -> passivated.add(self().path().name()))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.Props;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PeerCacheTest {
+    private static ActorSystem actorSystem;
+    private static ActorRef peer1;
+    private static ActorRef peer2;
+    private final Address address1 = new Address("akka.tcp", "cluster", "node1", 2551);
+    private final Address address2 = new Address("akka.tcp", "cluster", "node2", 2551);
+
+    @BeforeClass
+    public static void startActorSystem() {
+        actorSystem = ActorSystem.create("PeerCacheTest", ConfigFactory.parseString("akka.actor.provider = local"));
+        peer1 = actorSystem.actorOf(Props.empty(), "peer1");
+        peer2 = actorSystem.actorOf(Props.empty(), "peer2");
+    }
+
+    @AfterClass
+    public static void stopActorSystem() {
+        actorSystem.terminate();
+    }
+
+    @Test
+    public void resolvedPeersAreCached() {
+        HttpServerActor.PeerCache peers = new HttpServerActor.PeerCache();
+        peers.unresolved(address1);
+        peers.unresolved(address2);
+        peers.resolved(address1, peer1);
+        peers.resolved(address2, peer2);
+
+        Assert.assertFalse(peers.isUnresolved(address1));
+        Assert.assertEquals(2, peers.resolved().size());
+        Assert.assertTrue(peers.resolved().contains(peer1));
+        Assert.assertTrue(peers.resolved().contains(peer2));
+    }
+
+    @Test
+    public void unresolvedPeersAreNotForwardedTo() {
+        HttpServerActor.PeerCache peers = new HttpServerActor.PeerCache();
+        peers.unresolved(address1);
+
+        Assert.assertTrue(peers.isUnresolved(address1));
+        Assert.assertFalse(peers.isUnresolved(address2));
+        Assert.assertTrue(peers.resolved().isEmpty());
+    }
+
+    @Test
+    public void removedMembersAreInvalidated() {
+        HttpServerActor.PeerCache peers = new HttpServerActor.PeerCache();
+        peers.unresolved(address1);
+        peers.resolved(address1, peer1);
+        peers.unresolved(address2);
+
+        Assert.assertEquals(peer1, peers.remove(address1));
+        Assert.assertNull(peers.remove(address2));
+
+        Assert.assertTrue(peers.resolved().isEmpty());
+        Assert.assertFalse(peers.isUnresolved(address1));
+        Assert.assertFalse(peers.isUnresolved(address2));
+    }
+
+    @Test
+    public void stoppedPeersAreResolvedAgain() {
+        HttpServerActor.PeerCache peers = new HttpServerActor.PeerCache();
+        peers.unresolved(address1);
+        peers.resolved(address1, peer1);
+
+        peers.remove(address1);
+        peers.unresolved(address1);
+        Assert.assertTrue(peers.resolved().isEmpty());
+
+        peers.resolved(address1, peer2);
+        Assert.assertEquals(1, peers.resolved().size());
+        Assert.assertTrue(peers.resolved().contains(peer2));
+    }
+}
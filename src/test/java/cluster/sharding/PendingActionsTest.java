@@ -0,0 +1,69 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class PendingActionsTest {
+    @Test
+    public void actionsAreBatchedPerMember() {
+        HttpServerActor.PendingActions pending = new HttpServerActor.PendingActions();
+        pending.add(action("member1", "entity01", "start"));
+        pending.add(action("member2", "entity02", "start"));
+        pending.add(action("member1", "entity03", "stop"));
+
+        Map<String, List<EntityMessage.Action>> batches = pending.drain();
+
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(2, batches.get("member1").size());
+        Assert.assertEquals("entity01", batches.get("member1").get(0).entityId);
+        Assert.assertEquals("entity03", batches.get("member1").get(1).entityId);
+        Assert.assertEquals(1, batches.get("member2").size());
+    }
+
+    @Test
+    public void startFollowedByStopCancelsOut() {
+        HttpServerActor.PendingActions pending = new HttpServerActor.PendingActions();
+        pending.add(action("member1", "entity01", "start"));
+        pending.add(action("member1", "entity01", "stop"));
+
+        Assert.assertTrue(pending.drain().isEmpty());
+    }
+
+    @Test
+    public void onlyTheLastActionOfAnEntityIsSent() {
+        HttpServerActor.PendingActions pending = new HttpServerActor.PendingActions();
+        pending.add(action("member1", "entity01", "stop"));
+        pending.add(action("member1", "entity01", "start"));
+        pending.add(action("member1", "entity01", "stop"));
+        pending.add(action("member1", "entity02", "start"));
+        pending.add(action("member1", "entity02", "stop"));
+        pending.add(action("member1", "entity02", "start"));
+
+        List<EntityMessage.Action> actions = pending.drain().get("member1");
+
+        Assert.assertEquals(2, actions.size());
+        Assert.assertEquals("stop", actions.get(0).action);
+        Assert.assertEquals("start", actions.get(1).action);
+    }
+
+    @Test
+    public void drainStartsANewBatch() {
+        HttpServerActor.PendingActions pending = new HttpServerActor.PendingActions();
+        pending.add(action("member1", "entity01", "start"));
+        Assert.assertEquals(1, pending.drain().get("member1").size());
+
+        pending.add(action("member1", "entity01", "stop"));
+        List<EntityMessage.Action> actions = pending.drain().get("member1");
+
+        Assert.assertEquals(1, actions.size());
+        Assert.assertEquals("stop", actions.get(0).action);
+        Assert.assertTrue(pending.drain().isEmpty());
+    }
+
+    private static EntityMessage.Action action(String member, String entityId, String action) {
+        return new EntityMessage.Action(member, "shard01", entityId, action, true);
+    }
+}
@@ -0,0 +1,213 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.InvalidActorNameException;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.pattern.Patterns;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class PersistentEntityActorTest {
+    private Path dir;
+    private int port;
+    private ActorSystem actorSystem;
+    private ActorRef shardOwnership;
+
+    @Before
+    public void startActorSystem() throws IOException {
+        dir = Files.createTempDirectory("persistent-entity");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        startNode();
+    }
+
+    @After
+    public void stopActorSystem() throws Exception {
+        stopNode();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // The node keeps its address and directories when it is started again, like after a restart.
+    private void startNode() {
+        actorSystem = ActorSystem.create("PersistentEntityActorTest", ConfigFactory.parseString(String.format(
+                "akka.loglevel = WARNING\n" +
+                "akka.extensions = []\n" +
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"\n" +
+                "akka.remote.netty.tcp.port = %d\n" +
+                "cluster-demo.persistence.snapshot-every = 2\n" +
+                "cluster-demo.persistence.journal.dir = \"%s\"\n" +
+                "cluster-demo.persistence.snapshot-store.dir = \"%s\"\n" +
+                "cluster-demo.persistence.shard-owners.durable.lmdb.dir = \"%s\"\n",
+                port, dir.resolve("journal"), dir.resolve("snapshots"), dir.resolve("ddata")))
+                .withFallback(ConfigFactory.load()));
+        shardOwnership = actorSystem.actorOf(ShardOwnership.props(), "shardOwnership");
+    }
+
+    private void stopNode() throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void valueIsRecoveredWhileTheShardStays() throws Exception {
+        ActorRef shard = startShard();
+        command(shard, 1, "value-1");
+        command(shard, 2, "value-2");
+        command(shard, 3, "value-3");
+
+        ask(shard, "stop-entity");
+
+        Assert.assertEquals("value-3", queryValue(shard, 4));
+    }
+
+    @Test
+    public void valueIsRecoveredWhenTheShardStartsAgainOnTheSameNode() throws Exception {
+        ActorRef shard = startShard();
+        command(shard, 1, "value-1");
+        command(shard, 2, "value-2");
+        command(shard, 3, "value-3");
+        ask(shard, "stop");
+
+        Assert.assertEquals("value-3", queryValue(startShard(), 4));
+    }
+
+    @Test
+    public void valueIsRecoveredAfterTheNodeRestarts() throws Exception {
+        ActorRef shard = startShard();
+        command(shard, 1, "value-1");
+        command(shard, 2, "value-2");
+        command(shard, 3, "value-3");
+
+        stopNode();
+        startNode();
+
+        Assert.assertEquals("value-3", queryValue(startShard(), 4));
+    }
+
+    @Test
+    public void historyIsDiscardedWhenAnotherNodeOwnedTheShard() throws Exception {
+        ActorRef shard = startShard();
+        command(shard, 1, "value-1");
+        command(shard, 2, "value-2");
+        command(shard, 3, "value-3");
+        ask(shard, "stop");
+
+        ShardOwnership.Owner otherNode = new ShardOwnership.Owner(2, "akka.tcp://PersistentEntityActorTest@10.0.0.2:2552");
+        SelfUniqueAddress node = DistributedData.get(actorSystem).selfUniqueAddress();
+        Object updated = Patterns.ask(actorSystem.actorSelection("/user/shardOwnership/replicator"), new Replicator.Update<>(
+                LWWMapKey.<String, ShardOwnership.Owner>create("shard-owners"), LWWMap.create(), Replicator.writeLocal(),
+                owners -> owners.put(node, "shard1", otherNode)), Duration.ofSeconds(10)).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(updated.toString(), updated instanceof Replicator.UpdateSuccess);
+
+        ActorRef restartedShard = startShard();
+        Object queryAck = ask(restartedShard, new EntityMessage.Query(new Entity.Id("1"), "shard1", 4));
+        Assert.assertTrue(queryAck.toString(), queryAck instanceof EntityMessage.QueryAckNotFound);
+
+        EntityMessage.CommandAck commandAck = command(restartedShard, 5, "value-5");
+        Assert.assertEquals("initialize", commandAck.action);
+        ask(restartedShard, "stop-entity");
+        Assert.assertEquals("value-5", queryValue(restartedShard, 6));
+    }
+
+    // A shard that was stopped gives up its name shortly after it has stopped.
+    private ActorRef startShard() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return actorSystem.actorOf(Shard.props(shardOwnership), "shard1");
+            } catch (InvalidActorNameException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private Object queryValue(ActorRef shard, long correlationId) throws Exception {
+        Object queryAck = ask(shard, new EntityMessage.Query(new Entity.Id("1"), "shard1", correlationId));
+        Assert.assertTrue(queryAck.toString(), queryAck instanceof EntityMessage.QueryAck);
+        return ((EntityMessage.QueryAck) queryAck).entity.value.value();
+    }
+
+    private EntityMessage.CommandAck command(ActorRef shard, long correlationId, String value) throws Exception {
+        return (EntityMessage.CommandAck) ask(shard, new EntityMessage.Command(new Entity("1", value), "shard1", correlationId));
+    }
+
+    private static Object ask(ActorRef shard, Object message) throws Exception {
+        return Patterns.ask(shard, message, Duration.ofSeconds(10)).toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    // Stands in for a cluster sharding shard with one entity. Every shard actor has a new uid, so
+    // a new one is like the shard starting again on this node.
+    static class Shard extends AbstractActor {
+        private final ActorRef shardOwnership;
+        private ActorRef entity;
+        private ActorRef stopRequester;
+        private boolean stopping;
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchEquals("stop-entity", s -> stopEntity())
+                    .matchEquals("stop", s -> {
+                        stopping = true;
+                        stopEntity();
+                    })
+                    .match(Terminated.class, t -> entityStopped())
+                    .matchAny(this::forward)
+                    .build();
+        }
+
+        private void forward(Object message) {
+            if (entity == null) {
+                entity = context().watch(context().actorOf(PersistentEntityActor.props(context().system().deadLetters(), context().system().deadLetters(),
+                        shardOwnership), "1"));
+            }
+            entity.forward(message, context());
+        }
+
+        private void stopEntity() {
+            stopRequester = sender();
+            context().stop(entity);
+        }
+
+        private void entityStopped() {
+            entity = null;
+            stopRequester.tell("stopped", self());
+            if (stopping) {
+                context().stop(self());
+            }
+        }
+
+        Shard(ActorRef shardOwnership) {
+            this.shardOwnership = shardOwnership;
+        }
+
+        static Props props(ActorRef shardOwnership) {
+            return Props.create(Shard.class, shardOwnership);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cluster.sharding;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class SegmentedLogTest {
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("segmented-log");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendAndReplay() throws IOException {
+        try (SegmentedLog log = new SegmentedLog(dir, 1 << 20)) {
+            append(log, "a", 1, 2, 3);
+            append(log, "b", 1);
+            append(log, "a", 4);
+
+            Assert.assertEquals(4, log.highestSequenceNr("a"));
+            Assert.assertEquals(1, log.highestSequenceNr("b"));
+            Assert.assertEquals(0, log.highestSequenceNr("c"));
+            Assert.assertEquals("[a-1, a-2, a-3, a-4]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+            Assert.assertEquals("[a-2, a-3]", replay(log, "a", 2, 3, Long.MAX_VALUE).toString());
+            Assert.assertEquals("[a-2]", replay(log, "a", 2, 4, 1).toString());
+            Assert.assertEquals("[]", replay(log, "c", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+        }
+    }
+
+    @Test
+    public void reopenRebuildsTheIndex() throws IOException {
+        try (SegmentedLog log = new SegmentedLog(dir, 100)) {
+            for (long sequenceNr = 1; sequenceNr <= 20; sequenceNr++) {
+                append(log, "a", sequenceNr);
+                append(log, "b", sequenceNr);
+            }
+            log.force();
+            Assert.assertTrue(log.segmentCount() > 1);
+        }
+        try (SegmentedLog log = new SegmentedLog(dir, 100)) {
+            Assert.assertEquals(2, log.persistenceIdCount());
+            Assert.assertEquals(20, log.highestSequenceNr("a"));
+            Assert.assertEquals("[b-19, b-20]", replay(log, "b", 19, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+            append(log, "a", 21);
+            Assert.assertEquals("[a-20, a-21]", replay(log, "a", 20, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+        }
+    }
+
+    @Test
+    public void deletedEventsAreNotReplayed() throws IOException {
+        try (SegmentedLog log = new SegmentedLog(dir, 1 << 20)) {
+            append(log, "a", 1, 2, 3);
+            log.deleteTo("a", 2);
+            Assert.assertEquals("[a-3]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+            log.deleteTo("a", Long.MAX_VALUE);
+            Assert.assertEquals("[]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+            Assert.assertEquals(3, log.highestSequenceNr("a"));
+        }
+        try (SegmentedLog log = new SegmentedLog(dir, 1 << 20)) {
+            Assert.assertEquals("[]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+            Assert.assertEquals(3, log.highestSequenceNr("a"));
+        }
+    }
+
+    @Test
+    public void segmentsWithOnlyDeletedEventsAreRemoved() throws IOException {
+        int segmentCount;
+        try (SegmentedLog log = new SegmentedLog(dir, 100)) {
+            for (long sequenceNr = 1; sequenceNr <= 20; sequenceNr++) {
+                append(log, "a", sequenceNr);
+                append(log, "b", sequenceNr);
+            }
+            segmentCount = log.segmentCount();
+
+            log.deleteTo("a", 20);
+            log.deleteTo("b", 10);
+            Assert.assertTrue(log.segmentCount() < segmentCount);
+            Assert.assertFalse(Files.exists(dir.resolve(String.format("%020d.log", 1))));
+            Assert.assertEquals("[b-11, b-12]", replay(log, "b", 1, 12, Long.MAX_VALUE).toString());
+        }
+        try (SegmentedLog log = new SegmentedLog(dir, 100)) {
+            Assert.assertEquals(20, log.highestSequenceNr("a"));
+            Assert.assertEquals("[]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+            Assert.assertEquals("[b-11, b-12]", replay(log, "b", 1, 12, Long.MAX_VALUE).toString());
+
+            log.deleteTo("b", 20);
+            Assert.assertEquals(1, log.segmentCount());
+        }
+        try (SegmentedLog log = new SegmentedLog(dir, 100)) {
+            Assert.assertEquals(1, log.segmentCount());
+            Assert.assertEquals(20, log.highestSequenceNr("a"));
+            Assert.assertEquals(20, log.highestSequenceNr("b"));
+            append(log, "a", 21);
+            Assert.assertEquals("[a-21]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+        }
+    }
+
+    @Test
+    public void incompleteLastRecordIsCutOff() throws IOException {
+        try (SegmentedLog log = new SegmentedLog(dir, 1 << 20)) {
+            append(log, "a", 1);
+            append(log, "a", 2, 3);
+        }
+        Path segment = dir.resolve(String.format("%020d.log", 1));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (SegmentedLog log = new SegmentedLog(dir, 1 << 20)) {
+            Assert.assertEquals(1, log.highestSequenceNr("a"));
+            append(log, "a", 2);
+        }
+        try (SegmentedLog log = new SegmentedLog(dir, 1 << 20)) {
+            Assert.assertEquals("[a-1, a-2]", replay(log, "a", 1, Long.MAX_VALUE, Long.MAX_VALUE).toString());
+        }
+    }
+
+    private static void append(SegmentedLog log, String persistenceId, long... sequenceNrs) throws IOException {
+        byte[][] events = new byte[sequenceNrs.length][];
+        for (int i = 0; i < sequenceNrs.length; i++) {
+            events[i] = String.format("%s-%d", persistenceId, sequenceNrs[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        log.append(persistenceId, sequenceNrs, events);
+    }
+
+    private static List<String> replay(SegmentedLog log, String persistenceId, long from, long to, long max) throws IOException {
+        List<String> events = new ArrayList<>();
+        log.replay(persistenceId, from, to, max, (bytes, sequenceNr) -> events.add(new String(bytes, StandardCharsets.UTF_8)));
+        return events;
+    }
+}
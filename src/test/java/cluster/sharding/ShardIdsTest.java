@@ -0,0 +1,64 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShardIdsTest {
+    @Test
+    public void shardIdsAreInternedAndInRange() {
+        ShardIds shardIds = new ShardIds(15);
+
+        for (int i = -1000; i < 1000; i++) {
+            String entityId = String.valueOf(i);
+            int shard = shardIds.shard(entityId);
+            Assert.assertTrue(shard >= 0 && shard < 15);
+            Assert.assertSame(shardIds.shardId(shard), shardIds.shardId(entityId));
+            Assert.assertSame(String.valueOf(shard).intern(), shardIds.shardId(entityId));
+        }
+    }
+
+    @Test
+    public void murmur3MatchesReferenceValues() {
+        Assert.assertEquals(0, ShardIds.murmur3(""));
+        Assert.assertEquals(1867108634, ShardIds.murmur3("a"));
+        Assert.assertEquals(1118836419, ShardIds.murmur3("abc"));
+        Assert.assertEquals(-1021590625, ShardIds.murmur3("entity-42"));
+    }
+
+    @Test
+    public void numericIdsHashLikeTheirDecimalStrings() {
+        ShardIds shardIds = new ShardIds(15);
+        long[] numbers = {0, 1, 9, 10, 99, 100, 12345, 4294967296L, 123456789012345678L, 999999999999999999L,
+                1000000000000000000L, Long.MAX_VALUE};
+
+        for (long number : numbers) {
+            Assert.assertEquals(ShardIds.murmur3(Long.toString(number)), ShardIds.murmur3(number));
+            Assert.assertSame(shardIds.shardId(Long.toString(number)), shardIds.shardId(new Entity.Id(number)));
+        }
+        for (int i = 0; i < 100_000; i++) {
+            Assert.assertEquals(ShardIds.murmur3(Integer.toString(i)), ShardIds.murmur3(i));
+        }
+        Assert.assertSame(shardIds.shardId("entity-42"), shardIds.shardId(new Entity.Id("entity-42")));
+    }
+
+    @Test
+    public void entitiesAreEvenlyDistributed() {
+        int numberOfShards = 15;
+        int numberOfEntities = 150000;
+        ShardIds shardIds = new ShardIds(numberOfShards);
+
+        int[] counts = new int[numberOfShards];
+        for (int i = 0; i < numberOfEntities; i++) {
+            counts[shardIds.shard(String.valueOf(i))]++;
+        }
+
+        // Chi-squared test with 14 degrees of freedom, 36.12 is the 0.001 critical value.
+        double expected = (double) numberOfEntities / numberOfShards;
+        double chiSquared = 0;
+        for (int count : counts) {
+            chiSquared += (count - expected) * (count - expected) / expected;
+        }
+        System.out.printf("chi-squared %.2f%n", chiSquared);
+        Assert.assertTrue(chiSquared < 36.12);
+    }
+}
@@ -10,9 +10,40 @@ public class StatisticsTest {
 
         System.out.println(statistics.toJson());
 
-        statistics.statistics.size();
-        Assert.assertEquals(statistics.statisticCount, statistics.statistics.size());
+        Assert.assertEquals(statistics.statisticCount, statistics.size());
         Assert.assertEquals(statistics.intervalTimeMillis * (statistics.statisticCount - 1),
-                statistics.statistics.get(0).time - statistics.statistics.get(statistics.statisticCount - 1).time);
+                statistics.time(statistics.statisticCount - 1) - statistics.time(0));
+    }
+
+    @Test
+    public void addOverwritesOldestSample() {
+        HttpServerActor.Statistics statistics = new HttpServerActor.Statistics(3, 1000);
+        long time = statistics.time(2);
+
+        for (int i = 1; i <= 4; i++) {
+            statistics.add(time + i * 1000, i, i * 10);
+        }
+
+        Assert.assertEquals(3, statistics.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(time + (i + 2) * 1000, statistics.time(i));
+            Assert.assertEquals(i + 2, statistics.entityCount(i));
+            Assert.assertEquals((i + 2) * 10, statistics.commandCount(i));
+        }
+    }
+
+    @Test
+    public void jsonIsInTimeOrder() {
+        HttpServerActor.Statistics statistics = new HttpServerActor.Statistics(2, 1000);
+        statistics.add(5000, 1, 2);
+        statistics.add(6000, 3, 4);
+
+        Assert.assertEquals("{\"statisticCount\":2,\"intervalTimeMillis\":1000,\"statistics\":["
+                        + "{\"time\":5000,\"entityCount\":1,\"commandCount\":2},"
+                        + "{\"time\":6000,\"entityCount\":3,\"commandCount\":4}]}",
+                statistics.toJson());
+
+        statistics.add(7000, 5, 6);
+        Assert.assertTrue(statistics.toJson().startsWith("{\"statisticCount\":2,\"intervalTimeMillis\":1000,\"statistics\":[{\"time\":6000,"));
     }
 }
@@ -6,6 +6,8 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.*;
+
 public class TreeTest {
     @Test
     public void findExistingEntityInTree() {
@@ -140,6 +142,44 @@ public class TreeTest {
         Assert.assertNull(cluster.find("entity1", "entity"));
     }
 
+    @Test
+    public void addMovesEntityBetweenMembersAndShards() {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        tree.add("member1", "shard1", "entity1");
+        tree.add("member1", "shard1", "entity2");
+        tree.add("member2", "shard2", "entity1");
+
+        Assert.assertEquals(1, tree.find("shard1", "shard").children.size());
+        Assert.assertEquals("entity2", tree.find("shard1", "shard").children.get(0).name);
+        Assert.assertEquals("entity1", tree.find("member2", "member").find("shard2", "shard").children.get(0).name);
+
+        tree.remove("member1", "shard1", "entity1");
+        Assert.assertNotNull(tree.find("entity1", "entity"));
+        Assert.assertNotNull(tree.find("entity2", "entity"));
+
+        tree.remove("member2", "shard2", "entity1");
+        Assert.assertNull(tree.find("entity1", "entity"));
+        Assert.assertNull(tree.find("member2", "member"));
+    }
+
+    @Test
+    public void removeKeepsRemainingChildrenIndexed() {
+        HttpServerActor.Tree tree = testTree();
+
+        tree.remove("member1", "shard01", "entity01");
+        tree.remove("member1", "shard01", "entity03");
+        tree.add("member1", "shard01", "entity37");
+        tree.remove("member1", "shard01", "entity02");
+
+        HttpServerActor.Tree shard = tree.find("shard01", "shard");
+        Assert.assertEquals(1, shard.children.size());
+        Assert.assertEquals("entity37", shard.children.get(0).name);
+
+        tree.incrementEvents("member1", "shard01", "entity37");
+        tree.incrementEvents("member1", "shard01", "entity02");
+        Assert.assertEquals(1, tree.eventsCount());
+    }
+
     @Test
     public void setUnsetTypeWorks() {
         HttpServerActor.Tree tree = testTree();
@@ -224,6 +264,202 @@ public class TreeTest {
         Assert.assertEquals(7, tree.eventsCount());
     }
 
+    @Test
+    public void deltasSinceReturnsChangesInOrder() {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        Assert.assertEquals(0, tree.version());
+        Assert.assertTrue(tree.deltasSince(0).isEmpty());
+
+        tree.add("member1", "shard1", "entity1");
+        tree.add("member1", "shard1", "entity2");
+        tree.setMemberType("member1", "singleton");
+        tree.setMemberType("member1", "singleton");
+        tree.remove("member1", "shard1", "entity1");
+
+        Assert.assertEquals(4, tree.version());
+
+        List<HttpServerActor.Tree.Delta> deltas = tree.deltasSince(1);
+        Assert.assertEquals(3, deltas.size());
+        Assert.assertEquals("add", deltas.get(0).action);
+        Assert.assertEquals("entity2", deltas.get(0).entity);
+        Assert.assertEquals("type", deltas.get(1).action);
+        Assert.assertEquals("member singleton", deltas.get(1).type);
+        Assert.assertEquals("remove", deltas.get(2).action);
+        Assert.assertEquals(4, deltas.get(2).version);
+
+        Assert.assertTrue(tree.deltasSince(4).isEmpty());
+        Assert.assertNull(tree.deltasSince(5));
+    }
+
+    @Test
+    public void deltasSinceIsNullWhenLogHasBeenTrimmed() {
+        HttpServerActor.Tree tree = new HttpServerActor.Tree("cluster", "cluster", 3);
+        for (int i = 0; i < 5; i++) {
+            tree.add("member1", "shard1", "entity" + i);
+        }
+
+        Assert.assertNull(tree.deltasSince(1));
+        Assert.assertEquals(3, tree.deltasSince(2).size());
+        Assert.assertTrue(tree.toJson(1).contains("\"tree\""));
+        Assert.assertTrue(tree.toJson(2).contains("\"deltas\""));
+    }
+
+    @Test
+    public void toJsonIsCachedUntilTreeChanges() {
+        HttpServerActor.Tree tree = testTree();
+        String json = tree.toJson();
+
+        Assert.assertSame(json, tree.toJson());
+
+        tree.incrementEvents("member1", "shard01", "entity01");
+        String afterEvent = tree.toJson();
+        Assert.assertNotSame(json, afterEvent);
+        Assert.assertTrue(afterEvent.contains("\"events\":1"));
+
+        tree.add("member5", "shard13", "entity37");
+        Assert.assertTrue(tree.toJson().contains("entity37"));
+        Assert.assertTrue(tree.toJson(0).contains("entity37"));
+    }
+
+    @Test
+    public void snapshotIsNotChangedByLaterUpdates() {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        tree.add("member1", "shard1", "entity1");
+        HttpServerActor.Tree.Snapshot snapshot = tree.snapshot();
+
+        Assert.assertSame(snapshot, tree.snapshot());
+
+        tree.add("member1", "shard1", "entity2");
+        tree.remove("member1", "shard1", "entity1");
+
+        Assert.assertEquals(1, snapshot.version);
+        Assert.assertFalse(snapshot.toJson().contains("entity2"));
+        Assert.assertFalse(snapshot.toJson(0).contains("entity2"));
+        Assert.assertTrue(tree.snapshot().toJson(1).contains("entity2"));
+        Assert.assertNotSame(snapshot, tree.snapshot());
+    }
+
+    @Test
+    public void syncMemberAddsAndRemovesOnlyDifferences() {
+        HttpServerActor.Tree tree = testTree();
+        long version = tree.version();
+
+        Map<String, Set<String>> entityIdsByShard = new HashMap<>();
+        entityIdsByShard.put("shard01", new HashSet<>(Arrays.asList("entity01", "entity02", "entity03")));
+        entityIdsByShard.put("shard02", new HashSet<>(Arrays.asList("entity04", "entity37")));
+        tree.syncMember("member1", entityIdsByShard);
+
+        Assert.assertNotNull(tree.find("entity01", "entity"));
+        Assert.assertNotNull(tree.find("entity37", "entity"));
+        Assert.assertNull(tree.find("entity05", "entity"));
+        Assert.assertNull(tree.find("shard03", "shard"));
+        Assert.assertEquals(version + 6, tree.version());
+
+        tree.syncMember("member2", Collections.emptyMap());
+        Assert.assertNull(tree.find("member2", "member"));
+
+        tree.syncMember("member5", Collections.singletonMap("shard13", Collections.singleton("entity38")));
+        Assert.assertNotNull(tree.find("member5", "member").find("entity38", "entity"));
+    }
+
+    @Test
+    public void digestsDoNotDependOnOrderOfUpdates() {
+        HttpServerActor.Tree tree1 = HttpServerActor.Tree.create("cluster", "cluster");
+        tree1.add("member1", "shard1", "entity1");
+        tree1.add("member1", "shard1", "entity2");
+        tree1.add("member1", "shard2", "entity3");
+
+        HttpServerActor.Tree tree2 = HttpServerActor.Tree.create("cluster", "cluster");
+        tree2.add("member1", "shard2", "entity3");
+        tree2.add("member1", "shard1", "entity4");
+        tree2.add("member1", "shard1", "entity2");
+        tree2.add("member1", "shard1", "entity1");
+
+        Assert.assertNotEquals(tree1.memberDigest("member1"), tree2.memberDigest("member1"));
+        Assert.assertEquals(tree1.shardDigests("member1").get("shard2"), tree2.shardDigests("member1").get("shard2"));
+        Assert.assertNotEquals(tree1.shardDigests("member1").get("shard1"), tree2.shardDigests("member1").get("shard1"));
+
+        tree2.remove("member1", "shard1", "entity4");
+        Assert.assertEquals(tree1.memberDigest("member1"), tree2.memberDigest("member1"));
+        Assert.assertEquals(tree1.shardDigests("member1"), tree2.shardDigests("member1"));
+
+        tree2.syncShard("member1", "shard2", Collections.emptySet());
+        Assert.assertEquals(1, tree2.shardDigests("member1").size());
+        tree2.syncShard("member1", "shard2", tree1.entityIds("member1", Collections.singleton("shard2")).get("shard2"));
+        Assert.assertEquals(tree1.memberDigest("member1"), tree2.memberDigest("member1"));
+        Assert.assertEquals(0, tree2.memberDigest("member2"));
+    }
+
+    @Test
+    public void entityCountOfMember() {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        tree.add("member1", "shard1", "entity1");
+        tree.add("member1", "shard1", "entity2");
+        tree.add("member1", "shard2", "entity3");
+        tree.add("member2", "shard3", "entity4");
+
+        Assert.assertEquals(3, tree.entityCount("member1"));
+        Assert.assertEquals(1, tree.entityCount("member2"));
+        Assert.assertEquals(0, tree.entityCount("member3"));
+    }
+
+    @Test
+    public void setEventsIsRecordedAsDelta() {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        tree.add("member1", "shard1", "entity1");
+        long version = tree.version();
+
+        tree.setEvents("member1", "shard1", "entity1", 42);
+        tree.setEvents("member1", "shard1", "entity1", 42);
+        tree.setEvents("member1", "shard1", "entity2", 7);
+
+        Assert.assertEquals(42, tree.eventsCount());
+        List<HttpServerActor.Tree.Delta> deltas = tree.deltasSince(version);
+        Assert.assertEquals(1, deltas.size());
+        Assert.assertEquals("events", deltas.get(0).action);
+        Assert.assertEquals("entity1", deltas.get(0).entity);
+        Assert.assertEquals(Integer.valueOf(42), deltas.get(0).events);
+    }
+
+    @Test
+    public void hotShardsAndRebalancesAreRecordedAsDeltas() {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        tree.add("member1", "shard1", "entity1");
+        tree.add("member1", "shard2", "entity2");
+        long version = tree.version();
+
+        tree.setHotShards("member1", Collections.singletonMap("shard1", 250));
+        tree.setHotShards("member1", Collections.singletonMap("shard1", 250));
+        Assert.assertEquals("shard hot", tree.find("shard1", "shard").type);
+        Assert.assertEquals("shard", tree.find("shard2", "shard").type);
+        Assert.assertEquals(2, tree.deltasSince(version).size());
+
+        tree.rebalance("member1", "shard1", "member2");
+        tree.setHotShards("member1", Collections.emptyMap());
+        List<HttpServerActor.Tree.Delta> deltas = tree.deltasSince(version);
+        Assert.assertEquals(5, deltas.size());
+        Assert.assertEquals("rebalance", deltas.get(2).action);
+        Assert.assertEquals("shard1", deltas.get(2).shard);
+        Assert.assertEquals("member2", deltas.get(2).to);
+        Assert.assertEquals("shard", tree.find("shard1", "shard").type);
+        Assert.assertEquals(Integer.valueOf(0), deltas.get(4).events);
+    }
+
+    @Test
+    public void wholeTreeUpdateCarriesTheLatestRebalances() {
+        HttpServerActor.Tree tree = new HttpServerActor.Tree("cluster", "cluster", 3);
+        tree.add("member1", "shard1", "entity1");
+        for (int i = 0; i < 12; i++) {
+            tree.rebalance("member1", "shard" + i, "member2");
+        }
+
+        String json = tree.toJson(0);
+        Assert.assertTrue(json, json.contains("\"tree\""));
+        Assert.assertTrue(json, json.contains("\"rebalances\":[{\"version\":4,\"action\":\"rebalance\",\"member\":\"member1\",\"shard\":\"shard2\",\"to\":\"member2\"}"));
+        Assert.assertTrue(json, json.contains("\"shard11\""));
+        Assert.assertFalse(json, json.contains("\"shard1\",\"to\""));
+    }
+
     @Test
     public void toJson() {
         String json = testTree().toJson();